@@ -22,18 +22,38 @@ package io.github.davidg95.jconn;
 
 import io.github.davidg95.jconn.events.*;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.net.SocketException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Class for sending JConn requests to a JConn server. This will send requests
@@ -45,59 +65,202 @@ import java.util.logging.Logger;
  */
 public class JConn {
 
-    private Socket socket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private JConnLink link; //The socket to the server.
+    private JConnLink.Dialer dialer; //Opens the link, kept to reconnect the same way.
+    private JConnStream stream; //The messages to and from the server.
+    private final JConnCompressionStats compressionStats; //Kept across reconnects.
+    private volatile JConnBulkReceiver bulkReceiver; //Receives bulk transfers from the server.
 
-    private final HashMap<UUID, JConnRunnable> incomingQueue; //The queue for all incoming packets.
+    private final JConnIdMap<PendingRequest> incomingQueue; //The requests which are waiting for a reply, by id.
+    private final AtomicLong ids; //The source of correlation ids for requests.
     private final StampedLock queueLock; //Lock for the queue.
+
+    private final LinkedList<JConnData> outageBuffer; //Requests held while the connection is down.
+    private final StampedLock bufferLock; //Lock for the outage buffer.
+    private boolean reconnecting; //Indicates that the connection was lost and is being retried.
     private IncomingThread inc; //The thread which handles the incoming packets.
+    private JConnMethodTable methods; //The method table sent by the server in the handshake.
 
-    private boolean connected;
+    private volatile boolean connected; //Set once the handshake is done, so writes which check it see the agreed codecs and method table.
 
-    private String ip;
-    private int port;
+    private String address; //The address of the server.
 
     private final List<JConnListener> listeners;
     private final StampedLock listenerLock;
 
+    private final JConnIdMap<JConnChannel> channels; //The open logical channels, by id.
+    private final StampedLock channelsLock; //Lock for the channels map.
+    private final AtomicInteger channelIds; //The source of ids for channels.
+
+    private JConnDatagrams.Receiver datagrams; //Receives pushes sent over UDP, null if openDatagrams has not been called.
+    private final List<JConnDatagrams.Receiver> groups; //Receive pushes sent to the multicast groups which have been joined.
+    private final StampedLock groupsLock; //Lock for the groups list.
+    private final AtomicLong datagramsMissed; //The number of datagrams which were lost.
+
+    private final HashSet<String> subscriptions; //The topic patterns which have been subscribed to.
+    private final StampedLock subscriptionsLock; //Lock for the subscriptions.
+
+    private volatile long lastSequence = -1; //The sequence number of the last message received from the server's journal, -1 if there has not been one.
+
+    private final HashMap<String, State> states; //The last version of each object sent with JConnServer.sendState, by key. Only used by the incoming thread.
+
     /**
-     * The duration of time in milliseconds between reconnection attempts.
+     * The duration of time in milliseconds before the first reconnection
+     * attempt. The interval doubles after each failed attempt, up to
+     * MAX_RECONNECT_INTERVAL.
      */
     public static int RECONNECT_INTERVAL = 1000;
 
+    /**
+     * The maximum duration of time in milliseconds between reconnection
+     * attempts.
+     */
+    public static int MAX_RECONNECT_INTERVAL = 30000;
+
+    /**
+     * The fraction of each reconnection interval which is randomised, so that
+     * clients which lost a server at the same time do not all retry at once.
+     * Must be between 0 and 1.
+     */
+    public static double RECONNECT_JITTER = 0.5;
+
+    /**
+     * The maximum number of requests which will be held while the connection
+     * is down. Once this is reached, sendData will throw an IOException until
+     * the connection is reestablished.
+     */
+    public static int OUTAGE_BUFFER_SIZE = 100;
+
+    /**
+     * The largest chunk a bulk transfer is sent in. Other messages can be
+     * sent between the chunks.
+     */
+    public static int BULK_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The number of items of a streamed result the server sends before it
+     * waits for the client to take some of them.
+     */
+    public static int STREAM_WINDOW = 64;
+
+    /**
+     * The largest frame a message is sent in. Larger messages are split into
+     * fragments, and messages of a higher priority can be sent between them.
+     */
+    public static int FRAGMENT_SIZE = 64 * 1024;
+
+    /**
+     * The size in bytes of each of the two ring buffers in the file of a
+     * shared memory connection, rounded up to a power of two. This must be
+     * changed before connecting.
+     */
+    public static int SHARED_MEMORY_SIZE = 1024 * 1024;
+
+    /**
+     * Indicates that threads waiting on a shared memory connection should
+     * spin rather than park. This gives the lowest latency, but each
+     * connection keeps a core busy on both sides.
+     */
+    public static boolean SHARED_MEMORY_SPIN = false;
+
+    /**
+     * The size in bytes of each segment of a server's journal, see
+     * JConnServer.openJournal. A message larger than this gets a segment of
+     * its own.
+     */
+    public static int JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The number of segments of a server's journal which are kept. Once there
+     * are more, the oldest is deleted.
+     */
+    public static int JOURNAL_SEGMENTS = 16;
+
+    /**
+     * The time in milliseconds a full segment of a server's journal is kept,
+     * or 0 to keep JOURNAL_SEGMENTS of them however old they are.
+     */
+    public static long JOURNAL_RETENTION = 0;
+
+    /**
+     * Indicates that each message written to a server's journal should be
+     * forced to disk before it is sent. Without this, the messages survive
+     * the server process dying, as they are in a memory mapped file, but may
+     * be lost if the machine fails.
+     */
+    public static boolean JOURNAL_SYNC = false;
+
+    /**
+     * The threads which run the JConnRunnables passed into sendData when a
+     * reply arrives. These are shared by all JConn objects.
+     */
+    private static final ExecutorService CALLBACKS = Executors.newCachedThreadPool((r) -> {
+        final Thread thread = new Thread(r, "JCONN-CALLBACK");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The thread which fails requests when their deadline passes, and sends
+     * the second copy of a hedged request from JConnPool. This is shared by
+     * all JConn objects.
+     */
+    static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor((r) -> {
+        final Thread thread = new Thread(r, "JCONN-TIMEOUT");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final ReconnectRunnable reconRun = new ReconnectRunnable();
 
-    private boolean retry;
+    private final JConnData keepAliveData = JConnData.create("KEEP_ALIVE").setType(JConnData.KEEP_ALIVE).setPriority(JConnData.PRIORITY_HIGH); //Reused for every keep-alive.
+
+    private volatile boolean retry; //Cleared only when the user cancels retrying, set again by connect.
 
     private boolean run;
 
     private boolean useKeepAlive;
 
+    private boolean replayOnReconnect;
+
     /**
      * Creates a new JConn object.
      */
     public JConn() {
-        incomingQueue = new HashMap<>();
+        incomingQueue = new JConnIdMap<>();
+        ids = new AtomicLong();
+        outageBuffer = new LinkedList<>();
         connected = false;
         queueLock = new StampedLock();
+        bufferLock = new StampedLock();
         listeners = new LinkedList<>();
         listenerLock = new StampedLock();
         retry = true;
+        compressionStats = new JConnCompressionStats();
+        channels = new JConnIdMap<>();
+        channelsLock = new StampedLock();
+        channelIds = new AtomicInteger();
+        groups = new ArrayList<>();
+        groupsLock = new StampedLock();
+        datagramsMissed = new AtomicLong();
+        subscriptions = new HashSet<>();
+        subscriptionsLock = new StampedLock();
+        states = new HashMap<>();
     }
 
     private void keepAlive() {
+        final JConnLink keepAliveLink = link;
         final Runnable keepAliveRun = new Runnable() {
             @Override
             public void run() {
-                while (run) {
+                while (run && keepAliveLink == link) { //Stop if the connection has been replaced by a reconnect.
                     try {
                         Thread.sleep(10000);
                     } catch (InterruptedException ex) {
                         Logger.getLogger(JConn.class.getName()).log(Level.SEVERE, null, ex);
                     }
                     try {
-                        out.writeObject(JConnData.create("KEEP_ALIVE").setType(JConnData.KEEP_ALIVE));
+                        write(keepAliveData);
                     } catch (IOException ex) {
                         connectionDown();
                     }
@@ -114,14 +277,14 @@ public class JConn {
      */
     private class IncomingThread extends Thread {
 
-        private final ObjectInputStream in;
+        private final JConnStream in;
 
         /**
          * Constructor which creates the IncomingThread.
          *
          * @param in the input stream where the data comes from. recognised.
          */
-        private IncomingThread(ObjectInputStream in) {
+        private IncomingThread(JConnStream in) {
             super("Incoming_Thread");
             this.in = in;
         }
@@ -139,40 +302,33 @@ public class JConn {
             try {
                 while (run) {
                     try {
-                        final JConnData data = (JConnData) in.readObject(); //Get the data
-                        final UUID uuid = data.getUuid(); //Get the UUID
+                        final JConnData data = in.read(); //Get the data
+                        methods.resolve(data); //Fill in the flag if it was sent as an id.
                         switch (data.getType()) {
                             case JConnData.RETURN:
                             case JConnData.EXCEPTION:
-                                //Check if this was a reply to a request.
-                                new Thread() {
-                                    @Override
-                                    public void run() {
-                                        boolean found = false;
-                                        Map.Entry remove = null;
-                                        while (!found) {
-                                            final long stamp = queueLock.readLock();
-                                            try {
-                                                for (Map.Entry me : incomingQueue.entrySet()) { //Loop through the waiting threads
-                                                    if (me.getKey().equals(uuid)) { //Check if the flag equals the flag on the blocked thread
-                                                        ((JConnRunnable) me.getValue()).run(data); //Unblock the thread.
-                                                        found = true;
-                                                        remove = me; //Keep a reference to the entry, so it can be removed.
-                                                        break;
-                                                    }
-                                                }
-                                            } finally {
-                                                queueLock.unlockRead(stamp);
-                                            }
-                                        }
-                                        final long writeStamp = queueLock.writeLock();
-                                        try {
-                                            incomingQueue.entrySet().remove(remove); //Remove the entry as it is no longer needed.
-                                        } finally {
-                                            queueLock.unlockWrite(writeStamp);
-                                        }
-                                    }
-                                }.start(); //Search the queue for the reqeust source.
+                            case JConnData.ILLEGAL_PARAM_LENGTH:
+                                complete(data.getId(), data); //Pass the reply to the thread which made the request.
+                                break;
+                            case JConnData.STREAM_ITEM:
+                                streamItem(data);
+                                break;
+                            case JConnData.STATE:
+                                state(data);
+                                break;
+                            case JConnData.PUBLISH:
+                                published(data);
+                                break;
+                            case JConnData.JOURNAL_START: //Where the subscriptions start in the journal.
+                                lastSequence = Math.max(lastSequence, data.getLongParam("SEQUENCE"));
+                                data.recycle();
+                                break;
+                            case JConnData.BATCH: //The replies to a batch of requests.
+                                for (JConnData reply : data.getBatch()) {
+                                    methods.resolve(reply);
+                                    complete(reply.getId(), reply);
+                                }
+                                data.recycle();
                                 break;
                             case JConnData.TERMINATE_CONNECTION: //If it was a request to terminate the connection.
                             {
@@ -192,30 +348,16 @@ public class JConn {
                                 break;
                             }
                             default: //If it is not known.
-                            {
-                                final JConnReceiveEvent event = new JConnReceiveEvent(data);
-                                final long stamp = listenerLock.readLock();
-                                try {
-                                    listeners.forEach((l) -> { //Alert the listeners of the data.
-                                        try {
-                                            l.onReceive(event);
-                                        } catch (Exception e) {
-                                            Logger.getLogger(JConn.class.getName()).log(Level.SEVERE, "Error passing data receive to listener", e);
-                                        }
-                                    });
-                                } finally {
-                                    listenerLock.unlockRead(stamp);
-                                }
+                                receive(data, 0);
                                 break;
-                            }
                         }
                     } catch (Exception ex) {
-                        if (ex instanceof SocketException) {
-                            throw (SocketException) ex;
+                        if (ex instanceof IOException) { //The stream can not be read from, the server has gone away.
+                            throw (IOException) ex;
                         }
                     }
                 }
-            } catch (SocketException ex) {
+            } catch (IOException ex) {
                 if (connected) {
                     connectionDown();
                 }
@@ -223,6 +365,270 @@ public class JConn {
         }
     }
 
+    /**
+     * Passes data which is not a reply to the listeners, or to the listeners
+     * of its channel.
+     *
+     * @param data the data.
+     * @param missed the number of datagrams which were lost before it, if it
+     * came in a datagram.
+     */
+    private void receive(JConnData data, long missed) {
+        final JConnReceiveEvent event = new JConnReceiveEvent(data);
+        event.setMissed(missed);
+        if (data.getChannel() != 0) { //It is for the listeners of a channel.
+            final JConnChannel channel;
+            final long stamp = channelsLock.readLock();
+            try {
+                channel = channels.get(data.getChannel());
+            } finally {
+                channelsLock.unlockRead(stamp);
+            }
+            if (channel != null) {
+                channel.receive(event);
+            }
+            return;
+        }
+        final long stamp = listenerLock.readLock();
+        try {
+            listeners.forEach((l) -> { //Alert the listeners of the data.
+                try {
+                    l.onReceive(event);
+                } catch (Exception e) {
+                    Logger.getLogger(JConn.class.getName()).log(Level.SEVERE, "Error passing data receive to listener", e);
+                }
+            });
+        } finally {
+            listenerLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Puts a version of an object sent with JConnServer.sendState back
+     * together and passes it to the listeners. If it was sent as the changes
+     * from a version this does not have, the server is asked for the whole of
+     * it.
+     *
+     * @param data the STATE message.
+     * @throws IOException if there was an error asking for the whole object.
+     * @throws ClassNotFoundException if the class of a value is not found.
+     */
+    private void state(JConnData data) throws IOException, ClassNotFoundException {
+        final String key = (String) data.getParam("KEY");
+        final long version = data.getLongParam("VERSION");
+        final long base = data.getLongParam("BASE");
+        byte[] bytes = (byte[]) data.getParam("BYTES");
+        data.recycle();
+        if (base != 0) { //It is the changes from the base version.
+            final State state = states.get(key);
+            try {
+                if (state == null || state.version != base) {
+                    throw new StreamCorruptedException("Version " + base + " of " + key + " is not held");
+                }
+                bytes = JConnDelta.apply(state.bytes, bytes);
+            } catch (IOException ex) { //The changes do not fit the version held.
+                states.remove(key);
+                write(JConnData.obtain("STATE_RESYNC").addParam("KEY", key).setType(JConnData.STATE_RESYNC).setPriority(JConnData.PRIORITY_HIGH));
+                return;
+            }
+        }
+        states.put(key, new State(version, bytes));
+        final JConnData full = JConnBinaryCodec.decode(bytes);
+        methods.resolve(full); //Fill in the flag if it was sent as an id.
+        receive(full, 0);
+    }
+
+    /**
+     * Handles a message which came in a datagram.
+     *
+     * @param data the message.
+     * @param missed the number of datagrams which were lost before it.
+     */
+    private void receiveDatagram(JConnData data, long missed) {
+        datagramsMissed.addAndGet(missed);
+        final JConnMethodTable table = methods;
+        if (table != null) {
+            table.resolve(data); //Fill in the flag if it was sent as an id.
+        }
+        receive(data, missed);
+    }
+
+    /**
+     * Starts listening for the pushes the server sends with
+     * JConnServer.sendDatagram. They go over UDP rather than the connection,
+     * so they are not held up behind other messages and are not resent if
+     * they are lost. They are passed to the listeners like other data, in
+     * the order they were sent, and JConnReceiveEvent.getMissed() has the
+     * number which were lost before each one. Any which arrive after a later
+     * one are dropped. The server is told the port again if the connection
+     * is reestablished.
+     *
+     * @throws IOException if the socket could not be opened, or the server
+     * could not be told about it.
+     */
+    public void openDatagrams() throws IOException {
+        if (datagrams == null) {
+            datagrams = JConnDatagrams.Receiver.unicast(this::receiveDatagram);
+        }
+        if (connected) {
+            write(datagramOpen());
+        }
+    }
+
+    /**
+     * Joins a multicast group, and passes the pushes the server sends to it
+     * with JConnServer.sendMulticast to the listeners. See openDatagrams().
+     *
+     * @param group the address of the group.
+     * @param port the port to receive on.
+     * @throws IOException if the group could not be joined.
+     */
+    public void joinMulticast(String group, int port) throws IOException {
+        final JConnDatagrams.Receiver receiver = JConnDatagrams.Receiver.multicast(group, port, this::receiveDatagram);
+        final long stamp = groupsLock.writeLock();
+        try {
+            groups.add(receiver);
+        } finally {
+            groupsLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the number of pushes sent over UDP which were lost.
+     *
+     * @return the number of datagrams.
+     */
+    public long getDatagramsMissed() {
+        return datagramsMissed.get();
+    }
+
+    /**
+     * Subscribes to the messages the server publishes to the topics which
+     * match a pattern, with JConnServer.publish. They are passed to the
+     * listeners, and JConnData.getTopic() has the topic each one was
+     * published to. A topic is made of segments separated by dots. A pattern
+     * can use * for any one segment and end with # for any number of
+     * segments, so "prices.*.ftse" and "prices.#" both match
+     * "prices.uk.ftse". The server applies subscriptions in order with the
+     * requests sent after them, and they are sent again if the connection is
+     * reestablished.
+     *
+     * @param pattern the pattern.
+     * @throws IOException if there was an error sending the subscription.
+     * @throws IllegalArgumentException if the pattern is not valid.
+     */
+    public void subscribe(String pattern) throws IOException {
+        JConnTopics.split(pattern, true);
+        final boolean send;
+        final long stamp = subscriptionsLock.writeLock();
+        try {
+            if (!subscriptions.add(pattern)) {
+                return;
+            }
+            send = connected; //Checked under the lock, else connect sends it with the others.
+        } finally {
+            subscriptionsLock.unlockWrite(stamp);
+        }
+        if (send) {
+            write(subscription(new String[]{pattern}, JConnData.SUBSCRIBE));
+        }
+    }
+
+    /**
+     * Unsubscribes from a topic pattern passed to subscribe(String).
+     *
+     * @param pattern the pattern.
+     * @throws IOException if there was an error sending the request.
+     */
+    public void unsubscribe(String pattern) throws IOException {
+        final boolean send;
+        final long stamp = subscriptionsLock.writeLock();
+        try {
+            if (!subscriptions.remove(pattern)) {
+                return;
+            }
+            send = connected;
+        } finally {
+            subscriptionsLock.unlockWrite(stamp);
+        }
+        if (send) {
+            write(subscription(new String[]{pattern}, JConnData.UNSUBSCRIBE));
+        }
+    }
+
+    /**
+     * Creates the message which subscribes to or unsubscribes from topic
+     * patterns. A subscription carries the sequence number to resume from in
+     * the server's journal, if there is one.
+     *
+     * @param patterns the patterns.
+     * @param type SUBSCRIBE or UNSUBSCRIBE.
+     * @return the message.
+     */
+    private JConnData subscription(String[] patterns, int type) {
+        final JConnData data = JConnData.create("SUBSCRIBE").addParam("PATTERNS", patterns);
+        if (type == JConnData.SUBSCRIBE && lastSequence >= 0) {
+            data.addLongParam("RESUME", lastSequence);
+        }
+        return data.setType(type).setPriority(JConnData.PRIORITY_HIGH); //After the parameters, as adding one makes it a request.
+    }
+
+    /**
+     * Get the sequence number of the last message received from a server
+     * with a journal, see JConnServer.openJournal. This is where the client
+     * resumes from when it reconnects.
+     *
+     * @return the sequence number, or -1 if the client has not subscribed to
+     * a server with a journal.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Sets the sequence number to resume from when subscribing to a server
+     * with a journal, so a client which saved getLastSequence() can carry on
+     * from there after it is restarted. This must be called before
+     * connecting.
+     *
+     * @param sequence the sequence number of the last message received, or
+     * -1 to start with the messages published after subscribing.
+     */
+    public void setLastSequence(long sequence) {
+        lastSequence = sequence;
+    }
+
+    /**
+     * Passes a message published to a topic to the listeners. A message from
+     * a journal which has already been received is dropped, as it may be sent
+     * again after a reconnect.
+     *
+     * @param data the message.
+     */
+    private void published(JConnData data) {
+        final long sequence = data.getSequence();
+        if (sequence == 0) { //The server does not have a journal.
+            receive(data, 0);
+            return;
+        }
+        if (sequence <= lastSequence) {
+            data.recycle();
+            return;
+        }
+        receive(data, 0);
+        lastSequence = sequence; //Once the listeners have it, so it is sent again if the connection drops first.
+    }
+
+    /**
+     * Creates the message which tells the server the port pushes sent over
+     * UDP should go to.
+     *
+     * @return the message.
+     */
+    private JConnData datagramOpen() {
+        return JConnData.create("DATAGRAM_OPEN").addIntParam("PORT", datagrams.getPort()).setType(JConnData.DATAGRAM_OPEN).setPriority(JConnData.PRIORITY_HIGH);
+    }
+
     /**
      * Method to open the connection to the server.
      *
@@ -232,20 +638,140 @@ public class JConn {
      * @throws IOException if there was an error connecting.
      */
     public void connect(String ip, int port, boolean keepAlive) throws IOException {
+        connect(() -> JConnLink.tcp(ip, port), ip + ":" + port, keepAlive);
+    }
+
+    /**
+     * Method to open the connection to a server on the same machine over a
+     * Unix domain socket, which skips the TCP loopback stack. The server must
+     * have been started with JConnServer.startUnix. Needs Java 16 or later.
+     *
+     * @param path the path of the socket file the server is listening on.
+     * @param keepAlive Specifies if keep-alive should be enabled.
+     * @throws IOException if there was an error connecting, or Unix domain
+     * sockets are not supported.
+     */
+    public void connectUnix(String path, boolean keepAlive) throws IOException {
+        connect(() -> JConnLink.unix(path), path, keepAlive);
+    }
+
+    /**
+     * Method to open the connection to a server on the same machine over a
+     * Unix domain socket.
+     *
+     * Keep-alive will be disabled.
+     *
+     * @param path the path of the socket file the server is listening on.
+     * @throws IOException if there was an error connecting, or Unix domain
+     * sockets are not supported.
+     */
+    public void connectUnix(String path) throws IOException {
+        connectUnix(path, false);
+    }
+
+    /**
+     * Method to open the connection to a server on the same machine through
+     * shared memory. The server must have been started with
+     * JConnServer.startShared on the same directory. Messages are passed
+     * through ring buffers in a memory mapped file, without any calls into
+     * the kernel. See SHARED_MEMORY_SIZE and SHARED_MEMORY_SPIN.
+     *
+     * @param dir the directory the server is watching.
+     * @param keepAlive Specifies if keep-alive should be enabled.
+     * @throws IOException if there was an error connecting, or the server did
+     * not accept the connection.
+     */
+    public void connectShared(String dir, boolean keepAlive) throws IOException {
+        connect(() -> JConnSharedMemory.connect(dir), "shm:" + dir, keepAlive);
+    }
+
+    /**
+     * Method to open the connection to a server on the same machine through
+     * shared memory.
+     *
+     * Keep-alive will be disabled.
+     *
+     * @param dir the directory the server is watching.
+     * @throws IOException if there was an error connecting, or the server did
+     * not accept the connection.
+     */
+    public void connectShared(String dir) throws IOException {
+        connectShared(dir, false);
+    }
+
+    /**
+     * Method to open the connection to a server in the same JVM, which was
+     * started with JConnServer.startLocal. Nothing goes through a socket. The
+     * messages are passed by reference, so the server and the client share
+     * the objects in the parameters and return values, and neither should
+     * change them once they are sent.
+     *
+     * @param name the name the server was started with.
+     * @throws IOException if there is no server with the name.
+     */
+    public void connectLocal(String name) throws IOException {
+        connectLocal(name, false);
+    }
+
+    /**
+     * Method to open the connection to a server in the same JVM.
+     *
+     * @param name the name the server was started with.
+     * @param copy true if each message should be encoded and decoded with the
+     * codec for its flag, so the server and client do not share objects, as
+     * over a socket. False if the messages should be passed by reference.
+     * @throws IOException if there is no server with the name.
+     */
+    public void connectLocal(String name, boolean copy) throws IOException {
+        connect(() -> JConnLink.local(name, copy), "local:" + name, false);
+    }
+
+    /**
+     * Opens the connection to the server.
+     *
+     * @param dialer opens the link to the server.
+     * @param address the address of the server.
+     * @param keepAlive Specifies if keep-alive should be enabled.
+     * @throws IOException if there was an error connecting.
+     */
+    private void connect(JConnLink.Dialer dialer, String address, boolean keepAlive) throws IOException {
         if (connected) {
             throw new IOException("There is already an active connection on this JConn object. Close this connection or create a new instance of the JConn class");
         }
-        socket = new Socket(ip, port);
-        connected = true;
-        this.ip = ip;
-        this.port = port;
+        link = dialer.dial();
+        this.dialer = dialer;
+        this.address = address;
         this.useKeepAlive = keepAlive;
         retry = true;
-        out = new ObjectOutputStream(socket.getOutputStream());
-        out.flush();
-        in = new ObjectInputStream(socket.getInputStream());
+        stream = link.open(compressionStats);
+        stream.setBulkReceiver(bulkReceiver);
+        try {
+            stream.offer(); //Agree the codecs with the server.
+            final JConnData handshake = stream.read(); //The server sends its method table first.
+            if (handshake.getType() != JConnData.HANDSHAKE) {
+                throw new IOException("The server did not send a handshake");
+            }
+            methods = JConnMethodTable.fromHandshake(handshake);
+            if (datagrams != null) { //Tell the server where to send pushes over UDP.
+                write(datagramOpen());
+            }
+            final long stamp = subscriptionsLock.readLock();
+            try {
+                if (!subscriptions.isEmpty()) { //Subscribe again, as the server has forgotten them.
+                    write(subscription(subscriptions.toArray(new String[subscriptions.size()]), JConnData.SUBSCRIBE));
+                }
+                connected = true; //Only once the handshake is done, so nothing else is written before the codecs and method table are agreed.
+            } finally {
+                subscriptionsLock.unlockRead(stamp);
+            }
+        } catch (ClassNotFoundException | ClassCastException | IOException ex) {
+            connected = false;
+            link.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("The server did not send a valid handshake", ex);
+        }
         run = true;
-        inc = new IncomingThread(in);
+        states.clear(); //The server sends the whole of each object to a new connection.
+        inc = new IncomingThread(stream);
         inc.start();
         if (keepAlive) {
             keepAlive();
@@ -269,7 +795,9 @@ public class JConn {
      * Method to send data to the server. This method will execute the runnable
      * that is passed in on a successful reply from the server. The calling
      * thread will continue with its execution regardless. If the connection to
-     * the server has not yet been opened, an IOException will be thrown.
+     * the server has not yet been opened, an IOException will be thrown. If the
+     * connection has dropped and is being reestablished, the request is held
+     * until it is back up.
      *
      * @param data the data to send.
      * @param run the runnable to execute on a successful response.
@@ -277,100 +805,509 @@ public class JConn {
      * @throws IOException if there was an error sending the data.
      */
     public JConnStatus sendData(JConnData data, JConnRunnable run) throws IOException {
-        if (!connected) {
-            throw new IOException("No connection to server!");
-        }
         final JConnStatus status = new JConnStatus();
-        try {
-            out.writeObject(data);
-            status.setSent(true);
-            final ReturnData returnData = new ReturnData();
-            //Create the runnable that will execute on a reply
-            final JConnRunnable runnable = (tempReply) -> {
-                returnData.object = tempReply;
-                returnData.cont = true;
-            };
-            final long stamp = queueLock.writeLock();
-            try {
-                incomingQueue.put(data.getUuid(), runnable); //Add the runnable to the queue
-            } finally {
-                queueLock.unlockWrite(stamp);
-            }
-            final Runnable runReturn = () -> {
-                waitHere(returnData); //Wait for the return;
-                status.setReceived(true);
-                JConnData reply = (JConnData) returnData.object; //Get the reply
-                if (reply.getFlag().equals("ILLEGAL_PARAM_LENGTH")) { //Check if there was an illegal paramter length
-                    //throw new IOException("Illegal parameter length, the correct number of parameters was not supplied");
-                    return;
-                }
-                run.run(reply); //Run the runnable that was passed in by the user, passing in the reply.
-            };
-            final Thread thread = new Thread(runReturn, "REQUEST-" + data.getUuid());
-            thread.start(); //Start the thread to wait for the reply.
-            return status;
-        } catch (IOException ex) {
-            connectionDown();
-            throw ex;
-        }
+        status.setSent(send(new PendingRequest(data, run, status)));
+        return status;
     }
 
     /**
      * Method to send data to the server. This will block the calling thread
      * until there has been a successful reply from the server. If the
      * connection to the server has not yet been opened, an IOException will be
-     * thrown.
+     * thrown. If the connection has dropped and is being reestablished, the
+     * request is held until it is back up.
      *
      * @param data the data to send.
      * @return the reply from the server as an Object.
      * @throws IOException if there was an error sending the data.
      */
     public Object sendData(JConnData data) throws IOException, Throwable {
-        if (!connected) {
-            throw new IOException("No connection to server!");
+        if (data.getDeadline() != 0) { //Wait no longer than the deadline.
+            return await(sendAsync(data));
+        }
+        final PendingRequest pending = new PendingRequest(data, null, null);
+        send(pending);
+        final JConnData reply;
+        try {
+            reply = pending.await(); //Wait here until a reply is received
+        } catch (InterruptedException ex) {
+            removePending(data.getId());
+            throw ex;
         }
         try {
-            out.writeObject(data);
-            JConnData reply;
-            final ReturnData returnData = new ReturnData();
-            //Create the runnable that will be executed on a reply
-            final JConnRunnable runnable = (tempReply) -> {
-                returnData.object = tempReply;
-                returnData.cont = true;
-            };
-            final long stamp = queueLock.writeLock();
-            try {
-                incomingQueue.put(data.getUuid(), runnable); //Add the runnable to the queue
-            } finally {
-                queueLock.unlockWrite(stamp);
-            }
-            waitHere(returnData); //Wait here until a reply is received
-            reply = (JConnData) returnData.object; //Get the reply
             if (reply.getType() == JConnData.ILLEGAL_PARAM_LENGTH) { //Check if it is an illegal parameter length
                 throw new IOException("Illegal parameter length, the correct number of parameters was not supplied");
             } else if (reply.getType() == JConnData.EXCEPTION) {
                 throw reply.getException();
             }
             return reply.getReturnValue(); //Return the reply
-        } catch (IOException ex) {
-            connectionDown();
-            throw ex;
+        } finally {
+            reply.recycle(); //The reply is not passed out, so it can be reused.
         }
     }
 
     /**
-     * Method to wait until a reply is received.
+     * Method to send data to the server. This will block the calling thread
+     * until there has been a reply from the server or the timeout has passed.
+     * The timeout is sent with the request, so the server does not start work
+     * on it once the timeout has passed, and it is told to stop if it has
+     * already started.
      *
-     * @param ret the object to wait on.
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     * @throws TimeoutException if there was no reply in time.
      */
-    private void waitHere(ReturnData ret) {
-        try {
-            while (!ret.cont) {
-                Thread.sleep(50); //Wait until a reply has been received
-            }
-        } catch (InterruptedException ex) {
-            Logger.getLogger(JConn.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    public Object sendData(JConnData data, long timeout, TimeUnit unit) throws IOException, TimeoutException, Throwable {
+        return await(sendAsync(data, timeout, unit));
+    }
+
+    /**
+     * Method to send data to the server without waiting for the reply. The
+     * CompletableFuture completes with the reply from the server, or
+     * exceptionally with the exception from the server. If the request has a
+     * timeout, see JConnData.setTimeout(long, TimeUnit), it completes with a
+     * TimeoutException when the timeout passes. Cancelling the
+     * CompletableFuture, or its timeout passing, tells the server to stop
+     * work on the request.
+     *
+     * @param data the data to send.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data) throws IOException {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        if (data.isExpired()) { //Do not send it if nobody will wait for the reply.
+            future.completeExceptionally(new TimeoutException("No reply to " + data.getFlag() + " before the deadline"));
+            return future;
+        }
+        send(new PendingRequest(data, future));
+        watch(data, future);
+        return future;
+    }
+
+    /**
+     * Method to send several requests to the server in one message. The
+     * server runs them in parallel and sends all the replies back in one
+     * message, so there is one round trip rather than one for each request.
+     * Each request has its own CompletableFuture, which behaves as one from
+     * sendAsync(JConnData), including timeouts and cancellation. A method
+     * which returns a Stream or Iterator has its items collected into a List.
+     *
+     * @param requests the requests.
+     * @return the CompletableFutures for the replies, in the same order as
+     * the requests.
+     * @throws IOException if there was an error sending the requests.
+     */
+    public List<CompletableFuture<Object>> sendBatch(List<JConnData> requests) throws IOException {
+        final List<CompletableFuture<Object>> futures = new ArrayList<>(requests.size());
+        final List<PendingRequest> pending = new ArrayList<>(requests.size());
+        int priority = JConnData.PRIORITY_LOW;
+        for (JConnData data : requests) {
+            final CompletableFuture<Object> future = new CompletableFuture<>();
+            futures.add(future);
+            if (data.isExpired()) { //Do not send it if nobody will wait for the reply.
+                future.completeExceptionally(new TimeoutException("No reply to " + data.getFlag() + " before the deadline"));
+                continue;
+            }
+            pending.add(new PendingRequest(data, future));
+            priority = Math.max(priority, data.getPriority()); //The batch goes in the lane of its most urgent request.
+        }
+        if (pending.isEmpty()) {
+            return futures;
+        }
+        for (PendingRequest p : pending) {
+            register(p);
+        }
+        final boolean buffered;
+        final long bufferStamp = bufferLock.writeLock();
+        try {
+            buffered = reconnecting;
+            if (buffered) {
+                if (outageBuffer.size() + pending.size() > OUTAGE_BUFFER_SIZE) {
+                    pending.forEach((p) -> removePending(p.data.getId()));
+                    throw new IOException("No connection to server and the outage buffer is full!");
+                }
+                pending.forEach((p) -> outageBuffer.add(p.data)); //Hold the requests until the connection is reestablished, they are sent one at a time.
+            }
+        } finally {
+            bufferLock.unlockWrite(bufferStamp);
+        }
+        if (!buffered) {
+            if (!connected) {
+                pending.forEach((p) -> removePending(p.data.getId()));
+                throw new IOException("No connection to server!");
+            }
+            final JConnData[] batch = new JConnData[pending.size()];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = pending.get(i).data;
+            }
+            try {
+                write(JConnData.create("BATCH").setBatch(batch).setType(JConnData.BATCH).setPriority(priority));
+            } catch (IOException ex) {
+                pending.forEach((p) -> removePending(p.data.getId()));
+                connectionDown();
+                throw ex;
+            }
+        }
+        for (PendingRequest p : pending) {
+            watch(p.data, p.future);
+        }
+        return futures;
+    }
+
+    /**
+     * Fails a CompletableFuture from sendAsync with a TimeoutException when
+     * the deadline of its request passes, and abandons the request if it
+     * times out or is cancelled.
+     *
+     * @param data the request.
+     * @param future the CompletableFuture.
+     */
+    private void watch(JConnData data, CompletableFuture<Object> future) {
+        if (data.getDeadline() != 0) {
+            final ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> {
+                future.completeExceptionally(new TimeoutException("No reply to " + data.getFlag() + " before the deadline"));
+            }, data.getTimeRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            future.whenComplete((value, ex) -> timer.cancel(false));
+        }
+        future.whenComplete((value, ex) -> {
+            if (ex instanceof CancellationException || ex instanceof TimeoutException) {
+                abandon(data); //The caller has given up on the reply.
+            }
+        });
+    }
+
+    /**
+     * Method to send data to the server without waiting for the reply, with a
+     * timeout. See sendAsync(JConnData).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data, long timeout, TimeUnit unit) throws IOException {
+        return sendAsync(data.setTimeout(timeout, unit));
+    }
+
+    /**
+     * Waits for a CompletableFuture from sendAsync and returns its value, or
+     * throws the exception it failed with. If the thread is interrupted while
+     * waiting the request is cancelled.
+     *
+     * @param future the CompletableFuture.
+     * @return the reply from the server.
+     * @throws Throwable the exception from the server, or a TimeoutException.
+     */
+    private static Object await(CompletableFuture<Object> future) throws Throwable {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Stops waiting for the reply to a request and tells the server it is not
+     * wanted. If the request is being held until the connection is back up,
+     * it is not sent at all.
+     *
+     * @param data the request.
+     */
+    private void abandon(JConnData data) {
+        removePending(data.getId());
+        final long stamp = bufferLock.writeLock();
+        try {
+            if (outageBuffer.remove(data)) {
+                return;
+            }
+        } finally {
+            bufferLock.unlockWrite(stamp);
+        }
+        final JConnData cancel = JConnData.obtain(data.getFlag()).setId(data.getId()).setType(JConnData.REQUEST_CANCEL).setPriority(JConnData.PRIORITY_HIGH);
+        try {
+            if (connected) {
+                write(cancel);
+            }
+        } catch (IOException ex) {
+            //The connection drop is handled by the incoming thread.
+        } finally {
+            cancel.recycle();
+        }
+    }
+
+    /**
+     * Method to send a request to a server method which returns a Stream or an
+     * Iterator. The items are sent as they are produced and can be consumed
+     * as they arrive, so the whole result does not have to be held in memory
+     * on either side. The server only sends STREAM_WINDOW items ahead of the
+     * ones which have been taken. Closing the Stream before the end cancels
+     * the rest of the result on the server. If the server throws an exception
+     * it is thrown from the Stream, wrapped in a RuntimeException if it is
+     * checked.
+     *
+     * @param data the data to send.
+     * @return a Stream of the items.
+     * @throws IOException if there was an error sending the data.
+     */
+    public Stream<Object> sendStream(JConnData data) throws IOException {
+        final IncomingStream items = new IncomingStream(data);
+        send(new PendingRequest(data, null, null, items));
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(items, Spliterator.ORDERED), false).onClose(items::cancel);
+    }
+
+    /**
+     * Passes an item of a streamed result to the stream it is for.
+     *
+     * @param data the item.
+     */
+    private void streamItem(JConnData data) {
+        final PendingRequest pending;
+        final long stamp = queueLock.readLock();
+        try {
+            pending = incomingQueue.get(data.getId());
+        } finally {
+            queueLock.unlockRead(stamp);
+        }
+        if (pending != null && pending.stream != null) {
+            pending.stream.add(data.getReturnValue());
+        }
+        data.recycle();
+    }
+
+    /**
+     * Registers the request for the reply, then either writes it or, if the
+     * connection is being reestablished, holds it in the outage buffer until
+     * the connection is back up.
+     *
+     * @param pending the request to send.
+     * @return true if the request was written, false if it was buffered.
+     * @throws IOException if there is no connection and the request could not
+     * be buffered, or if there was an error writing the request.
+     */
+    private boolean send(PendingRequest pending) throws IOException {
+        final JConnData data = pending.data;
+        final long id = register(pending);
+        final long bufferStamp = bufferLock.writeLock();
+        try {
+            if (reconnecting) {
+                if (outageBuffer.size() >= OUTAGE_BUFFER_SIZE) {
+                    removePending(id);
+                    throw new IOException("No connection to server and the outage buffer is full!");
+                }
+                outageBuffer.add(data); //Hold the request until the connection is reestablished.
+                return false;
+            }
+        } finally {
+            bufferLock.unlockWrite(bufferStamp);
+        }
+        if (!connected) {
+            removePending(id);
+            throw new IOException("No connection to server!");
+        }
+        try {
+            write(data);
+            return true;
+        } catch (IOException ex) {
+            removePending(id);
+            connectionDown();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gives a request its id and adds it to the queue. This is done before it
+     * goes out, so the reply can not be missed.
+     *
+     * @param pending the request.
+     * @return the id.
+     */
+    private long register(PendingRequest pending) {
+        final long id = ids.incrementAndGet();
+        pending.data.setId(id);
+        final long stamp = queueLock.writeLock();
+        try {
+            incomingQueue.put(id, pending);
+        } finally {
+            queueLock.unlockWrite(stamp);
+        }
+        return id;
+    }
+
+    /**
+     * Writes data to the output stream. Large messages are sent in fragments,
+     * with messages of a higher priority sent in between.
+     *
+     * @param data the data to write.
+     * @throws IOException if there was an error writing the data.
+     */
+    private void write(JConnData data) throws IOException {
+        methods.bind(data); //Send the flag as an id if the server has a method for it.
+        if (data.getType() == JConnData.BATCH) {
+            for (JConnData request : data.getBatch()) {
+                methods.bind(request);
+            }
+        }
+        stream.write(data);
+    }
+
+    /**
+     * Removes a request from the queue and passes the reply to the runnable
+     * which is waiting on it. If the request has already been completed, the
+     * reply is ignored.
+     *
+     * @param id the id of the request.
+     * @param reply the reply.
+     */
+    private void complete(long id, JConnData reply) {
+        final PendingRequest pending;
+        final long stamp = queueLock.writeLock();
+        try {
+            pending = incomingQueue.remove(id);
+        } finally {
+            queueLock.unlockWrite(stamp);
+        }
+        if (pending != null) {
+            pending.complete(reply); //Unblock the thread.
+        }
+    }
+
+    /**
+     * Removes a request from the queue without completing it.
+     *
+     * @param id the id of the request.
+     */
+    private void removePending(long id) {
+        final long stamp = queueLock.writeLock();
+        try {
+            incomingQueue.remove(id);
+        } finally {
+            queueLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sends part of a file to the server as a bulk transfer. The file is sent
+     * in chunks straight from the file, so it does not have to fit in memory,
+     * and other requests can be sent while it is going. The server passes the
+     * chunks to its JConnBulkReceiver as they arrive. This method blocks until
+     * the whole transfer has been sent.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @param source the file.
+     * @param position where in the file to start.
+     * @param count the number of bytes to send.
+     * @throws IOException if there was an error sending the transfer.
+     */
+    public void sendBulk(JConnData header, FileChannel source, long position, long count) throws IOException {
+        final long id = startBulk(header);
+        boolean complete = false;
+        try {
+            stream.sendBulk(id, source, position, count);
+            complete = true;
+        } catch (IOException ex) {
+            connectionDown();
+            throw ex;
+        } finally {
+            endBulk(header, id, complete);
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer to the server as a bulk transfer.
+     * The server passes the chunks to its JConnBulkReceiver as they arrive.
+     * This method blocks until the whole transfer has been sent.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @param source the bytes. Its position is moved to its limit.
+     * @throws IOException if there was an error sending the transfer.
+     */
+    public void sendBulk(JConnData header, ByteBuffer source) throws IOException {
+        final long id = startBulk(header);
+        boolean complete = false;
+        try {
+            stream.sendBulk(id, source);
+            complete = true;
+        } catch (IOException ex) {
+            connectionDown();
+            throw ex;
+        } finally {
+            endBulk(header, id, complete);
+        }
+    }
+
+    /**
+     * Sends the BULK_START message for a bulk transfer.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @return the id of the transfer.
+     * @throws IOException if there was an error sending the message.
+     */
+    private long startBulk(JConnData header) throws IOException {
+        if (!connected) {
+            throw new IOException("No connection to server!");
+        }
+        final long id = ids.incrementAndGet();
+        header.setId(id).setType(JConnData.BULK_START);
+        try {
+            write(header);
+        } catch (IOException ex) {
+            connectionDown();
+            throw ex;
+        }
+        return id;
+    }
+
+    /**
+     * Sends the BULK_END message for a bulk transfer. If the transfer did not
+     * complete the connection may have gone, so errors are ignored.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @param id the id of the transfer.
+     * @param complete true if all the bytes were sent.
+     * @throws IOException if there was an error sending the message for a
+     * complete transfer.
+     */
+    private void endBulk(JConnData header, long id, boolean complete) throws IOException {
+        try {
+            write(JConnData.obtain(header.getFlag()).setId(id).setReturnValue(complete).setType(JConnData.BULK_END));
+        } catch (IOException ex) {
+            if (complete) {
+                connectionDown();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Sets the receiver for bulk transfers sent by the server.
+     *
+     * @param receiver the receiver, or null to discard them.
+     */
+    public void setBulkReceiver(JConnBulkReceiver receiver) {
+        this.bulkReceiver = receiver;
+        final JConnStream s = stream;
+        if (s != null) {
+            s.setBulkReceiver(receiver);
+        }
+    }
+
+    /**
+     * Completes a request with an IOException, so the caller does not wait
+     * forever for a reply which will never arrive.
+     *
+     * @param data the request.
+     * @param message the message for the exception.
+     */
+    private void fail(JConnData data, String message) {
+        complete(data.getId(), JConnData.replyTo(data).setException(new IOException(message)).setType(JConnData.EXCEPTION));
     }
 
     /**
@@ -380,11 +1317,31 @@ public class JConn {
      */
     public void endConnection() throws IOException {
         connected = false;
-        socket.close();
+        link.close();
         run = false;
-        in.close();
-        out.flush();
-        out.close();
+        stream.close();
+        if (datagrams != null) {
+            datagrams.close();
+            datagrams = null;
+        }
+        final long stamp = groupsLock.writeLock();
+        try {
+            groups.forEach(JConnDatagrams.Receiver::close);
+            groups.clear();
+        } finally {
+            groupsLock.unlockWrite(stamp);
+        }
+        releaseUnanswered(); //Nothing else will arrive, so do not leave any callers waiting.
+    }
+
+    /**
+     * Get the compression counts for this connection, including any previous
+     * connections made by this object.
+     *
+     * @return the JConnCompressionStats.
+     */
+    public JConnCompressionStats getCompressionStats() {
+        return compressionStats;
     }
 
     /**
@@ -401,6 +1358,56 @@ public class JConn {
         }
     }
 
+    /**
+     * Removes a JConnListener so it no longer receives JConnEvents.
+     *
+     * @param listener the JConnListener.
+     */
+    public void removeListener(JConnListener listener) {
+        final long stamp = listenerLock.writeLock();
+        try {
+            listeners.remove(listener);
+        } finally {
+            listenerLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Opens a logical channel on this connection. A channel shares the socket
+     * and threads of the connection, but has its own listeners, which receive
+     * only the messages the server sends on the channel, and its own limit on
+     * the requests waiting for a reply. The server runs the requests on a
+     * channel one at a time, in the order they were sent.
+     *
+     * @param window the number of requests which can be waiting for a reply
+     * before sending another blocks.
+     * @return the channel.
+     */
+    public JConnChannel openChannel(int window) {
+        final JConnChannel channel = new JConnChannel(this, channelIds.incrementAndGet(), window);
+        final long stamp = channelsLock.writeLock();
+        try {
+            channels.put(channel.getId(), channel);
+        } finally {
+            channelsLock.unlockWrite(stamp);
+        }
+        return channel;
+    }
+
+    /**
+     * Removes a channel which has been closed.
+     *
+     * @param channel the channel.
+     */
+    void closeChannel(JConnChannel channel) {
+        final long stamp = channelsLock.writeLock();
+        try {
+            channels.remove(channel.getId());
+        } finally {
+            channelsLock.unlockWrite(stamp);
+        }
+    }
+
     /**
      * Stop retrying the connection when the connection to the server is
      * dropped.
@@ -409,6 +1416,34 @@ public class JConn {
         retry = false;
     }
 
+    /**
+     * Specifies if requests which were marked as idempotent and had not been
+     * replied to when the connection dropped should be sent again once the
+     * connection is reestablished. Requests which are not idempotent always
+     * fail with an IOException when the connection drops. This is disabled by
+     * default.
+     *
+     * @param replay true to replay idempotent requests, false to fail them.
+     */
+    public void setReplayOnReconnect(boolean replay) {
+        this.replayOnReconnect = replay;
+    }
+
+    /**
+     * Get the number of requests which have been sent and are waiting for a
+     * reply.
+     *
+     * @return the number of requests.
+     */
+    public int getInFlight() {
+        final long stamp = queueLock.readLock();
+        try {
+            return incomingQueue.size();
+        } finally {
+            queueLock.unlockRead(stamp);
+        }
+    }
+
     /**
      * Check the state of this connection.
      *
@@ -425,21 +1460,268 @@ public class JConn {
      */
     @Override
     public String toString() {
-        return (this.connected ? "Connected to " + ip + ":" + port : "No connection");
+        return (this.connected ? "Connected to " + address : "No connection");
+    }
+
+    /**
+     * The last version of an object sent with JConnServer.sendState.
+     */
+    private static class State {
+
+        private final long version;
+        private final byte[] bytes; //The object encoded with the binary codec.
+
+        private State(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Class which holds a request which is waiting for a reply. The thread
+     * which made the request waits on this object until the reply arrives, or
+     * if a runnable was given it is run on a callback thread.
+     */
+    private static class PendingRequest {
+
+        private final JConnData data; //The request.
+        private final JConnRunnable runnable; //The runnable to execute on a reply, null if a thread is waiting.
+        private final JConnStatus status; //The status of the request, null if a thread is waiting.
+        private final IncomingStream stream; //The stream the items are passed to, null if the result is not streamed.
+        private final CompletableFuture<Object> future; //The future to complete, null if it was not sent with sendAsync.
+        private JConnData reply; //The reply, null until it has been received.
+
+        private PendingRequest(JConnData data, JConnRunnable runnable, JConnStatus status) {
+            this(data, runnable, status, null, null);
+        }
+
+        private PendingRequest(JConnData data, JConnRunnable runnable, JConnStatus status, IncomingStream stream) {
+            this(data, runnable, status, stream, null);
+        }
+
+        private PendingRequest(JConnData data, CompletableFuture<Object> future) {
+            this(data, null, null, null, future);
+        }
+
+        private PendingRequest(JConnData data, JConnRunnable runnable, JConnStatus status, IncomingStream stream, CompletableFuture<Object> future) {
+            this.data = data;
+            this.runnable = runnable;
+            this.status = status;
+            this.stream = stream;
+            this.future = future;
+        }
+
+        /**
+         * Passes the reply to the thread which is waiting, or runs the
+         * runnable with it.
+         *
+         * @param reply the reply.
+         */
+        private void complete(JConnData reply) {
+            if (stream != null) {
+                stream.end(reply);
+                return;
+            }
+            if (future != null) {
+                if (reply.getType() == JConnData.ILLEGAL_PARAM_LENGTH) {
+                    future.completeExceptionally(new IOException("Illegal parameter length, the correct number of parameters was not supplied"));
+                } else if (reply.getType() == JConnData.EXCEPTION) {
+                    future.completeExceptionally(reply.getException());
+                } else {
+                    future.complete(reply.getReturnValue());
+                }
+                reply.recycle(); //The reply is not passed out, so it can be reused.
+                return;
+            }
+            if (runnable == null) {
+                synchronized (this) {
+                    this.reply = reply;
+                    notifyAll();
+                }
+                return;
+            }
+            status.setReceived(true);
+            if (reply.getType() == JConnData.ILLEGAL_PARAM_LENGTH) { //Check if there was an illegal paramter length
+                return;
+            }
+            CALLBACKS.execute(() -> runnable.run(reply)); //Run the runnable that was passed in by the user, passing in the reply.
+        }
+
+        /**
+         * Waits until the reply is received.
+         *
+         * @return the reply.
+         * @throws InterruptedException if the thread is interrupted while
+         * waiting.
+         */
+        private synchronized JConnData await() throws InterruptedException {
+            while (reply == null) {
+                wait();
+            }
+            return reply;
+        }
     }
 
     /**
-     * Class which holds the return data and the flag.
+     * The items of a streamed result. The incoming thread adds the items as
+     * they arrive and the caller takes them through the Iterator. Each time
+     * half of STREAM_WINDOW items have been taken, or the caller has to wait
+     * for more, the server is told how many have been taken so it can send
+     * more.
      */
-    private class ReturnData {
+    private class IncomingStream implements Iterator<Object> {
+
+        private final JConnData request; //The request the items are for.
+        private final ArrayDeque<Object> items; //The items which have arrived but not been taken.
+        private JConnData end; //The RETURN or EXCEPTION reply which ends the stream, null until it arrives.
+        private boolean cancelled;
+        private int taken; //The number of items taken which the server has not been told about.
+
+        private IncomingStream(JConnData request) {
+            this.request = request;
+            this.items = new ArrayDeque<>();
+        }
+
+        /**
+         * Adds an item which has arrived.
+         *
+         * @param item the item.
+         */
+        private synchronized void add(Object item) {
+            if (!cancelled) {
+                items.add(item == null ? request : item); //ArrayDeque does not take null, so the request stands in for it.
+                notifyAll();
+            }
+        }
+
+        /**
+         * Ends the stream.
+         *
+         * @param reply the RETURN or EXCEPTION reply from the server.
+         */
+        private synchronized void end(JConnData reply) {
+            end = reply;
+            notifyAll();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                final int credit;
+                synchronized (this) {
+                    if (!items.isEmpty()) {
+                        return true;
+                    }
+                    if (end != null || cancelled) {
+                        break;
+                    }
+                    if (taken == 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            cancel();
+                            throw new UncheckedIOException(new InterruptedIOException("Interrupted while waiting for a streamed result"));
+                        }
+                        continue;
+                    }
+                    credit = taken; //Tell the server before waiting, or it may be waiting too.
+                    taken = 0;
+                }
+                sendCredit(credit);
+            }
+            if (end != null && end.getType() != JConnData.RETURN) {
+                final Throwable ex = end.getType() == JConnData.EXCEPTION ? end.getException() : new IOException("Illegal parameter length, the correct number of parameters was not supplied");
+                if (ex instanceof RuntimeException) {
+                    throw (RuntimeException) ex;
+                } else if (ex instanceof Error) {
+                    throw (Error) ex;
+                } else if (ex instanceof IOException) {
+                    throw new UncheckedIOException((IOException) ex);
+                }
+                throw new RuntimeException(ex);
+            }
+            return false;
+        }
 
-        private Object object; //The reply.
-        private boolean cont = false; //This flag indicates when the reply has been received.
+        @Override
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Object item;
+            int credit = 0;
+            synchronized (this) {
+                item = items.poll();
+                if (++taken >= Math.max(1, STREAM_WINDOW / 2)) {
+                    credit = taken;
+                    taken = 0;
+                }
+            }
+            if (credit > 0) {
+                sendCredit(credit);
+            }
+            return item == request ? null : item;
+        }
+
+        /**
+         * Tells the server that items have been taken.
+         *
+         * @param credit the number of items.
+         */
+        private void sendCredit(int credit) {
+            sendControl(JConnData.obtain(request.getFlag()).setId(request.getId()).setReturnValue(credit).setType(JConnData.STREAM_CREDIT).setPriority(JConnData.PRIORITY_HIGH));
+        }
+
+        /**
+         * Stops the stream. If it has not ended, the server is told to stop
+         * sending the items. Called when the Stream is closed.
+         */
+        private void cancel() {
+            synchronized (this) {
+                if (end != null || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                items.clear();
+                notifyAll();
+            }
+            sendControl(JConnData.obtain(request.getFlag()).setId(request.getId()).setType(JConnData.STREAM_CANCEL).setPriority(JConnData.PRIORITY_HIGH));
+        }
+
+        /**
+         * Sends a message about the stream to the server. If the connection
+         * has gone the stream is ended by the incoming thread, so errors are
+         * ignored.
+         *
+         * @param data the message.
+         */
+        private void sendControl(JConnData data) {
+            try {
+                if (connected) {
+                    write(data);
+                }
+            } catch (IOException ex) {
+                //The connection drop is handled by the incoming thread.
+            } finally {
+                data.recycle();
+            }
+        }
     }
 
     private void connectionDown() {
         connected = false;
         run = false;
+        final long bufferStamp = bufferLock.writeLock();
+        try {
+            if (reconnecting) { //The connection drop has already been handled.
+                return;
+            }
+            reconnecting = retry;
+        } finally {
+            bufferLock.unlockWrite(bufferStamp);
+        }
+        releaseUnanswered();
         final long stamp = listenerLock.readLock();
         try {
             listeners.forEach((l) -> { //Alert the listeners of the connection loss
@@ -447,7 +1729,7 @@ public class JConn {
                     @Override
                     public void run() {
                         try {
-                            l.onConnectionDrop(new JConnEvent("The connection to " + ip + ":" + port + " has been lost, attempting reconnection"));
+                            l.onConnectionDrop(new JConnEvent("The connection to " + address + " has been lost, attempting reconnection"));
                         } catch (Exception e) { //Any exception which comes from the onConnectionDrop().
 
                         }
@@ -457,7 +1739,49 @@ public class JConn {
         } finally {
             listenerLock.unlockRead(stamp);
         }
-        new Thread(reconRun, "RECONENCT").start();
+        if (retry) {
+            new Thread(reconRun, "RECONENCT").start();
+        }
+    }
+
+    /**
+     * Handles the requests which were sent but not replied to before the
+     * connection dropped. If the connection is being reestablished and replay
+     * is enabled, idempotent requests are moved to the front of the outage
+     * buffer to be sent again. All others fail with an IOException.
+     */
+    private void releaseUnanswered() {
+        final LinkedList<JConnData> unanswered = new LinkedList<>();
+        final HashSet<JConnData> streamed = new HashSet<>(); //Items of these may have been taken already, so they are never sent again.
+        final long bufferStamp = bufferLock.writeLock();
+        try {
+            final long queueStamp = queueLock.readLock();
+            try {
+                for (PendingRequest pending : incomingQueue.values()) {
+                    unanswered.add(pending.data);
+                    if (pending.stream != null) {
+                        streamed.add(pending.data);
+                    }
+                }
+            } finally {
+                queueLock.unlockRead(queueStamp);
+            }
+            unanswered.sort((a, b) -> Long.compare(a.getId(), b.getId())); //Ids are assigned in the order the requests were made.
+            unanswered.removeAll(outageBuffer); //Requests which are buffered have not been sent yet.
+            final Iterator<JConnData> it = unanswered.descendingIterator();
+            while (it.hasNext()) {
+                final JConnData data = it.next();
+                if (reconnecting && replayOnReconnect && data.isIdempotent() && !streamed.contains(data)) {
+                    outageBuffer.addFirst(data); //Send it again once the connection is back up.
+                    it.remove();
+                }
+            }
+        } finally {
+            bufferLock.unlockWrite(bufferStamp);
+        }
+        for (JConnData data : unanswered) {
+            fail(data, "The connection to the server was lost before a reply was received");
+        }
     }
 
     private class ReconnectRunnable implements Runnable {
@@ -465,15 +1789,23 @@ public class JConn {
         @Override
         public void run() {
             try {
-                retry = true;
-                while (retry) {
+                int attempt = 0;
+                boolean reconnected = false; //Local, as retry is only cleared when the user cancels retrying.
+                while (retry && !reconnected) {
                     try {
-                        connect(ip, port, useKeepAlive); //Attempt a reconnect.
+                        connect(dialer, address, useKeepAlive); //Attempt a reconnect.
+                        if (!flushOutageBuffer()) { //The connection dropped again while sending the held requests.
+                            connected = false;
+                            run = false;
+                            link.close();
+                            releaseUnanswered();
+                            throw new IOException("The connection was lost while sending held requests");
+                        }
                         final long stamp = listenerLock.readLock();
                         try {
                             listeners.forEach((l) -> { //Alert the listeners that the connection has been reestablished.
                                 try {
-                                    l.onConnectionEstablish(new JConnEvent("The connection to " + ip + ":" + port + " has been reestablished"));
+                                    l.onConnectionEstablish(new JConnEvent("The connection to " + address + " has been reestablished"));
                                 } catch (Exception e) { //Any exception which comes from the onConnectionReestablish().
 
                                 }
@@ -481,14 +1813,76 @@ public class JConn {
                         } finally {
                             listenerLock.unlockRead(stamp);
                         }
-                        retry = false;
+                        reconnected = true;
                     } catch (IOException ex2) {
-                        Thread.sleep(RECONNECT_INTERVAL); //Wait and try again
+                        Thread.sleep(backoff(attempt++)); //Wait and try again
                     }
                 }
             } catch (InterruptedException ex1) {
                 Logger.getLogger(JConn.class.getName()).log(Level.SEVERE, null, ex1);
             }
+            if (!connected) { //Retrying was cancelled, so nothing that was held will be sent.
+                failOutageBuffer();
+            }
+        }
+
+        /**
+         * Calculates how long to wait before the next reconnection attempt.
+         * The interval doubles with each attempt up to MAX_RECONNECT_INTERVAL,
+         * and RECONNECT_JITTER of it is randomised.
+         *
+         * @param attempt the number of attempts which have failed.
+         * @return the time to wait in milliseconds.
+         */
+        private long backoff(int attempt) {
+            final long interval = Math.min(MAX_RECONNECT_INTERVAL, (long) RECONNECT_INTERVAL << Math.min(attempt, 20));
+            final long jitter = (long) (interval * RECONNECT_JITTER);
+            return interval - jitter + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        }
+
+        /**
+         * Sends all the requests which were held while the connection was
+         * down, in the order they were made.
+         *
+         * @return true if all the requests were sent, false if the connection
+         * dropped again.
+         */
+        private boolean flushOutageBuffer() {
+            final long stamp = bufferLock.writeLock();
+            try {
+                while (!outageBuffer.isEmpty()) {
+                    final JConnData data = outageBuffer.getFirst();
+                    try {
+                        write(data);
+                    } catch (IOException ex) {
+                        return false;
+                    }
+                    outageBuffer.removeFirst();
+                }
+                reconnecting = false;
+                return true;
+            } finally {
+                bufferLock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Fails all the requests which were held while the connection was
+         * down.
+         */
+        private void failOutageBuffer() {
+            final LinkedList<JConnData> held;
+            final long stamp = bufferLock.writeLock();
+            try {
+                held = new LinkedList<>(outageBuffer);
+                outageBuffer.clear();
+                reconnecting = false;
+            } finally {
+                bufferLock.unlockWrite(stamp);
+            }
+            for (JConnData data : held) {
+                fail(data, "The connection to the server could not be reestablished");
+            }
         }
 
     }
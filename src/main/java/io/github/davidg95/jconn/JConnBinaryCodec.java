@@ -0,0 +1,304 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The compact binary codec. Values of common types are written directly with
+ * a one byte tag, values with a serializer registered in JConnCodecs are
+ * written with the serializer, and any other value is written with Java
+ * serialization on its own. Nothing is kept between messages.
+ *
+ * @author David
+ */
+class JConnBinaryCodec implements JConnCodec {
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG_STRING = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte SHORT = 8;
+    private static final byte BYTE = 9;
+    private static final byte CHAR = 10;
+    private static final byte BYTES = 11;
+    private static final byte STRINGS = 12;
+    private static final byte UUID = 13;
+    private static final byte SERIALIZER = 14;
+    private static final byte JAVA = 15;
+
+    /**
+     * The longest string which is always short enough for writeUTF(String).
+     */
+    private static final int MAX_UTF = 65535 / 3;
+
+    @Override
+    public String getName() {
+        return JConnCodecs.BINARY;
+    }
+
+    /**
+     * Encodes a message on its own, outside of a connection.
+     *
+     * @param data the message.
+     * @return the bytes.
+     * @throws IOException if there was an error encoding the message.
+     */
+    static byte[] encode(JConnData data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        final Output output = new Output();
+        output.to(out);
+        data.writeFields(output);
+        output.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a message encoded with encode(JConnData).
+     *
+     * @param bytes the bytes.
+     * @return the message.
+     * @throws IOException if there was an error decoding the message.
+     * @throws ClassNotFoundException if the class of a value is not found.
+     */
+    static JConnData decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        final Input input = new Input();
+        input.from(new ByteArrayInputStream(bytes));
+        final JConnData data = JConnData.obtain(null);
+        data.readFields(input);
+        return data;
+    }
+
+    @Override
+    public JConnCodec.Encoder newEncoder() {
+        final Output output = new Output();
+        return (data, out) -> {
+            output.to(out);
+            data.writeFields(output);
+            output.flush();
+        };
+    }
+
+    @Override
+    public JConnCodec.Decoder newDecoder() {
+        final Input input = new Input();
+        return (in) -> {
+            input.from(in);
+            final JConnData data = JConnData.obtain(null);
+            data.readFields(input);
+            return data;
+        };
+    }
+
+    /**
+     * Writes values with their tags.
+     */
+    private static class Output extends DataOutputStream implements ObjectOutput {
+
+        private Output() {
+            super(null);
+        }
+
+        /**
+         * Points the output at the stream for the next message.
+         *
+         * @param to the stream.
+         */
+        private void to(OutputStream to) {
+            out = to;
+        }
+
+        @Override
+        public void writeObject(Object value) throws IOException {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof String) {
+                final String s = (String) value;
+                if (s.length() <= MAX_UTF) {
+                    writeByte(STRING);
+                    writeUTF(s);
+                } else {
+                    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    writeByte(LONG_STRING);
+                    writeInt(bytes.length);
+                    write(bytes);
+                }
+            } else if (value instanceof Integer) {
+                writeByte(INT);
+                writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                writeByte(LONG);
+                writeLong((Long) value);
+            } else if (value instanceof Double) {
+                writeByte(DOUBLE);
+                writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                writeByte(FLOAT);
+                writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                writeByte(BOOLEAN);
+                writeBoolean((Boolean) value);
+            } else if (value instanceof Short) {
+                writeByte(SHORT);
+                writeShort((Short) value);
+            } else if (value instanceof Byte) {
+                writeByte(BYTE);
+                writeByte((Byte) value);
+            } else if (value instanceof Character) {
+                writeByte(CHAR);
+                writeChar((Character) value);
+            } else if (value instanceof byte[]) {
+                final byte[] bytes = (byte[]) value;
+                writeByte(BYTES);
+                writeInt(bytes.length);
+                write(bytes);
+            } else if (value instanceof String[]) {
+                final String[] strings = (String[]) value;
+                writeByte(STRINGS);
+                writeInt(strings.length);
+                for (String s : strings) {
+                    writeObject(s);
+                }
+            } else if (value instanceof UUID) {
+                writeByte(UUID);
+                writeLong(((UUID) value).getMostSignificantBits());
+                writeLong(((UUID) value).getLeastSignificantBits());
+            } else {
+                final JConnCodecs.Serializer s = JConnCodecs.getSerializer(value.getClass());
+                if (s != null) {
+                    writeByte(SERIALIZER);
+                    writeInt(s.id);
+                    s.serializer.write(value, this);
+                } else { //Fall back to Java serialization for this value.
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                        oos.writeObject(value);
+                    }
+                    writeByte(JAVA);
+                    writeInt(bytes.size());
+                    bytes.writeTo(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads values written by Output.
+     */
+    private static class Input extends DataInputStream implements ObjectInput {
+
+        private Input() {
+            super(null);
+        }
+
+        /**
+         * Points the input at the stream for the next message.
+         *
+         * @param from the stream.
+         */
+        private void from(InputStream from) {
+            in = from;
+        }
+
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException {
+            final byte tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readUTF();
+                case LONG_STRING:
+                    return new String(readBytes(), StandardCharsets.UTF_8);
+                case INT:
+                    return readInt();
+                case LONG:
+                    return readLong();
+                case DOUBLE:
+                    return readDouble();
+                case FLOAT:
+                    return readFloat();
+                case BOOLEAN:
+                    return readBoolean();
+                case SHORT:
+                    return readShort();
+                case BYTE:
+                    return readByte();
+                case CHAR:
+                    return readChar();
+                case BYTES:
+                    return readBytes();
+                case STRINGS: {
+                    final String[] strings = new String[readInt()];
+                    for (int i = 0; i < strings.length; i++) {
+                        strings[i] = (String) readObject();
+                    }
+                    return strings;
+                }
+                case UUID:
+                    return new UUID(readLong(), readLong());
+                case SERIALIZER: {
+                    final int id = readInt();
+                    final JConnCodecs.Serializer s = JConnCodecs.getSerializer(id);
+                    if (s == null) {
+                        throw new StreamCorruptedException("There is no serializer with the id " + id);
+                    }
+                    return s.serializer.read(this);
+                }
+                case JAVA:
+                    try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes()))) {
+                        return ois.readObject();
+                    }
+                default:
+                    throw new StreamCorruptedException("Unknown value tag " + tag);
+            }
+        }
+
+        /**
+         * Reads an array of bytes which was written with its length.
+         *
+         * @return the bytes.
+         * @throws IOException if there was an error reading the bytes.
+         */
+        private byte[] readBytes() throws IOException {
+            final byte[] bytes = new byte[readInt()];
+            readFully(bytes);
+            return bytes;
+        }
+    }
+}
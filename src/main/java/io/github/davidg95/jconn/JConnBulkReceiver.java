@@ -0,0 +1,45 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+
+/**
+ * Receives bulk transfers sent with sendBulk on JConn or JConnThread. The
+ * bytes of a transfer are passed to its sink in chunks as they arrive, so a
+ * transfer does not need to fit in memory. The receiver and the sinks are
+ * called on the thread which reads from the connection, so nothing else is
+ * read from the connection until they return.
+ *
+ * @author David
+ */
+public interface JConnBulkReceiver {
+
+    /**
+     * Called when a transfer starts.
+     *
+     * @param header the JConnData the transfer was sent with.
+     * @return the sink to pass the bytes to, or null to discard them.
+     * @throws IOException if the transfer can not be received. Its bytes are
+     * discarded.
+     */
+    public JConnBulkSink start(JConnData header) throws IOException;
+}
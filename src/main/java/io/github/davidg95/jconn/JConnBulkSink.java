@@ -0,0 +1,50 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where the bytes of one bulk transfer go as they arrive.
+ *
+ * @author David
+ */
+public interface JConnBulkSink {
+
+    /**
+     * Called with each chunk of the transfer, in order.
+     *
+     * @param chunk the bytes. The buffer is reused once this returns, so the
+     * bytes must be copied or written out before then.
+     * @throws IOException if the bytes could not be written. The rest of the
+     * transfer is discarded and end(false) is called.
+     */
+    public void write(ByteBuffer chunk) throws IOException;
+
+    /**
+     * Called when the transfer ends.
+     *
+     * @param complete true if all the bytes were sent, false if the transfer
+     * failed or the connection was lost.
+     */
+    public void end(boolean complete);
+}
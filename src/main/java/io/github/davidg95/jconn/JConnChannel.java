@@ -0,0 +1,252 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import io.github.davidg95.jconn.events.*;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A logical channel on a JConn connection, opened with
+ * JConn.openChannel(int). Channels let different kinds of traffic be kept
+ * apart without a socket and threads for each one. Each channel has its own
+ * listeners and its own window, the number of requests which can be waiting
+ * for a reply at once. The server runs the requests on a channel one at a
+ * time, in the order they were sent.
+ *
+ * @author David
+ */
+public class JConnChannel {
+
+    private final JConn conn; //The connection the channel is on.
+    private final int id;
+    private final Semaphore window; //A permit for each request which can be waiting for a reply.
+    private final List<JConnListener> listeners;
+    private final StampedLock listenersLock;
+    private final JConnListener forwarder; //Passes the events of the connection on to the listeners of the channel.
+
+    /**
+     * Creates a channel. Use JConn.openChannel(int).
+     *
+     * @param conn the connection.
+     * @param id the id of the channel.
+     * @param window the number of requests which can be waiting for a reply.
+     */
+    JConnChannel(JConn conn, int id, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("The window must be at least 1");
+        }
+        this.conn = conn;
+        this.id = id;
+        this.window = new Semaphore(window);
+        this.listeners = new LinkedList<>();
+        this.listenersLock = new StampedLock();
+        this.forwarder = new JConnListener() {
+            @Override
+            public void onReceive(JConnReceiveEvent event) {
+                //Messages for the channel are passed in by the connection.
+            }
+
+            @Override
+            public void onConnectionDrop(JConnEvent event) {
+                forEachListener((l) -> l.onConnectionDrop(event));
+            }
+
+            @Override
+            public void onConnectionEstablish(JConnEvent event) {
+                forEachListener((l) -> l.onConnectionEstablish(event));
+            }
+
+            @Override
+            public void onServerGracefulEnd() {
+                forEachListener(JConnListener::onServerGracefulEnd);
+            }
+        };
+        conn.registerListener(forwarder);
+    }
+
+    /**
+     * Get the id of this channel.
+     *
+     * @return the id.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Send data on this channel and wait for the reply. See
+     * JConn.sendData(JConnData).
+     *
+     * @param data the data to send.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     */
+    public Object sendData(JConnData data) throws IOException, Throwable {
+        return await(sendAsync(data));
+    }
+
+    /**
+     * Send data on this channel and wait for the reply, or until the timeout
+     * has passed. See JConn.sendData(JConnData, long, TimeUnit).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     * @throws TimeoutException if there was no reply in time.
+     */
+    public Object sendData(JConnData data, long timeout, TimeUnit unit) throws IOException, TimeoutException, Throwable {
+        return await(sendAsync(data, timeout, unit));
+    }
+
+    /**
+     * Send data on this channel without waiting for the reply. If the window
+     * is full, this blocks until one of the requests which are waiting has
+     * been replied to. See JConn.sendAsync(JConnData).
+     *
+     * @param data the data to send.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data, or the
+     * thread was interrupted while waiting for the window.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data) throws IOException {
+        try {
+            window.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the window of channel " + id);
+        }
+        final CompletableFuture<Object> future;
+        try {
+            future = conn.sendAsync(data.setChannel(id));
+        } catch (IOException | RuntimeException ex) {
+            window.release();
+            throw ex;
+        }
+        future.whenComplete((value, ex) -> window.release());
+        return future;
+    }
+
+    /**
+     * Send data on this channel without waiting for the reply, with a
+     * timeout. See sendAsync(JConnData).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data, long timeout, TimeUnit unit) throws IOException {
+        return sendAsync(data.setTimeout(timeout, unit));
+    }
+
+    /**
+     * Register a JConnListener to receive the messages the server sends on
+     * this channel, and the events of the connection.
+     *
+     * @param listener the JConnListener.
+     */
+    public void registerListener(JConnListener listener) {
+        final long stamp = listenersLock.writeLock();
+        try {
+            listeners.add(listener);
+        } finally {
+            listenersLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Closes this channel. Its listeners receive nothing more. Requests which
+     * are waiting for a reply still receive it.
+     */
+    public void close() {
+        conn.closeChannel(this);
+        conn.removeListener(forwarder);
+        final long stamp = listenersLock.writeLock();
+        try {
+            listeners.clear();
+        } finally {
+            listenersLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Passes a message the server sent on this channel to the listeners.
+     *
+     * @param event the event with the message.
+     */
+    void receive(JConnReceiveEvent event) {
+        forEachListener((l) -> l.onReceive(event));
+    }
+
+    /**
+     * Calls each of the listeners, catching anything they throw.
+     *
+     * @param call the call to make.
+     */
+    private void forEachListener(Consumer<JConnListener> call) {
+        final long stamp = listenersLock.readLock();
+        try {
+            listeners.forEach((l) -> {
+                try {
+                    call.accept(l);
+                } catch (Exception e) {
+                    Logger.getLogger(JConnChannel.class.getName()).log(Level.SEVERE, "Error passing event to listener", e);
+                }
+            });
+        } finally {
+            listenersLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Waits for a CompletableFuture and returns its value, or throws the
+     * exception it failed with.
+     *
+     * @param future the CompletableFuture.
+     * @return the value.
+     * @throws Throwable the exception it failed with.
+     */
+    private static Object await(CompletableFuture<Object> future) throws Throwable {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        }
+    }
+}
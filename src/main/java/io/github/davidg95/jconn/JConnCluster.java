@@ -0,0 +1,566 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import io.github.davidg95.jconn.events.JConnEvent;
+import io.github.davidg95.jconn.events.JConnReceiveEvent;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A client for a cluster of servers which each hold part of the data. Each
+ * request is sent to a server chosen by a key taken from it, so requests with
+ * the same key always go to the same server while it is up. The servers are
+ * placed on a ring of hashes by consistent hashing, each one at many points
+ * (virtual nodes) so the keys are spread evenly, and a key goes to the first
+ * server after its hash. When a server is added or removed, only the keys
+ * next to its points move, the rest stay where they were.
+ *
+ * Each server has one JConn. If it drops, a background thread replaces it
+ * with a new one every JConn.RECONNECT_INTERVAL. While it is down, its keys go
+ * to the next server on the ring, and they move back once it is up again.
+ *
+ * @author David
+ */
+public class JConnCluster {
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    /**
+     * The default number of points on the ring for each server.
+     */
+    public static final int VIRTUAL_NODES = 160;
+
+    private final Function<JConnData, ?> key; //Takes the key from a request.
+    private final int virtualNodes; //The number of points on the ring for each server.
+    private volatile Ring ring; //The servers and their points. Replaced when servers are added or removed.
+    private final StampedLock ringLock; //The StampedLock for adding and removing servers.
+    private final List<JConnListener> listeners; //Registered on every connection.
+    private final Thread maintainer; //Replaces connections which have dropped.
+    private volatile boolean run;
+
+    /**
+     * Creates a new, empty JConnCluster which takes the key for each request
+     * from one of its parameters. Servers are added with connect(String,
+     * int).
+     *
+     * @param param the name of the parameter.
+     */
+    public JConnCluster(String param) {
+        this((data) -> data.getParam(param), VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a new, empty JConnCluster. Servers are added with
+     * connect(String, int).
+     *
+     * @param key takes the key from a request. The key is hashed by its
+     * toString(), so it goes to the same server from every client. Requests
+     * with a null key go to any server.
+     * @param virtualNodes the number of points on the ring for each server.
+     * More spreads the keys more evenly, but makes adding a server slower.
+     */
+    public JConnCluster(Function<JConnData, ?> key, int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Each server must have at least one point on the ring");
+        }
+        this.key = key;
+        this.virtualNodes = virtualNodes;
+        this.ring = new Ring(new Node[0], virtualNodes);
+        this.ringLock = new StampedLock();
+        this.listeners = new LinkedList<>();
+        this.run = true;
+        maintainer = new Thread(this::maintain, "JCONN-CLUSTER");
+        maintainer.setDaemon(true);
+        maintainer.start();
+    }
+
+    /**
+     * Opens a connection to a server and adds it to the ring. The keys which
+     * are now closest to it are sent to it from then on.
+     *
+     * @param ip the IP address of the server.
+     * @param port the port number of the server.
+     * @throws IOException if the connection could not be opened.
+     * @throws IllegalArgumentException if the server is already in the
+     * cluster.
+     */
+    public void connect(String ip, int port) throws IOException {
+        final Node node = new Node(ip, port);
+        if (ring.find(node.name) != null) {
+            throw new IllegalArgumentException(node.name + " is already in the cluster");
+        }
+        node.open();
+        final long stamp = ringLock.writeLock();
+        try {
+            if (ring.find(node.name) != null) { //Added by another thread while connecting.
+                node.close();
+                throw new IllegalArgumentException(node.name + " is already in the cluster");
+            }
+            final Node[] current = ring.nodes;
+            final Node[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = node;
+            ring = new Ring(grown, virtualNodes);
+        } finally {
+            ringLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a server from the ring and closes the connection to it. Its
+     * keys go to the next servers on the ring.
+     *
+     * @param ip the IP address of the server.
+     * @param port the port number of the server.
+     * @return false if the server was not in the cluster.
+     */
+    public boolean disconnect(String ip, int port) {
+        final Node node;
+        final long stamp = ringLock.writeLock();
+        try {
+            node = ring.find(ip + ":" + port);
+            if (node == null) {
+                return false;
+            }
+            final List<Node> rest = new ArrayList<>(Arrays.asList(ring.nodes));
+            rest.remove(node);
+            ring = new Ring(rest.toArray(new Node[rest.size()]), virtualNodes);
+            node.removed = true;
+        } finally {
+            ringLock.unlockWrite(stamp);
+        }
+        node.close();
+        return true;
+    }
+
+    /**
+     * Gets the hash of the key of a request. A request without a key gets a
+     * random one, so they are spread over the servers.
+     *
+     * @param data the request.
+     * @return the hash.
+     */
+    private long hash(JConnData data) {
+        final Object k = key.apply(data);
+        return k == null ? ThreadLocalRandom.current().nextLong() : hash(k.toString());
+    }
+
+    /**
+     * Hashes a String with FNV-1a, then mixes the bits so that similar
+     * Strings land far apart on the ring.
+     *
+     * @param s the String.
+     * @return the hash.
+     */
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Gets the connection to the server which a request goes to.
+     *
+     * @param data the request.
+     * @return the connection.
+     * @throws IOException if there is no server which is up.
+     */
+    public JConn getConnection(JConnData data) throws IOException {
+        return ring.choose(hash(data), null).conn;
+    }
+
+    /**
+     * Send data to the server for its key and wait for the reply. See
+     * JConn.sendData(JConnData). If the connection drops before the reply
+     * arrives and the request is idempotent, it is sent again to the next
+     * server on the ring.
+     *
+     * @param data the data to send.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     */
+    public Object sendData(JConnData data) throws IOException, Throwable {
+        final long h = hash(data);
+        final Node node = ring.choose(h, null);
+        try {
+            return node.conn.sendData(data);
+        } catch (IOException ex) {
+            if (node.isUp() || !data.isIdempotent()) {
+                throw ex;
+            }
+            return ring.choose(h, node).conn.sendData(data);
+        }
+    }
+
+    /**
+     * Send data to the server for its key and wait for the reply, or until
+     * the timeout has passed. See JConn.sendData(JConnData, long, TimeUnit).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     * @throws TimeoutException if there was no reply in time.
+     */
+    public Object sendData(JConnData data, long timeout, TimeUnit unit) throws IOException, TimeoutException, Throwable {
+        return getConnection(data).sendData(data, timeout, unit);
+    }
+
+    /**
+     * Send data to the server for its key and run the runnable with the
+     * reply. See JConn.sendData(JConnData, JConnRunnable).
+     *
+     * @param data the data to send.
+     * @param run the runnable to execute on a successful response.
+     * @return JConnStatus so the status of the request can be checked.
+     * @throws IOException if there was an error sending the data.
+     */
+    public JConnStatus sendData(JConnData data, JConnRunnable run) throws IOException {
+        final long h = hash(data);
+        final Node node = ring.choose(h, null);
+        try {
+            return node.conn.sendData(data, run);
+        } catch (IOException ex) { //It was not sent, so it can go to the next server.
+            if (node.isUp()) {
+                throw ex;
+            }
+            return ring.choose(h, node).conn.sendData(data, run);
+        }
+    }
+
+    /**
+     * Send data to the server for its key without waiting for the reply. See
+     * JConn.sendAsync(JConnData).
+     *
+     * @param data the data to send.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data) throws IOException {
+        final long h = hash(data);
+        final Node node = ring.choose(h, null);
+        try {
+            return node.conn.sendAsync(data);
+        } catch (IOException ex) { //It was not sent, so it can go to the next server.
+            if (node.isUp()) {
+                throw ex;
+            }
+            return ring.choose(h, node).conn.sendAsync(data);
+        }
+    }
+
+    /**
+     * Send data to the server for its key without waiting for the reply, with
+     * a timeout. See JConn.sendAsync(JConnData, long, TimeUnit).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data, long timeout, TimeUnit unit) throws IOException {
+        return getConnection(data).sendAsync(data, timeout, unit);
+    }
+
+    /**
+     * Send a request to a server method which returns a Stream or an
+     * Iterator, on the server for its key. See JConn.sendStream(JConnData).
+     *
+     * @param data the data to send.
+     * @return a Stream of the items.
+     * @throws IOException if there was an error sending the data.
+     */
+    public Stream<Object> sendStream(JConnData data) throws IOException {
+        return getConnection(data).sendStream(data);
+    }
+
+    /**
+     * Register a JConnListener on the connection to every server in the
+     * cluster, including the ones added later.
+     *
+     * @param listener the JConnListener.
+     */
+    public void registerListener(JConnListener listener) {
+        final long stamp = ringLock.writeLock();
+        try {
+            listeners.add(listener);
+            for (Node node : ring.nodes) {
+                final JConn conn = node.conn;
+                if (conn != null) {
+                    conn.registerListener(listener);
+                }
+            }
+        } finally {
+            ringLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the servers in the cluster.
+     *
+     * @return a List of the servers, as ip:port.
+     */
+    public List<String> getServers() {
+        final List<String> list = new ArrayList<>();
+        for (Node node : ring.nodes) {
+            list.add(node.name);
+        }
+        return list;
+    }
+
+    /**
+     * Get the number of servers in the cluster which are up.
+     *
+     * @return the number of servers.
+     */
+    public int getUpCount() {
+        int up = 0;
+        for (Node node : ring.nodes) {
+            if (node.isUp()) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    /**
+     * Closes the connection to every server in the cluster and removes them.
+     */
+    public void close() {
+        run = false;
+        maintainer.interrupt();
+        final Node[] nodes;
+        final long stamp = ringLock.writeLock();
+        try {
+            nodes = ring.nodes;
+            ring = new Ring(new Node[0], virtualNodes);
+            for (Node node : nodes) {
+                node.removed = true;
+            }
+        } finally {
+            ringLock.unlockWrite(stamp);
+        }
+        for (Node node : nodes) {
+            node.close();
+        }
+    }
+
+    /**
+     * Run by the maintainer thread. Every JConn.RECONNECT_INTERVAL, the
+     * connection to any server which is not up is replaced with a new one.
+     */
+    private void maintain() {
+        while (run) {
+            try {
+                Thread.sleep(JConn.RECONNECT_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for (Node node : ring.nodes) {
+                if (run && !node.isUp()) {
+                    try {
+                        if (node.open()) {
+                            LOG.log(Level.INFO, "Reconnected to " + node.name + ", its keys are going back to it");
+                        }
+                    } catch (IOException ex) {
+                        //Try again next time.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The points on the ring. It is not changed once it is built, so
+     * requests can use it without a lock.
+     */
+    private class Ring {
+
+        private final Node[] nodes; //The servers, in the order they were added.
+        private final long[] points; //The hashes of the points, in order.
+        private final Node[] owners; //The server at each point.
+
+        private Ring(Node[] nodes, int virtualNodes) {
+            this.nodes = nodes;
+            final int n = nodes.length * virtualNodes;
+            final long[][] pairs = new long[n][]; //The hash and the index of the server for each point.
+            for (int i = 0; i < nodes.length; i++) {
+                for (int j = 0; j < virtualNodes; j++) {
+                    pairs[i * virtualNodes + j] = new long[]{hash(nodes[i].name + "#" + j), i};
+                }
+            }
+            Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[n];
+            owners = new Node[n];
+            for (int i = 0; i < n; i++) {
+                points[i] = pairs[i][0];
+                owners[i] = nodes[(int) pairs[i][1]];
+            }
+        }
+
+        /**
+         * Finds the first server after a hash on the ring which is up.
+         *
+         * @param hash the hash of the key.
+         * @param skip a server to pass over, or null.
+         * @return the server.
+         * @throws IOException if there is no server which is up.
+         */
+        private Node choose(long hash, Node skip) throws IOException {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            for (int k = 0; k < points.length; k++) { //Go round the ring until a server which is up is found.
+                final Node node = owners[(i + k) % points.length];
+                if (node != skip && node.isUp()) {
+                    return node;
+                }
+            }
+            throw new IOException("There is no server in the cluster which is up");
+        }
+
+        /**
+         * Finds a server by its name.
+         *
+         * @param name the name, ip:port.
+         * @return the server, or null if it is not on the ring.
+         */
+        private Node find(String name) {
+            for (Node node : nodes) {
+                if (node.name.equals(name)) {
+                    return node;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A server in the cluster, and the connection to it.
+     */
+    private class Node implements JConnListener {
+
+        private final String ip;
+        private final int port;
+        private final String name; //ip:port, which is hashed to place it on the ring.
+        private volatile JConn conn; //The connection, null until one has been opened.
+        private boolean removed; //Set under the ring lock once it has been taken out of the ring.
+
+        private Node(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+            this.name = ip + ":" + port;
+        }
+
+        /**
+         * Opens a new connection to the server. If the node is taken out of
+         * the ring while it is connecting, the new connection is closed
+         * rather than left open with nothing to close it.
+         *
+         * @return false if the node was taken out of the ring.
+         * @throws IOException if there was an error connecting.
+         */
+        private boolean open() throws IOException {
+            final JConn c = new JConn();
+            c.connect(ip, port);
+            c.cancelRetry(); //The maintainer replaces it if it drops.
+            c.registerListener(this);
+            final long stamp = ringLock.readLock();
+            try {
+                if (!removed) {
+                    listeners.forEach(c::registerListener);
+                    conn = c; //Set under the lock, so close() sees it once the node is removed.
+                    return true;
+                }
+            } finally {
+                ringLock.unlockRead(stamp);
+            }
+            try {
+                c.endConnection();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Error closing connection to " + name, ex);
+            }
+            return false;
+        }
+
+        /**
+         * Check if the connection to the server is up.
+         *
+         * @return true if it is up.
+         */
+        private boolean isUp() {
+            final JConn c = conn;
+            return c != null && c.isUp();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            final JConn c = conn;
+            if (c == null) {
+                return;
+            }
+            try {
+                c.endConnection();
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Error closing connection to " + name, ex);
+            }
+        }
+
+        @Override
+        public void onReceive(JConnReceiveEvent event) {
+        }
+
+        @Override
+        public void onConnectionDrop(JConnEvent event) {
+            LOG.log(Level.WARNING, "Lost connection to " + name + ", its keys are going to the next server");
+        }
+
+        @Override
+        public void onConnectionEstablish(JConnEvent event) {
+        }
+
+        @Override
+        public void onServerGracefulEnd() {
+        }
+    }
+}
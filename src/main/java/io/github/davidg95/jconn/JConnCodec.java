@@ -0,0 +1,96 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A way of encoding JConnData objects. Codecs are registered with JConnCodecs
+ * by name, and when a client connects it agrees with the server which codecs
+ * both of them have. Each message is then sent with the codec chosen for its
+ * flag, or the default codec.
+ *
+ * A codec creates a new Encoder and Decoder for each connection, so they may
+ * keep state between messages, for example a table of objects which have
+ * already been sent.
+ *
+ * @author David
+ */
+public interface JConnCodec {
+
+    /**
+     * Get the name of the codec. This is how the client and the server refer
+     * to it, so it must be the same on both.
+     *
+     * @return the name.
+     */
+    public String getName();
+
+    /**
+     * Creates an encoder for a new connection.
+     *
+     * @return the encoder.
+     */
+    public Encoder newEncoder();
+
+    /**
+     * Creates a decoder for a new connection.
+     *
+     * @return the decoder.
+     */
+    public Decoder newDecoder();
+
+    /**
+     * Encodes the messages sent on a connection. It is only used by one thread
+     * at a time.
+     */
+    public interface Encoder {
+
+        /**
+         * Encodes a message.
+         *
+         * @param data the message.
+         * @param out the stream to write it to.
+         * @throws IOException if there was an error encoding the message.
+         */
+        public void encode(JConnData data, OutputStream out) throws IOException;
+    }
+
+    /**
+     * Decodes the messages received on a connection. It is only used by one
+     * thread at a time.
+     */
+    public interface Decoder {
+
+        /**
+         * Decodes a message.
+         *
+         * @param in the stream to read it from, which ends where the message
+         * ends.
+         * @return the message.
+         * @throws IOException if there was an error decoding the message.
+         * @throws ClassNotFoundException if the class of a value is not found.
+         */
+        public JConnData decode(InputStream in) throws IOException, ClassNotFoundException;
+    }
+}
@@ -0,0 +1,264 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * The codecs which JConn can send messages with. The java codec, which uses
+ * Java serialization, and the binary codec, which writes common types
+ * directly and uses the registered serializers for other types, are always
+ * available. The default codec is used for every flag which has not been
+ * given a codec with setCodec(String, String).
+ *
+ * The codecs, flags and serializers are set for the whole JVM, and should be
+ * set the same on the client and the server before connecting.
+ *
+ * @author David
+ */
+public class JConnCodecs {
+
+    /**
+     * The name of the codec which uses Java serialization.
+     */
+    public static final String JAVA = "java";
+
+    /**
+     * The name of the compact binary codec.
+     */
+    public static final String BINARY = "binary";
+
+    /**
+     * The java codec resets its streams after this many messages, so the
+     * objects it has sent are not kept for the life of the connection. Zero
+     * or less to not reset by the number of messages.
+     */
+    public static int JAVA_RESET_MESSAGES = 1000;
+
+    /**
+     * The java codec resets its streams after this many bytes have been sent.
+     * Zero or less to not reset by the number of bytes.
+     */
+    public static long JAVA_RESET_BYTES = 1024 * 1024;
+
+    /**
+     * Frames at least this many bytes long are compressed, if the other side
+     * supports it and compression has not been turned off for the flag. Zero
+     * or less to never compress.
+     */
+    public static int COMPRESSION_THRESHOLD = 16 * 1024;
+
+    /**
+     * The Deflater level frames are compressed at.
+     */
+    public static int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    private static final Map<String, JConnCodec> CODECS = new ConcurrentHashMap<>(); //The codecs, by name.
+    private static final List<String> ORDER = new ArrayList<>(); //The names of the codecs, in the order they were registered.
+    private static final Map<String, String> FLAGS = new ConcurrentHashMap<>(); //The codec for each flag which has one.
+    private static final Set<String> UNCOMPRESSED = ConcurrentHashMap.newKeySet(); //The flags which are never compressed.
+    private static final Map<Class<?>, Serializer> SERIALIZERS = new ConcurrentHashMap<>(); //The serializers, by class.
+    private static final Map<Integer, Serializer> SERIALIZER_IDS = new ConcurrentHashMap<>(); //The serializers, by id.
+
+    private static volatile String defaultCodec = JAVA;
+
+    static {
+        register(new JConnJavaCodec());
+        register(new JConnBinaryCodec());
+    }
+
+    private JConnCodecs() {
+    }
+
+    /**
+     * Registers a codec, replacing any codec with the same name.
+     *
+     * @param codec the codec.
+     */
+    public static void register(JConnCodec codec) {
+        synchronized (ORDER) {
+            if (CODECS.put(codec.getName(), codec) == null) {
+                ORDER.add(codec.getName());
+            }
+        }
+    }
+
+    /**
+     * Get a codec by its name.
+     *
+     * @param name the name.
+     * @return the codec, or null if there is no codec with the name.
+     */
+    public static JConnCodec get(String name) {
+        return CODECS.get(name);
+    }
+
+    /**
+     * Get the names of all the codecs, in the order they were registered.
+     *
+     * @return a List of the names.
+     */
+    public static List<String> getNames() {
+        synchronized (ORDER) {
+            return new ArrayList<>(ORDER);
+        }
+    }
+
+    /**
+     * Sets the codec which is used for flags which have not been given one.
+     *
+     * @param name the name of the codec.
+     */
+    public static void setDefaultCodec(String name) {
+        if (!CODECS.containsKey(name)) {
+            throw new IllegalArgumentException("There is no codec called " + name);
+        }
+        defaultCodec = name;
+    }
+
+    /**
+     * Get the codec which is used for flags which have not been given one.
+     *
+     * @return the name of the codec.
+     */
+    public static String getDefaultCodec() {
+        return defaultCodec;
+    }
+
+    /**
+     * Sets the codec to send a flag with. Replies are sent with the codec for
+     * the flag of the request.
+     *
+     * @param flag the flag.
+     * @param name the name of the codec, or null to use the default codec.
+     */
+    public static void setCodec(String flag, String name) {
+        if (name == null) {
+            FLAGS.remove(flag);
+            return;
+        }
+        if (!CODECS.containsKey(name)) {
+            throw new IllegalArgumentException("There is no codec called " + name);
+        }
+        FLAGS.put(flag, name);
+    }
+
+    /**
+     * Get the codec to send a flag with.
+     *
+     * @param flag the flag, may be null.
+     * @return the name of the codec.
+     */
+    public static String getCodec(String flag) {
+        final String name = flag == null ? null : FLAGS.get(flag);
+        return name == null ? defaultCodec : name;
+    }
+
+    /**
+     * Sets whether large frames for a flag are compressed. They are unless
+     * this is set to false.
+     *
+     * @param flag the flag.
+     * @param compress false to never compress the flag.
+     */
+    public static void setCompression(String flag, boolean compress) {
+        if (compress) {
+            UNCOMPRESSED.remove(flag);
+        } else {
+            UNCOMPRESSED.add(flag);
+        }
+    }
+
+    /**
+     * Checks if large frames for a flag are compressed.
+     *
+     * @param flag the flag, may be null.
+     * @return true if they are compressed.
+     */
+    public static boolean isCompressed(String flag) {
+        return flag == null || !UNCOMPRESSED.contains(flag);
+    }
+
+    /**
+     * Registers a serializer for the binary codec. The serializer is used for
+     * values of exactly the class given, and is identified on the wire by its
+     * id, so it must be registered with the same id on the client and the
+     * server. A class can only be registered once, so that both ends agree
+     * on the id for it.
+     *
+     * @param <T> the type.
+     * @param id the id, which must not be used by another serializer.
+     * @param type the class of the values.
+     * @param serializer the serializer.
+     * @throws IllegalArgumentException if the id is already used, or the
+     * class already has a serializer.
+     */
+    public static <T> void registerSerializer(int id, Class<T> type, JConnSerializer<T> serializer) {
+        final Serializer s = new Serializer(id, serializer);
+        if (SERIALIZER_IDS.putIfAbsent(id, s) != null) {
+            throw new IllegalArgumentException("There is already a serializer with the id " + id);
+        }
+        if (SERIALIZERS.putIfAbsent(type, s) != null) {
+            SERIALIZER_IDS.remove(id, s);
+            throw new IllegalArgumentException("There is already a serializer for " + type.getName());
+        }
+    }
+
+    /**
+     * Get the serializer for a class.
+     *
+     * @param type the class.
+     * @return the serializer, or null if there is not one.
+     */
+    static Serializer getSerializer(Class<?> type) {
+        return SERIALIZERS.get(type);
+    }
+
+    /**
+     * Get a serializer by its id.
+     *
+     * @param id the id.
+     * @return the serializer, or null if there is not one.
+     */
+    static Serializer getSerializer(int id) {
+        return SERIALIZER_IDS.get(id);
+    }
+
+    /**
+     * A registered serializer and its id.
+     */
+    static class Serializer {
+
+        final int id;
+        final JConnSerializer<Object> serializer; //Only given values of the class it was registered for.
+
+        @SuppressWarnings("unchecked")
+        private Serializer(int id, JConnSerializer<?> serializer) {
+            this.id = id;
+            this.serializer = (JConnSerializer<Object>) serializer;
+        }
+    }
+}
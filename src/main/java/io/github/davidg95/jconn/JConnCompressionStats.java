@@ -0,0 +1,150 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how much compression has saved on a connection, and how long it has
+ * taken.
+ *
+ * @author David
+ */
+public class JConnCompressionStats {
+
+    private final AtomicLong compressed = new AtomicLong(); //Frames sent compressed.
+    private final AtomicLong notShrunk = new AtomicLong(); //Frames which were sent uncompressed as they did not get smaller.
+    private final AtomicLong bytesBefore = new AtomicLong(); //Size of the frames which were compressed, before compression.
+    private final AtomicLong bytesAfter = new AtomicLong(); //Size of the frames which were compressed, after compression.
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressed = new AtomicLong(); //Frames received compressed.
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    /**
+     * Records a frame being compressed.
+     *
+     * @param before the size before compression.
+     * @param after the size after compression.
+     * @param nanos the time it took.
+     */
+    void compressed(int before, int after, long nanos) {
+        compressNanos.addAndGet(nanos);
+        if (after >= before) {
+            notShrunk.incrementAndGet();
+            return;
+        }
+        compressed.incrementAndGet();
+        bytesBefore.addAndGet(before);
+        bytesAfter.addAndGet(after);
+    }
+
+    /**
+     * Records a frame being decompressed.
+     *
+     * @param nanos the time it took.
+     */
+    void decompressed(long nanos) {
+        decompressed.incrementAndGet();
+        decompressNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Get the number of frames which have been sent compressed.
+     *
+     * @return the number of frames.
+     */
+    public long getFramesCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * Get the number of frames which were compressed but sent uncompressed,
+     * as compressing them did not make them smaller.
+     *
+     * @return the number of frames.
+     */
+    public long getFramesNotShrunk() {
+        return notShrunk.get();
+    }
+
+    /**
+     * Get the total size of the frames sent compressed, before they were
+     * compressed.
+     *
+     * @return the number of bytes.
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBefore.get();
+    }
+
+    /**
+     * Get the total size of the frames sent compressed.
+     *
+     * @return the number of bytes.
+     */
+    public long getBytesAfterCompression() {
+        return bytesAfter.get();
+    }
+
+    /**
+     * Get the compressed size of the frames sent compressed as a fraction of
+     * their original size.
+     *
+     * @return the ratio, or 1 if nothing has been compressed.
+     */
+    public double getRatio() {
+        final long before = bytesBefore.get();
+        return before == 0 ? 1 : (double) bytesAfter.get() / before;
+    }
+
+    /**
+     * Get the total time spent compressing frames, including the ones which
+     * did not get smaller.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    /**
+     * Get the number of compressed frames which have been received.
+     *
+     * @return the number of frames.
+     */
+    public long getFramesDecompressed() {
+        return decompressed.get();
+    }
+
+    /**
+     * Get the total time spent decompressing frames.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Compressed " + compressed.get() + " frames at ratio " + getRatio() + " in " + compressNanos.get() / 1000000 + "ms, decompressed " + decompressed.get() + " frames in " + decompressNanos.get() / 1000000 + "ms";
+    }
+}
@@ -24,14 +24,12 @@ import io.github.davidg95.jconn.events.JConnEvent;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.StampedLock;
@@ -66,7 +64,13 @@ public class JConnConnectionAccept extends Thread {
 
     private final ThreadPoolExecutor pool;
 
-    private final ServerSocket socket;
+    /**
+     * The threads which run the JConnMethod annotated methods. Idle threads
+     * are reused rather than a new thread being started for each request.
+     */
+    private final ThreadPoolExecutor handlers;
+
+    private final JConnLink.Acceptor socket;
 
     private final Class classToScan;
 
@@ -78,12 +82,20 @@ public class JConnConnectionAccept extends Thread {
     /**
      * All the detected method which have the @JConnMethod annotation.
      */
-    private final LinkedList<Method> JCONNMETHODS;
+    private final JConnMethodTable JCONNMETHODS;
 
     private final List<JConnListener> listeners;
 
     private final StampedLock listenersLock;
 
+    private volatile JConnBulkReceiver bulkReceiver; //Receives bulk transfers from the clients.
+
+    private volatile boolean stopped; //Indicates that the server has been shut down.
+
+    private final JConnTopics topics; //The topics the clients have subscribed to.
+
+    private volatile JConnJournal journal; //The journal of the published messages, null if there is not one.
+
     /**
      * Constructor which starts the ThreadPoolExcecutor.
      *
@@ -95,18 +107,37 @@ public class JConnConnectionAccept extends Thread {
      * @throws IOException if there was a network error.
      */
     public JConnConnectionAccept(int PORT, Class classToScan, boolean debug, List<JConnListener> listeners, StampedLock listenersLock) throws IOException {
+        this(JConnLink.listenTcp(PORT), classToScan, debug, listeners, listenersLock);
+        PORT_IN_USE = PORT;
+    }
+
+    /**
+     * Constructor which starts the ThreadPoolExcecutor, accepting connections
+     * from an Acceptor.
+     *
+     * @param socket accepts the connections.
+     * @param classToScan the class to be scanned for annotations.
+     * @param debug indicates if debug output should be shown.
+     * @param listeners the JConnListeners.
+     * @param listenersLock the lock for the listeners.
+     */
+    JConnConnectionAccept(JConnLink.Acceptor socket, Class<?> classToScan, boolean debug, List<JConnListener> listeners, StampedLock listenersLock) {
         super("ConnectionAcceptThread");
         threads = new LinkedList<>();
         lock = new StampedLock();
         pool = new ThreadPoolExecutor(MAX_CONN, MAX_QUEUE, 50000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(MAX_QUEUE));
-        this.socket = new ServerSocket(PORT);
+        handlers = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60000L, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), (r) -> {
+            final Thread thread = new Thread(r, "JConnHandler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.socket = socket;
         this.classToScan = classToScan;
         this.debug = debug;
         this.listeners = listeners;
         this.listenersLock = listenersLock;
-        PORT_IN_USE = PORT;
-        JCONNMETHODS = new LinkedList<>();
-        scanClass();
+        JCONNMETHODS = JConnMethodTable.scan(classToScan);
+        topics = new JConnTopics();
     }
 
     /**
@@ -118,6 +149,33 @@ public class JConnConnectionAccept extends Thread {
         return threads;
     }
 
+    /**
+     * Get the index of the topics the clients have subscribed to.
+     *
+     * @return the JConnTopics.
+     */
+    JConnTopics getTopics() {
+        return topics;
+    }
+
+    /**
+     * Get the journal of the messages published to topics.
+     *
+     * @return the JConnJournal, or null if there is not one.
+     */
+    JConnJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Sets the journal of the messages published to topics.
+     *
+     * @param journal the JConnJournal.
+     */
+    void setJournal(JConnJournal journal) {
+        this.journal = journal;
+    }
+
     /**
      * Removed a thread from the list of threads.
      *
@@ -150,18 +208,6 @@ public class JConnConnectionAccept extends Thread {
         lock.unlockRead(stamp);
     }
 
-    /**
-     * Scans this class and finds all method with the JConnMethod annotation.
-     */
-    private void scanClass() {
-        final Method[] methods = classToScan.getDeclaredMethods(); //Get all the methods in this class
-        for (Method m : methods) { //Loop through each method
-            if (m.isAnnotationPresent(JConnMethod.class)) { //Check if the annotation is a JConnMethod annotation
-                JCONNMETHODS.add(m);
-            }
-        }
-    }
-
     @Override
     public void run() {
         if (debug) {
@@ -171,7 +217,7 @@ public class JConnConnectionAccept extends Thread {
         try {
             if (debug) {
                 LOG.log(Level.INFO, "Local IP address is " + InetAddress.getLocalHost().getHostAddress());
-                LOG.log(Level.INFO, "Server Socket running on port number " + PORT_IN_USE);
+                LOG.log(Level.INFO, "Server Socket listening on " + socket.getAddress());
             }
         } catch (UnknownHostException ex) {
             if (debug) {
@@ -183,9 +229,9 @@ public class JConnConnectionAccept extends Thread {
         }
         for (;;) {
             try {
-                final Socket incoming = socket.accept(); //Wait for a connection.
+                final JConnLink incoming = socket.accept(); //Wait for a connection.
                 if (debug) {
-                    LOG.log(Level.INFO, "Connection from " + incoming.getInetAddress().getHostAddress());
+                    LOG.log(Level.INFO, "Connection from " + incoming.getAddress());
                 }
                 final JConnEvent event = new JConnEvent(incoming.toString() + " has connected");
                 {
@@ -208,7 +254,8 @@ public class JConnConnectionAccept extends Thread {
                 }
                 final Constructor c = classToScan.getDeclaredConstructor(); //Get the blank constructor
                 c.setAccessible(true);
-                final JConnThread th = new JConnThread(socket.getInetAddress().getHostAddress(), incoming, JCONNMETHODS, c.newInstance(), debug, listeners, listenersLock, this);
+                final JConnThread th = new JConnThread(socket.getAddress(), incoming, JCONNMETHODS, c.newInstance(), debug, listeners, listenersLock, this, handlers);
+                th.setBulkReceiver(bulkReceiver);
                 pool.submit(th); //Submit the socket to the excecutor.
                 {
                     final long stamp = lock.writeLock();
@@ -219,6 +266,9 @@ public class JConnConnectionAccept extends Thread {
                     }
                 }
             } catch (IOException ex) {
+                if (stopped) { //The socket was closed by shutdown().
+                    return;
+                }
                 if (debug) {
                     LOG.log(Level.SEVERE, null, ex);
                     LOG.log(Level.SEVERE, "THREAD POOL EXECUTOR HAS STOPPED");
@@ -235,11 +285,29 @@ public class JConnConnectionAccept extends Thread {
         }
     }
 
+    /**
+     * Sets the receiver for bulk transfers on all connections, current and
+     * future.
+     *
+     * @param receiver the receiver, or null to discard them.
+     */
+    protected void setBulkReceiver(JConnBulkReceiver receiver) {
+        bulkReceiver = receiver;
+        final long stamp = lock.readLock();
+        try {
+            threads.forEach((th) -> th.setBulkReceiver(receiver));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
     /**
      * Stop the ThreadPoolExcecutor.
      */
     protected void shutdown() throws IOException {
+        stopped = true;
         pool.shutdown();
+        handlers.shutdown();
         socket.close();
     }
 }
@@ -0,0 +1,145 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The context of a request being handled by a @JConnMethod method. A method
+ * can get the context for its request with current() and use it to stop early
+ * if the client has cancelled the request, the connection has been lost or
+ * the deadline set by the client has passed. When a request is cancelled the
+ * thread running the method is interrupted, and if the method returned a
+ * Future it is cancelled.
+ *
+ * @author David
+ */
+public class JConnContext {
+
+    private static final ThreadLocal<JConnContext> CURRENT = new ThreadLocal<>();
+
+    private final long deadline; //The System.nanoTime() the client stops waiting at, 0 if there is none.
+    private volatile boolean cancelled;
+    private Thread thread; //The thread running the method, null when it is not running.
+    private Future<?> future; //The result of the method, if it returned a Future.
+
+    /**
+     * Creates the context for a request.
+     *
+     * @param deadline the deadline of the request, 0 if there is none.
+     */
+    JConnContext(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get the context of the request the current thread is handling.
+     *
+     * @return the context, or null if the thread is not handling a
+     * request.
+     */
+    public static JConnContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Check if the client no longer wants the reply, because it cancelled the
+     * request or the connection was lost.
+     *
+     * @return true if the request has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Check if the deadline set by the client has passed.
+     *
+     * @return true if the deadline has passed, false if it has not or there
+     * is no deadline.
+     */
+    public boolean isExpired() {
+        return deadline != 0 && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Get the time left until the deadline set by the client.
+     *
+     * @param unit the unit to return the time in.
+     * @return the time left, which is negative if it has passed, or
+     * Long.MAX_VALUE if there is no deadline.
+     */
+    public long getTimeRemaining(TimeUnit unit) {
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Called on the handler thread before the method is invoked.
+     */
+    synchronized void start() {
+        thread = Thread.currentThread();
+        CURRENT.set(this);
+    }
+
+    /**
+     * Called on the handler thread once the method has returned and the
+     * reply has been sent.
+     */
+    synchronized void finish() {
+        thread = null;
+        CURRENT.remove();
+        Thread.interrupted(); //Do not leave an interrupt from a cancel for the next request on this thread.
+    }
+
+    /**
+     * Sets the Future the method returned, so it is cancelled with the
+     * request.
+     *
+     * @param future the Future.
+     */
+    synchronized void setFuture(Future<?> future) {
+        this.future = future;
+        if (cancelled) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Cancels the request. The thread running the method is interrupted and
+     * any Future it returned is cancelled.
+     */
+    synchronized void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (future != null) {
+            future.cancel(true);
+        }
+    }
+}
@@ -20,9 +20,17 @@
  */
 package io.github.davidg95.jconn;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Object for storing data to be sent from client to server or vice-versa. The
@@ -34,18 +42,51 @@ import java.util.UUID;
 public class JConnData implements Serializable, Cloneable {
 
     /**
-     * The UUID for the specific data request.
+     * The correlation id for the request, assigned by the connection when it
+     * is sent. Replies carry the id of the request they are for.
      */
-    private final UUID uuid;
+    private long id;
+
+    /**
+     * The UUID for the specific data request. This is only created if it is
+     * asked for, see getUuid().
+     */
+    private UUID uuid;
 
     /**
      * The flag to indicate what the data is for.
      */
-    private final String flag;
+    private String flag;
+    /**
+     * The id for the flag from the server's method table, or -1 if the flag is
+     * sent in full.
+     */
+    private int flagId = -1;
+    /**
+     * The logical channel the message is on, 0 if it is not on a channel.
+     */
+    private int channel;
+    /**
+     * The names of the parameters. When the parameters are sent by position,
+     * the names are filled in from the method table when they are received.
+     */
+    private String[] names;
+    /**
+     * The values of the parameters which are objects.
+     */
+    private Object[] values;
+    /**
+     * The values of the parameters which are primitives, as raw bits.
+     */
+    private long[] primitives;
+    /**
+     * The kind of each parameter, OBJECT, INT, LONG or DOUBLE.
+     */
+    private byte[] kinds;
     /**
-     * The array which contains any data for the transfer.
+     * The number of parameters.
      */
-    private final HashMap<String, Object> data;
+    private int count;
     /**
      * The return value;
      */
@@ -58,6 +99,52 @@ public class JConnData implements Serializable, Cloneable {
      * The return type for the object.
      */
     private int type;
+    /**
+     * Indicates that the request can safely be sent more than once.
+     */
+    private transient boolean idempotent;
+    /**
+     * The System.nanoTime() after which the reply is not wanted, or 0 if
+     * there is no deadline. It is sent as the time remaining, as the clocks of
+     * the client and server are not related.
+     */
+    private transient long deadline;
+    /**
+     * The priority of the message, which decides the lane it is sent in.
+     */
+    private transient int priority = PRIORITY_NORMAL;
+    /**
+     * The requests or replies carried by a BATCH message.
+     */
+    private JConnData[] batch;
+    /**
+     * The topic of a PUBLISH message.
+     */
+    private String topic;
+    /**
+     * The sequence number of a PUBLISH message in the server's journal, 0 if
+     * it was not journaled.
+     */
+    private long sequence;
+    /**
+     * Indicates that the object has been recycled, and is in the pool or has
+     * been handed out again by obtain(String).
+     */
+    private transient boolean recycled;
+
+    /**
+     * The priority for messages which can wait behind everything else.
+     */
+    public static final int PRIORITY_LOW = 0;
+    /**
+     * The priority messages have unless another is set.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+    /**
+     * The priority for small, urgent messages which should not wait behind
+     * large ones.
+     */
+    public static final int PRIORITY_HIGH = 2;
 
     /**
      * Indicates that this object has parameters and is for a request.
@@ -84,6 +171,98 @@ public class JConnData implements Serializable, Cloneable {
      * Indicates that it is a keepalive packet.
      */
     protected static final int KEEP_ALIVE = 6;
+    /**
+     * Indicates that it is the handshake sent by the server with its method
+     * table.
+     */
+    protected static final int HANDSHAKE = 7;
+    /**
+     * Indicates that it is the start of a bulk transfer.
+     */
+    protected static final int BULK_START = 8;
+    /**
+     * Indicates that it is the end of a bulk transfer.
+     */
+    protected static final int BULK_END = 9;
+    /**
+     * Indicates that it is one item of a streamed result. The stream ends with
+     * a RETURN or EXCEPTION reply.
+     */
+    protected static final int STREAM_ITEM = 10;
+    /**
+     * Indicates that the client has taken items from a streamed result, so
+     * the server can send that many more.
+     */
+    protected static final int STREAM_CREDIT = 11;
+    /**
+     * Indicates that the client no longer wants a streamed result.
+     */
+    protected static final int STREAM_CANCEL = 12;
+    /**
+     * Indicates that the client no longer wants the reply to a request.
+     */
+    protected static final int REQUEST_CANCEL = 13;
+    /**
+     * Indicates that it carries several requests, or the replies to them.
+     */
+    protected static final int BATCH = 14;
+    /**
+     * Indicates that the client is listening for pushes sent over UDP, on the
+     * port in its PORT parameter.
+     */
+    protected static final int DATAGRAM_OPEN = 15;
+    /**
+     * Indicates that the client wants the messages published to the topics
+     * which match the patterns in its PATTERNS parameter.
+     */
+    protected static final int SUBSCRIBE = 16;
+    /**
+     * Indicates that the client no longer wants the messages published to the
+     * topics which match the patterns in its PATTERNS parameter.
+     */
+    protected static final int UNSUBSCRIBE = 17;
+    /**
+     * Indicates that it was published to a topic the client subscribed to.
+     */
+    protected static final int PUBLISH = 18;
+    /**
+     * Indicates that it carries a version of an object sent with
+     * JConnServer.sendState, either whole or as the changes from the last
+     * version.
+     */
+    protected static final int STATE = 19;
+    /**
+     * Indicates that the client could not apply the changes to an object sent
+     * with JConnServer.sendState, so needs the whole of it.
+     */
+    protected static final int STATE_RESYNC = 20;
+    /**
+     * Tells the client the sequence number in the server's journal its
+     * subscriptions start after, so it knows where to resume from.
+     */
+    protected static final int JOURNAL_START = 21;
+
+    private static final byte OBJECT = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+
+    /**
+     * The maximum number of JConnData objects kept for reuse, a power of two.
+     */
+    private static final int POOL_SIZE = 256;
+
+    /**
+     * The number of slots in the pool a thread tries before giving up.
+     */
+    private static final int POOL_PROBES = 8;
+
+    /**
+     * The JConnData objects which have been recycled. Each slot is claimed and
+     * filled with a compare and set, so the connections in the JVM do not
+     * queue on a single lock to obtain and recycle objects.
+     */
+    private static final AtomicReferenceArray<JConnData> POOL = new AtomicReferenceArray<>(POOL_SIZE);
 
     /**
      * Constructor which creates a ConnectionData object with no data, only a
@@ -93,13 +272,17 @@ public class JConnData implements Serializable, Cloneable {
      */
     public JConnData(String flag) {
         this.flag = flag;
-        this.data = new HashMap<>();
-        this.uuid = UUID.randomUUID();
     }
 
+    /**
+     * Constructor which creates a ConnectionData object with a flag and a
+     * globally unique id.
+     *
+     * @param flag the flag.
+     * @param uuid the UUID.
+     */
     public JConnData(String flag, UUID uuid) {
         this.uuid = uuid;
-        this.data = new HashMap<>();
         this.flag = flag;
     }
 
@@ -125,14 +308,130 @@ public class JConnData implements Serializable, Cloneable {
     }
 
     /**
-     * Get the UUID for this request.
+     * Gets a ConnectionData object with a flag and no data, reusing one which
+     * has been recycled if there is one. Used with recycle(), this lets a
+     * caller making many requests avoid allocating a new object for each one.
+     *
+     * @param flag the flag to use.
+     * @return the ConnectionData object.
+     */
+    public static JConnData obtain(String flag) {
+        final int start = poolStart();
+        for (int i = 0; i < POOL_PROBES; i++) {
+            final int slot = (start + i) & (POOL_SIZE - 1);
+            final JConnData data = POOL.get(slot);
+            if (data != null && POOL.compareAndSet(slot, data, null)) {
+                data.recycled = false;
+                data.flag = flag;
+                return data;
+            }
+        }
+        return new JConnData(flag);
+    }
+
+    /**
+     * Gets the slot in the pool the current thread starts at, so threads
+     * spread across the pool rather than all competing for the first slots.
+     *
+     * @return the slot.
+     */
+    private static int poolStart() {
+        return (int) Thread.currentThread().getId() * POOL_PROBES;
+    }
+
+    /**
+     * Clears this object and returns it to the pool, so it can be reused by
+     * obtain(String). This must only be called once the object is no longer
+     * being used, for example once the reply to the request has been
+     * received. The object must not be used after it has been recycled.
+     *
+     * @throws IllegalStateException if the object has already been recycled.
+     */
+    public void recycle() {
+        if (recycled) {
+            throw new IllegalStateException("The JConnData has already been recycled");
+        }
+        recycled = true;
+        id = 0;
+        uuid = null;
+        flag = null;
+        flagId = -1;
+        if (count > 0) {
+            Arrays.fill(names, 0, count, null);
+            Arrays.fill(values, 0, count, null);
+            count = 0;
+        }
+        returnValue = null;
+        exception = null;
+        type = 0;
+        idempotent = false;
+        deadline = 0;
+        priority = PRIORITY_NORMAL;
+        channel = 0;
+        batch = null; //The messages in it are recycled by whoever used them.
+        topic = null;
+        sequence = 0;
+        final int start = poolStart();
+        for (int i = 0; i < POOL_PROBES; i++) {
+            if (POOL.compareAndSet((start + i) & (POOL_SIZE - 1), null, this)) {
+                return;
+            }
+        }
+        //If the slots are full the object is left for the garbage collector.
+    }
+
+    /**
+     * Creates a reply for a request, carrying the same flag and id.
+     *
+     * @param request the request being replied to.
+     * @return the reply.
+     */
+    static JConnData replyTo(JConnData request) {
+        final JConnData reply = obtain(request.flag);
+        reply.uuid = request.uuid;
+        reply.id = request.id;
+        reply.flagId = request.flagId; //The client knows the flag from its id.
+        reply.priority = request.priority; //The reply goes back in the same lane.
+        reply.channel = request.channel;
+        return reply;
+    }
+
+    /**
+     * Get the UUID for this request. JConn correlates replies using getId(), so
+     * a UUID is only generated the first time this is called. If it is called
+     * before the request is sent, the server and the reply will see the same
+     * UUID.
      *
      * @return the UUID.
      */
     public UUID getUuid() {
+        if (uuid == null) {
+            uuid = UUID.randomUUID();
+        }
         return uuid;
     }
 
+    /**
+     * Get the correlation id for this request. This is unique among the
+     * requests sent by one JConn, and is 0 until the request has been sent.
+     *
+     * @return the id.
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Set the correlation id for this request.
+     *
+     * @param id the id.
+     * @return this object.
+     */
+    protected JConnData setId(long id) {
+        this.id = id;
+        return this;
+    }
+
     /**
      * Method to get the flag for this object.
      *
@@ -142,25 +441,213 @@ public class JConnData implements Serializable, Cloneable {
         return flag;
     }
 
+    /**
+     * Set the flag. Used when the flag was sent as an id.
+     *
+     * @param flag the flag.
+     */
+    protected void setFlag(String flag) {
+        this.flag = flag;
+    }
+
+    /**
+     * Get the id for the flag from the server's method table.
+     *
+     * @return the id, or -1 if it is not known.
+     */
+    protected int getFlagId() {
+        return flagId;
+    }
+
+    /**
+     * Set the id for the flag from the server's method table. When the flag id
+     * is set, the parameters are sent by position rather than by name. Any
+     * parameter names which are not known, because they were received by
+     * position, are filled in from the names given.
+     *
+     * @param flagId the id.
+     * @param names the parameter names for the method, in order.
+     */
+    protected void setFlagId(int flagId, String[] names) {
+        this.flagId = flagId;
+        if (names != null && names.length == count) {
+            for (int i = 0; i < count; i++) {
+                if (this.names[i] == null) {
+                    this.names[i] = names[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the name of a parameter.
+     *
+     * @param index the position of the parameter.
+     * @return the name.
+     */
+    protected String getParamName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Get a parameter by its position. Primitive parameters are boxed.
+     *
+     * @param index the position of the parameter.
+     * @return the object.
+     */
+    protected Object getParam(int index) {
+        switch (kinds[index]) {
+            case INT:
+                return (int) primitives[index];
+            case LONG:
+                return primitives[index];
+            case DOUBLE:
+                return Double.longBitsToDouble(primitives[index]);
+            default:
+                return values[index];
+        }
+    }
+
+    /**
+     * Moves a parameter to a new position, swapping it with the parameter
+     * which is there.
+     *
+     * @param from the current position of the parameter.
+     * @param to the new position.
+     */
+    protected void moveParam(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        final String name = names[from];
+        final Object value = values[from];
+        final long primitive = primitives[from];
+        final byte kind = kinds[from];
+        names[from] = names[to];
+        values[from] = values[to];
+        primitives[from] = primitives[to];
+        kinds[from] = kinds[to];
+        names[to] = name;
+        values[to] = value;
+        primitives[to] = primitive;
+        kinds[to] = kind;
+    }
+
+    /**
+     * Find the position of a parameter.
+     *
+     * @param param the name of the parameter.
+     * @return the position, or -1 if there is no parameter with the name.
+     */
+    protected int indexOf(String param) {
+        for (int i = 0; i < count; i++) {
+            if (param.equals(names[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Method to get the data for this object.
      *
-     * @return the data as an Object array.
+     * @return a copy of the parameters in a HashMap.
      * @deprecated use getParam() instead.
      */
     @Deprecated
     public HashMap getData() {
-        return data;
+        final HashMap<String, Object> map = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put(names[i], getParam(i));
+        }
+        return map;
     }
 
     /**
-     * Get a parameter from the hashmap.
+     * Get a parameter from the hashmap. Primitive parameters are boxed.
      *
      * @param param the parameter to get.
      * @return the object.
      */
     public Object getParam(String param) {
-        return data.get(param);
+        final int i = indexOf(param);
+        return i < 0 ? null : getParam(i);
+    }
+
+    /**
+     * Get an int parameter without boxing it.
+     *
+     * @param param the parameter to get.
+     * @return the value, or 0 if there is no parameter with the name.
+     */
+    public int getIntParam(String param) {
+        final int i = indexOf(param);
+        if (i < 0) {
+            return 0;
+        }
+        return kinds[i] == OBJECT ? ((Number) values[i]).intValue() : (int) getLongParam(i);
+    }
+
+    /**
+     * Get a long parameter without boxing it.
+     *
+     * @param param the parameter to get.
+     * @return the value, or 0 if there is no parameter with the name.
+     */
+    public long getLongParam(String param) {
+        final int i = indexOf(param);
+        return i < 0 ? 0 : getLongParam(i);
+    }
+
+    private long getLongParam(int i) {
+        switch (kinds[i]) {
+            case OBJECT:
+                return ((Number) values[i]).longValue();
+            case DOUBLE:
+                return (long) Double.longBitsToDouble(primitives[i]);
+            default:
+                return primitives[i];
+        }
+    }
+
+    /**
+     * Get a double parameter without boxing it.
+     *
+     * @param param the parameter to get.
+     * @return the value, or 0 if there is no parameter with the name.
+     */
+    public double getDoubleParam(String param) {
+        final int i = indexOf(param);
+        if (i < 0) {
+            return 0;
+        }
+        switch (kinds[i]) {
+            case OBJECT:
+                return ((Number) values[i]).doubleValue();
+            case DOUBLE:
+                return Double.longBitsToDouble(primitives[i]);
+            default:
+                return primitives[i];
+        }
+    }
+
+    /**
+     * Check if a parameter has been added.
+     *
+     * @param param the name of the parameter.
+     * @return true if it has been added, false if it has not.
+     */
+    public boolean hasParam(String param) {
+        return indexOf(param) >= 0;
+    }
+
+    /**
+     * Get the number of parameters.
+     *
+     * @return the number of parameters.
+     */
+    public int getParamCount() {
+        return count;
     }
 
     /**
@@ -173,11 +660,96 @@ public class JConnData implements Serializable, Cloneable {
      * @return the JConnData object.
      */
     public JConnData addParam(String name, Object value) {
-        data.put(name, value);
-        type = REQUEST;
+        final int i = slot(name, OBJECT); //Find the slot first, as it may grow the arrays.
+        values[i] = value;
+        return this;
+    }
+
+    /**
+     * Adds an int parameter to the JConnData. The value is kept and sent as a
+     * primitive, it is only boxed if it is read with getParam().
+     *
+     * @param name the name of the parameter, must match the corresponding
+     * parameter value on the server.
+     * @param value the value of the parameter.
+     * @return the JConnData object.
+     */
+    public JConnData addIntParam(String name, int value) {
+        final int i = slot(name, INT); //Find the slot first, as it may grow the arrays.
+        primitives[i] = value;
         return this;
     }
 
+    /**
+     * Adds a long parameter to the JConnData. The value is kept and sent as a
+     * primitive, it is only boxed if it is read with getParam().
+     *
+     * @param name the name of the parameter, must match the corresponding
+     * parameter value on the server.
+     * @param value the value of the parameter.
+     * @return the JConnData object.
+     */
+    public JConnData addLongParam(String name, long value) {
+        final int i = slot(name, LONG); //Find the slot first, as it may grow the arrays.
+        primitives[i] = value;
+        return this;
+    }
+
+    /**
+     * Adds a double parameter to the JConnData. The value is kept and sent as
+     * a primitive, it is only boxed if it is read with getParam().
+     *
+     * @param name the name of the parameter, must match the corresponding
+     * parameter value on the server.
+     * @param value the value of the parameter.
+     * @return the JConnData object.
+     */
+    public JConnData addDoubleParam(String name, double value) {
+        final int i = slot(name, DOUBLE); //Find the slot first, as it may grow the arrays.
+        primitives[i] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+    /**
+     * Finds the position for a parameter, adding it if it does not exist.
+     *
+     * @param name the name of the parameter.
+     * @param kind the kind of the parameter.
+     * @return the position.
+     */
+    private int slot(String name, byte kind) {
+        int i = indexOf(name);
+        if (i < 0) {
+            i = append(name);
+        }
+        kinds[i] = kind;
+        values[i] = null;
+        type = REQUEST;
+        return i;
+    }
+
+    /**
+     * Adds a parameter on the end, growing the arrays if they are full.
+     *
+     * @param name the name of the parameter.
+     * @return the position.
+     */
+    private int append(String name) {
+        if (names == null) {
+            names = new String[4];
+            values = new Object[4];
+            primitives = new long[4];
+            kinds = new byte[4];
+        } else if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            primitives = Arrays.copyOf(primitives, count * 2);
+            kinds = Arrays.copyOf(kinds, count * 2);
+        }
+        names[count] = name;
+        return count++;
+    }
+
     /**
      * Sets the return value for this object.
      *
@@ -242,6 +814,319 @@ public class JConnData implements Serializable, Cloneable {
         return this;
     }
 
+    /**
+     * Marks this request as idempotent, meaning it can be sent to the server
+     * again if the connection drops before a reply is received. See
+     * JConn.setReplayOnReconnect(boolean).
+     *
+     * @param idempotent true if the request is idempotent.
+     * @return this object.
+     */
+    public JConnData setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+        return this;
+    }
+
+    /**
+     * Check if this request is idempotent.
+     *
+     * @return true if the request can safely be sent more than once.
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Sets the priority of this message. When a large message is being sent,
+     * it is split into fragments and messages of a higher priority are sent
+     * between them, so they do not wait for it to finish. A reply has the
+     * priority of its request.
+     *
+     * @param priority PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH.
+     * @return this object.
+     */
+    public JConnData setPriority(int priority) {
+        if (priority < PRIORITY_LOW || priority > PRIORITY_HIGH) {
+            throw new IllegalArgumentException("Invalid priority " + priority);
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Get the priority of this message.
+     *
+     * @return PRIORITY_LOW, PRIORITY_NORMAL or PRIORITY_HIGH.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Sets the logical channel this message is on. Requests sent through a
+     * JConnChannel are put on its channel, and a server can send a message to
+     * the listeners of a client's channel by setting it before sending. A
+     * reply is on the channel of its request.
+     *
+     * @param channel the channel, or 0 for none.
+     * @return this object.
+     */
+    public JConnData setChannel(int channel) {
+        if (channel < 0) {
+            throw new IllegalArgumentException("Invalid channel " + channel);
+        }
+        this.channel = channel;
+        return this;
+    }
+
+    /**
+     * Get the logical channel this message is on.
+     *
+     * @return the channel, or 0 if it is not on one.
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * Makes this a PUBLISH message for a topic.
+     *
+     * @param topic the topic.
+     * @return this object.
+     */
+    JConnData setTopic(String topic) {
+        this.topic = topic;
+        this.type = PUBLISH;
+        this.sequence = 0;
+        return this;
+    }
+
+    /**
+     * Sets the sequence number of a PUBLISH message in the server's journal.
+     *
+     * @param sequence the sequence number.
+     * @return this object.
+     */
+    JConnData setSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    /**
+     * Get the sequence number of a message published by a server with a
+     * journal, see JConnServer.openJournal(String).
+     *
+     * @return the sequence number, or 0 if it was not journaled.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the topic this message was published to by
+     * JConnServer.publish(String, JConnData).
+     *
+     * @return the topic, or null if it was not published to a topic.
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Sets the messages carried by a BATCH message.
+     *
+     * @param batch the messages.
+     * @return this object.
+     */
+    JConnData setBatch(JConnData[] batch) {
+        this.batch = batch;
+        return this;
+    }
+
+    /**
+     * Get the messages carried by a BATCH message.
+     *
+     * @return the messages, or null if this is not a BATCH message.
+     */
+    JConnData[] getBatch() {
+        return batch;
+    }
+
+    /**
+     * Sets how long the caller will wait for the reply. The time starts now
+     * and is sent to the server with the request, so the server does not
+     * start work on it once the caller has given up.
+     *
+     * @param timeout the time to wait.
+     * @param unit the unit of the timeout.
+     * @return this object.
+     */
+    public JConnData setTimeout(long timeout, TimeUnit unit) {
+        deadline = (System.nanoTime() + unit.toNanos(timeout)) | 1; //0 means there is no deadline.
+        return this;
+    }
+
+    /**
+     * Get the time left until the deadline of this request.
+     *
+     * @param unit the unit to return the time in.
+     * @return the time left, which is negative if it has passed, or
+     * Long.MAX_VALUE if there is no deadline.
+     */
+    public long getTimeRemaining(TimeUnit unit) {
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Check if the deadline of this request has passed.
+     *
+     * @return true if it has passed, false if it has not or there is no
+     * deadline.
+     */
+    public boolean isExpired() {
+        return deadline != 0 && deadline - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Get the deadline of this request.
+     *
+     * @return the System.nanoTime() of the deadline, or 0 if there is none.
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Writes the data for Java serialization.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if there was an error writing the data.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        writeFields(out);
+    }
+
+    /**
+     * Reads the data written by writeObject(ObjectOutputStream).
+     *
+     * @param in the stream to read from.
+     * @throws IOException if there was an error reading the data.
+     * @throws ClassNotFoundException if the class of a value is not found.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        priority = PRIORITY_NORMAL; //The constructor is not run, and the priority is not serialized.
+        readFields(in);
+    }
+
+    /**
+     * Writes the data. The flag is only written if its id is not known, and
+     * the parameters are written without their names if it is. Primitive
+     * parameters are written as primitives, and all other values are written
+     * with writeObject(Object), so a JConnCodec decides how they are encoded.
+     *
+     * @param out the stream to write to.
+     * @throws IOException if there was an error writing the data.
+     */
+    public void writeFields(ObjectOutput out) throws IOException {
+        out.writeLong(id);
+        out.writeInt(type);
+        out.writeInt(flagId);
+        out.writeInt(channel);
+        if (flagId < 0) {
+            out.writeObject(flag);
+        }
+        out.writeObject(uuid);
+        if (type <= REQUEST) { //Only requests have a deadline.
+            final long remaining = deadline == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            out.writeLong(deadline != 0 && remaining <= 0 ? -1 : remaining); //0 means there is no deadline, negative that it has passed.
+        }
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            if (flagId < 0) { //By name.
+                out.writeObject(names[i]);
+            }
+            out.writeByte(kinds[i]);
+            switch (kinds[i]) {
+                case INT:
+                    out.writeInt((int) primitives[i]);
+                    break;
+                case OBJECT:
+                    out.writeObject(values[i]);
+                    break;
+                default:
+                    out.writeLong(primitives[i]);
+                    break;
+            }
+        }
+        out.writeObject(returnValue);
+        out.writeObject(exception);
+        if (type == PUBLISH) {
+            out.writeObject(topic);
+            out.writeLong(sequence);
+        }
+        if (type == BATCH) {
+            out.writeInt(batch.length);
+            for (JConnData data : batch) {
+                data.writeFields(out);
+            }
+        }
+    }
+
+    /**
+     * Reads the data written by writeFields(ObjectOutput) into this object,
+     * which should be empty.
+     *
+     * @param in the stream to read from.
+     * @throws IOException if there was an error reading the data.
+     * @throws ClassNotFoundException if the class of a value is not found.
+     */
+    public void readFields(ObjectInput in) throws IOException, ClassNotFoundException {
+        id = in.readLong();
+        type = in.readInt();
+        flagId = in.readInt();
+        channel = in.readInt();
+        if (flagId < 0) {
+            flag = (String) in.readObject();
+        }
+        uuid = (UUID) in.readObject();
+        if (type <= REQUEST) {
+            final long remaining = in.readLong(); //The time left in milliseconds.
+            deadline = remaining == 0 ? 0 : (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining)) | 1;
+        }
+        final int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            final int slot = append(flagId < 0 ? (String) in.readObject() : null);
+            kinds[slot] = in.readByte();
+            switch (kinds[slot]) {
+                case INT:
+                    primitives[slot] = in.readInt();
+                    break;
+                case OBJECT:
+                    values[slot] = in.readObject();
+                    break;
+                default:
+                    primitives[slot] = in.readLong();
+                    break;
+            }
+        }
+        returnValue = in.readObject();
+        exception = (Throwable) in.readObject();
+        if (type == PUBLISH) {
+            topic = (String) in.readObject();
+            sequence = in.readLong();
+        }
+        if (type == BATCH) {
+            batch = new JConnData[in.readInt()];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = obtain(null);
+                batch[i].readFields(in);
+            }
+        }
+    }
+
     /**
      * Method to clone the ConnectionData object.
      *
@@ -252,6 +1137,34 @@ public class JConnData implements Serializable, Cloneable {
     protected JConnData clone() throws CloneNotSupportedException {
         try {
             final JConnData result = (JConnData) super.clone();
+            if (names != null) { //Do not share the parameters with the clone.
+                result.names = names.clone();
+                result.values = values.clone();
+                result.primitives = primitives.clone();
+                result.kinds = kinds.clone();
+            }
+            return result;
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError();
+        }
+    }
+
+    /**
+     * Creates a copy which shares the values of the parameters and the return
+     * value, but not the parameters themselves, so either can be recycled
+     * without changing the other. The messages in a batch are copied too.
+     *
+     * @return the copy.
+     */
+    JConnData copy() {
+        try {
+            final JConnData result = clone();
+            if (batch != null) {
+                result.batch = new JConnData[batch.length];
+                for (int i = 0; i < batch.length; i++) {
+                    result.batch[i] = batch[i].copy();
+                }
+            }
             return result;
         } catch (CloneNotSupportedException ex) {
             throw new AssertionError();
@@ -267,6 +1180,6 @@ public class JConnData implements Serializable, Cloneable {
     @Override
     public String toString() {
         return "Flag- " + this.flag
-                + "\n Data- " + this.data.size();
+                + "\n Data- " + getParamCount();
     }
 }
@@ -0,0 +1,319 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes sent over UDP rather than over the connection, for high rate
+ * messages where losing some is better than waiting for them. Each datagram
+ * is the magic number, the epoch of the sender, the sequence number of the
+ * datagram and the message encoded with the binary codec, which keeps nothing
+ * between messages so each datagram can be decoded on its own. The sequence
+ * numbers let the receiver count the datagrams which were lost and drop any
+ * which arrive after a later one. The epoch is chosen at random each time a
+ * sequence starts, so the receiver can tell when a server has restarted.
+ *
+ * @author David
+ */
+class JConnDatagrams {
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    /**
+     * Starts each datagram, so stray datagrams are ignored.
+     */
+    private static final int MAGIC = 0x4A434447;
+
+    /**
+     * The length of the magic number, epoch and sequence number.
+     */
+    private static final int HEADER = 16;
+
+    /**
+     * The largest datagram which can be sent over UDP.
+     */
+    private static final int MAX_SIZE = 65507;
+
+    /**
+     * Encodes a message into a datagram, with room for the header. The
+     * datagram can then be sent to any number of targets.
+     *
+     * @param data the message.
+     * @return the datagram.
+     * @throws IOException if the message could not be encoded, or is too
+     * large for a datagram.
+     */
+    static byte[] encode(JConnData data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(new byte[HEADER]);
+        JConnCodecs.get(JConnCodecs.BINARY).newEncoder().encode(data, out);
+        if (out.size() > MAX_SIZE) {
+            throw new IOException(data.getFlag() + " is too large for a datagram, send it over the connection");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Where datagrams are sent, with the sequence of the datagrams sent to it.
+     */
+    static final class Target {
+
+        private final InetSocketAddress address;
+        private final int epoch; //Chosen at random for this sequence.
+        private long sequence; //The sequence number of the last datagram sent.
+        private final StampedLock lock; //Held while a datagram is numbered and sent, so they go out in order.
+
+        /**
+         * Creates a target with a new sequence.
+         *
+         * @param address the address to send to.
+         */
+        Target(InetSocketAddress address) {
+            this.address = address;
+            epoch = ThreadLocalRandom.current().nextInt();
+            lock = new StampedLock();
+        }
+    }
+
+    /**
+     * Sends datagrams from the server.
+     */
+    static final class Sender {
+
+        private DatagramSocket socket; //Opened when the first datagram is sent.
+        private boolean closed;
+        private final StampedLock lock; //Lock for opening the socket.
+
+        /**
+         * Creates a sender.
+         */
+        Sender() {
+            lock = new StampedLock();
+        }
+
+        /**
+         * Sends a datagram to a target, with the next sequence number of the
+         * target.
+         *
+         * @param datagram the datagram from encode(JConnData). Its header is
+         * overwritten.
+         * @param target the target.
+         * @throws IOException if there was an error sending the datagram.
+         */
+        void send(byte[] datagram, Target target) throws IOException {
+            final DatagramSocket s = socket();
+            final long stamp = target.lock.writeLock();
+            try {
+                ByteBuffer.wrap(datagram).putInt(MAGIC).putInt(target.epoch).putLong(++target.sequence);
+                s.send(new DatagramPacket(datagram, datagram.length, target.address));
+            } finally {
+                target.lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Gets the socket, opening it if this is the first datagram.
+         *
+         * @return the socket.
+         * @throws SocketException if the socket could not be opened, or the
+         * sender has been closed.
+         */
+        private DatagramSocket socket() throws SocketException {
+            long stamp = lock.readLock();
+            try {
+                if (socket != null) {
+                    return socket;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            stamp = lock.writeLock();
+            try {
+                if (closed) {
+                    throw new SocketException("The server has been stopped");
+                }
+                if (socket == null) {
+                    socket = new DatagramSocket();
+                }
+                return socket;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Closes the socket.
+         */
+        void close() {
+            final long stamp = lock.writeLock();
+            try {
+                closed = true;
+                if (socket != null) {
+                    socket.close();
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Called by a Receiver with each message it receives.
+     */
+    interface Handler {
+
+        /**
+         * Handles a message.
+         *
+         * @param data the message.
+         * @param missed the number of datagrams which were lost since the
+         * last one which was received.
+         */
+        void receive(JConnData data, long missed);
+    }
+
+    /**
+     * Thread which receives datagrams on the client and passes the messages
+     * in them to a Handler, in order.
+     */
+    static final class Receiver extends Thread {
+
+        private final DatagramSocket socket;
+        private final Handler handler;
+        private final JConnCodec.Decoder decoder;
+        private boolean started; //Indicates that a datagram has been received.
+        private int epoch; //The epoch of the sequence being received.
+        private long next; //The sequence number expected next.
+
+        private Receiver(String name, DatagramSocket socket, Handler handler) {
+            super(name);
+            setDaemon(true);
+            this.socket = socket;
+            this.handler = handler;
+            decoder = JConnCodecs.get(JConnCodecs.BINARY).newDecoder();
+        }
+
+        /**
+         * Starts receiving datagrams sent to this machine, on any free port.
+         *
+         * @param handler the handler for the messages.
+         * @return the receiver.
+         * @throws IOException if the socket could not be opened.
+         */
+        static Receiver unicast(Handler handler) throws IOException {
+            final Receiver receiver = new Receiver("JCONN-DATAGRAMS", new DatagramSocket(), handler);
+            receiver.start();
+            return receiver;
+        }
+
+        /**
+         * Starts receiving datagrams sent to a multicast group.
+         *
+         * @param group the address of the group.
+         * @param port the port.
+         * @param handler the handler for the messages.
+         * @return the receiver.
+         * @throws IOException if the group could not be joined.
+         */
+        static Receiver multicast(String group, int port, Handler handler) throws IOException {
+            final MulticastSocket socket = new MulticastSocket(port);
+            try {
+                socket.joinGroup(new InetSocketAddress(InetAddress.getByName(group), port), null); //On the default interface.
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+            final Receiver receiver = new Receiver("JCONN-MULTICAST", socket, handler);
+            receiver.start();
+            return receiver;
+        }
+
+        /**
+         * Get the port the datagrams are received on.
+         *
+         * @return the port.
+         */
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        /**
+         * Stops receiving datagrams.
+         */
+        void close() {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            final DatagramPacket packet = new DatagramPacket(new byte[MAX_SIZE], MAX_SIZE);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(MAX_SIZE);
+                    socket.receive(packet);
+                    if (packet.getLength() < HEADER) {
+                        continue;
+                    }
+                    final ByteBuffer header = ByteBuffer.wrap(packet.getData(), packet.getOffset(), HEADER);
+                    if (header.getInt() != MAGIC) {
+                        continue;
+                    }
+                    final int e = header.getInt();
+                    final long sequence = header.getLong();
+                    long missed = 0;
+                    if (!started || e != epoch) { //The first datagram, or the sender has started again.
+                        started = true;
+                        epoch = e;
+                    } else if (sequence < next) { //A later one has already been passed on.
+                        continue;
+                    } else {
+                        missed = sequence - next;
+                    }
+                    next = sequence + 1;
+                    final JConnData data = decoder.decode(new ByteArrayInputStream(packet.getData(), packet.getOffset() + HEADER, packet.getLength() - HEADER));
+                    handler.receive(data, missed);
+                } catch (IOException ex) {
+                    if (!socket.isClosed()) {
+                        LOG.log(Level.WARNING, "Error receiving a datagram", ex);
+                    }
+                } catch (ClassNotFoundException ex) {
+                    LOG.log(Level.WARNING, "Could not decode a datagram", ex);
+                } catch (Exception ex) {
+                    LOG.log(Level.SEVERE, "Error passing a datagram to the listeners", ex);
+                }
+            }
+        }
+    }
+}
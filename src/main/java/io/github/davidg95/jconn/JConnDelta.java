@@ -0,0 +1,118 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+/**
+ * Binary deltas between two encodings of a message. A delta is the length of
+ * the new bytes, then each range which changed as its offset, its length and
+ * the new bytes. Bytes are compared at the same offset, which suits messages
+ * whose values change but keep their size, such as the numbers in a large
+ * object. A change in size part way through moves everything after it, so
+ * the delta is not used if it would not be much smaller than the message.
+ *
+ * @author David
+ */
+class JConnDelta {
+
+    /**
+     * Two changed ranges closer than this are sent as one, as each range
+     * costs 8 bytes for its offset and length.
+     */
+    private static final int GAP = 8;
+
+    /**
+     * Creates the delta from one encoding to the next.
+     *
+     * @param base the bytes the other side has.
+     * @param next the new bytes.
+     * @return the delta, or null if it would not be less than half the size
+     * of the new bytes, when they should be sent whole.
+     */
+    static byte[] diff(byte[] base, byte[] next) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final int limit = next.length / 2;
+        try {
+            out.writeInt(next.length);
+            final int common = Math.min(base.length, next.length);
+            int i = 0;
+            while (i < common) {
+                if (base[i] == next[i]) {
+                    i++;
+                    continue;
+                }
+                final int start = i;
+                int end = i + 1; //One past the last byte which differs.
+                for (int j = end; j < common && j < end + GAP; j++) { //Keep going while the next change is close.
+                    if (base[j] != next[j]) {
+                        end = j + 1;
+                    }
+                }
+                out.writeInt(start);
+                out.writeInt(end - start);
+                out.write(next, start, end - start);
+                if (bytes.size() >= limit) {
+                    return null;
+                }
+                i = end;
+            }
+            if (next.length > common) { //The new bytes are longer.
+                out.writeInt(common);
+                out.writeInt(next.length - common);
+                out.write(next, common, next.length - common);
+            }
+            out.flush();
+        } catch (IOException ex) {
+            throw new AssertionError(ex); //Writing to memory does not fail.
+        }
+        return bytes.size() < limit ? bytes.toByteArray() : null;
+    }
+
+    /**
+     * Applies a delta to the bytes it was made from.
+     *
+     * @param base the bytes the delta was made from.
+     * @param delta the delta.
+     * @return the new bytes.
+     * @throws IOException if the delta is not valid for the bytes.
+     */
+    static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+        final byte[] result = Arrays.copyOf(base, in.readInt());
+        while (in.available() > 0) {
+            final int offset = in.readInt();
+            final int length = in.readInt();
+            if (offset < 0 || length < 0 || offset + length > result.length) {
+                throw new StreamCorruptedException("Invalid delta");
+            }
+            in.readFully(result, offset, length);
+        }
+        return result;
+    }
+}
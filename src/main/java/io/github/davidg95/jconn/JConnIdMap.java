@@ -0,0 +1,188 @@
+/*
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Map from correlation ids to values. The ids are kept as primitive longs in
+ * an open addressed table, so looking up a reply does not box or hash an
+ * object. This class is not thread safe, callers must hold their own lock.
+ *
+ * @author David
+ * @param <V> the type of the values.
+ */
+class JConnIdMap<V> {
+
+    private long[] keys; //The ids.
+    private Object[] values; //The values, null where a slot is empty.
+    private int size;
+
+    /**
+     * Creates a new, empty JConnIdMap.
+     */
+    JConnIdMap() {
+        keys = new long[16];
+        values = new Object[16];
+    }
+
+    /**
+     * Spreads the bits of the id, as the ids are sequential.
+     *
+     * @param id the id.
+     * @param mask the mask for the table length.
+     * @return the index of the preferred slot.
+     */
+    private static int index(long id, int mask) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Adds a value to the map, replacing any value for the same id.
+     *
+     * @param id the id.
+     * @param value the value, must not be null.
+     */
+    void put(long id, V value) {
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        final int mask = keys.length - 1;
+        int i = index(id, mask);
+        while (values[i] != null) {
+            if (keys[i] == id) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        values[i] = value;
+        size++;
+    }
+
+    /**
+     * Gets the value for an id.
+     *
+     * @param id the id.
+     * @return the value, or null if there is no value for the id.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long id) {
+        final int mask = keys.length - 1;
+        int i = index(id, mask);
+        while (values[i] != null) {
+            if (keys[i] == id) {
+                return (V) values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the value for an id.
+     *
+     * @param id the id.
+     * @return the value which was removed, or null if there was no value for
+     * the id.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long id) {
+        final int mask = keys.length - 1;
+        int i = index(id, mask);
+        while (values[i] != null) {
+            if (keys[i] == id) {
+                final V value = (V) values[i];
+                values[i] = null;
+                size--;
+                //Move any following entries back, so they can still be found.
+                int j = (i + 1) & mask;
+                while (values[j] != null) {
+                    final int k = index(keys[j], mask);
+                    if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+                        keys[i] = keys[j];
+                        values[i] = values[j];
+                        values[j] = null;
+                        i = j;
+                    }
+                    j = (j + 1) & mask;
+                }
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns all the values in the map.
+     *
+     * @return a List of the values.
+     */
+    @SuppressWarnings("unchecked")
+    List<V> values() {
+        final List<V> list = new ArrayList<>(size);
+        for (Object v : values) {
+            if (v != null) {
+                list.add((V) v);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of values in the map.
+     *
+     * @return the size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the values from the map.
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Doubles the size of the table.
+     */
+    @SuppressWarnings("unchecked")
+    private void resize() {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The codec which uses Java serialization. Each connection keeps one
+ * ObjectOutputStream and one ObjectInputStream. The streams keep every object
+ * they have sent until they are reset, so they are reset after
+ * JConnCodecs.JAVA_RESET_MESSAGES messages or JConnCodecs.JAVA_RESET_BYTES
+ * bytes. Class descriptors are kept in a separate table which is not cleared
+ * by a reset, so each one is only sent in full once per connection.
+ *
+ * @author David
+ */
+class JConnJavaCodec implements JConnCodec {
+
+    @Override
+    public String getName() {
+        return JConnCodecs.JAVA;
+    }
+
+    @Override
+    public JConnCodec.Encoder newEncoder() {
+        return new Encoder();
+    }
+
+    @Override
+    public JConnCodec.Decoder newDecoder() {
+        return new Decoder();
+    }
+
+    /**
+     * Writes each message into a buffer with the connection's
+     * ObjectOutputStream, then copies the buffer out.
+     */
+    private static class Encoder implements JConnCodec.Encoder {
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private Output out; //Created with the first message, so the stream header goes out with it.
+        private int messages; //Messages since the stream was reset.
+        private long bytes; //Bytes since the stream was reset.
+
+        @Override
+        public void encode(JConnData data, OutputStream to) throws IOException {
+            if (out == null) {
+                out = new Output(buffer);
+            } else if ((JConnCodecs.JAVA_RESET_MESSAGES > 0 && messages >= JConnCodecs.JAVA_RESET_MESSAGES) || (JConnCodecs.JAVA_RESET_BYTES > 0 && bytes >= JConnCodecs.JAVA_RESET_BYTES)) {
+                out.reset(); //Let go of the objects which have been sent. The other side clears its table when it reads the reset.
+                messages = 0;
+                bytes = 0;
+            }
+            out.writeUnshared(data); //Unshared, so the stream does not keep a reference to it.
+            out.flush();
+            messages++;
+            bytes += buffer.size();
+            buffer.writeTo(to);
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Reads each message with the connection's ObjectInputStream, which reads
+     * from whichever message is being decoded.
+     */
+    private static class Decoder implements JConnCodec.Decoder {
+
+        private final Source source = new Source();
+        private Input in; //Created with the first message, which starts with the stream header.
+
+        @Override
+        public JConnData decode(InputStream from) throws IOException, ClassNotFoundException {
+            source.from = from;
+            if (in == null) {
+                in = new Input(source);
+            }
+            return (JConnData) in.readUnshared();
+        }
+    }
+
+    /**
+     * ObjectOutputStream which sends each class descriptor in full the first
+     * time it is written, and after that only its id.
+     */
+    private static class Output extends ObjectOutputStream {
+
+        private final HashMap<ObjectStreamClass, Integer> sent = new HashMap<>(); //The id of each descriptor which has been sent.
+
+        private Output(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            final Integer id = sent.get(desc);
+            if (id != null) {
+                writeBoolean(false);
+                writeInt(id);
+                return;
+            }
+            writeBoolean(true);
+            writeInt(sent.size());
+            sent.put(desc, sent.size());
+            super.writeClassDescriptor(desc);
+        }
+    }
+
+    /**
+     * ObjectInputStream which reads the class descriptors written by Output.
+     */
+    private static class Input extends ObjectInputStream {
+
+        private final List<ObjectStreamClass> received = new ArrayList<>(); //The descriptors which have been received, by id.
+
+        private Input(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            final boolean full = readBoolean();
+            final int id = readInt();
+            if (!full) {
+                if (id < 0 || id >= received.size()) {
+                    throw new StreamCorruptedException("Unknown class descriptor " + id);
+                }
+                return received.get(id);
+            }
+            final ObjectStreamClass desc = super.readClassDescriptor();
+            received.add(desc);
+            return desc;
+        }
+    }
+
+    /**
+     * Passes reads through to the message being decoded.
+     */
+    private static class Source extends InputStream {
+
+        private InputStream from;
+
+        @Override
+        public int read() throws IOException {
+            return from.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return from.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return from.available();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append only journal of the messages published by a server, so clients
+ * which lose their connection can carry on from where they were. Each message
+ * is given the next sequence number, starting at 1, and written to the end of
+ * the current segment, a memory mapped file named after the sequence number
+ * of its first message. When a message does not fit, a new segment is
+ * started, and the oldest segments are deleted once there are more than
+ * JConn.JOURNAL_SEGMENTS of them, or they are older than
+ * JConn.JOURNAL_RETENTION.
+ *
+ * Each entry is its length, its sequence number, the length of its topic, the
+ * topic and the message encoded with the binary codec, so it can be sent
+ * without being encoded again. The length is written last, and a length of 0
+ * marks the end of a segment, so when a journal is opened again only the last
+ * segment has to be scanned to find where to carry on. Nothing has to be
+ * replayed through the application.
+ *
+ * There is one journal for all topics, so a client resumes with one sequence
+ * number, and gets the messages on topics which were first published while it
+ * was away.
+ *
+ * @author David
+ */
+class JConnJournal {
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final String SUFFIX = ".jnl";
+
+    /**
+     * The bytes in an entry before the topic: the length, the sequence number
+     * and the length of the topic.
+     */
+    private static final int ENTRY_HEADER = 16;
+
+    private final Path dir;
+    private final List<Segment> segments; //Oldest first. Guarded by lock.
+    private final StampedLock lock; //Held while appending, and while the segments list is used.
+    private volatile long end; //The sequence number the next message will get. Readers do not read past it.
+
+    private JConnJournal(Path dir, List<Segment> segments, long end) {
+        this.dir = dir;
+        this.segments = segments;
+        this.end = end;
+        lock = new StampedLock();
+    }
+
+    /**
+     * Opens the journal in a directory, or starts a new one if there is not
+     * one there.
+     *
+     * @param dir the directory.
+     * @return the journal.
+     * @throws IOException if the journal could not be opened.
+     */
+    static JConnJournal open(String dir) throws IOException {
+        final Path path = Paths.get(dir);
+        Files.createDirectories(path);
+        final List<Segment> segments = new ArrayList<>();
+        final File[] files = path.toFile().listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    segments.add(new Segment(file.toPath(), Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())), file.lastModified()));
+                } catch (NumberFormatException ex) {
+                    LOG.log(Level.WARNING, "Ignoring " + file + " in the journal");
+                }
+            }
+        }
+        segments.sort((a, b) -> Long.compare(a.base, b.base));
+        if (segments.isEmpty()) {
+            segments.add(Segment.create(path, 1, JConn.JOURNAL_SEGMENT_SIZE));
+            return new JConnJournal(path, segments, 1);
+        }
+        final Segment last = segments.get(segments.size() - 1);
+        long next = last.base;
+        int position = 0;
+        final MappedByteBuffer buffer = last.map();
+        while (position + 4 <= buffer.capacity()) { //Find the end of the last segment.
+            final int length = buffer.getInt(position);
+            if (length <= 0 || position + length > buffer.capacity()) {
+                break;
+            }
+            next = buffer.getLong(position + 4) + 1;
+            position += length;
+        }
+        last.position = position;
+        last.closed = Long.MAX_VALUE;
+        return new JConnJournal(path, segments, next);
+    }
+
+    /**
+     * Appends a message to the journal. It is given the next sequence number
+     * before it is encoded, so the client can tell where it is up to.
+     *
+     * @param topic the topic.
+     * @param data the message, a PUBLISH message for the topic.
+     * @return the sequence number.
+     * @throws IOException if the message could not be written.
+     */
+    long append(String topic, JConnData data) throws IOException {
+        final byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        final long stamp = lock.writeLock();
+        try {
+            final long sequence = end;
+            data.setSequence(sequence);
+            final byte[] bytes = JConnBinaryCodec.encode(data);
+            final int length = ENTRY_HEADER + name.length + bytes.length;
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.position + length + 4 > segment.map().capacity()) { //Leave room for the 0 which marks the end.
+                segment = roll(sequence, length + 4);
+            }
+            final MappedByteBuffer buffer = segment.map();
+            final int at = segment.position;
+            buffer.putLong(at + 4, sequence);
+            buffer.putInt(at + 12, name.length);
+            for (int i = 0; i < name.length; i++) {
+                buffer.put(at + ENTRY_HEADER + i, name[i]);
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                buffer.put(at + ENTRY_HEADER + name.length + i, bytes[i]);
+            }
+            buffer.putInt(at, length); //Last, so a half written entry is not read after a crash.
+            if (JConn.JOURNAL_SYNC) {
+                buffer.force();
+            }
+            segment.position = at + length;
+            end = sequence + 1;
+            return sequence;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Starts a new segment, and deletes the old ones which are no longer
+     * kept. The lock must be held.
+     *
+     * @param base the sequence number of the first message in it.
+     * @param needed the space the first message needs.
+     * @return the new segment.
+     * @throws IOException if the segment could not be created.
+     */
+    private Segment roll(long base, int needed) throws IOException {
+        final Segment full = segments.remove(segments.size() - 1);
+        if (full.position == 0) { //The message is larger than the segment, so replace it with a larger one.
+            Files.delete(full.path);
+        } else {
+            full.map().force(); //Make sure it is all on disk before moving on.
+            full.closed = System.currentTimeMillis();
+            segments.add(full);
+        }
+        final Segment segment = Segment.create(dir, base, Math.max(JConn.JOURNAL_SEGMENT_SIZE, needed));
+        segments.add(segment);
+        final long expired = JConn.JOURNAL_RETENTION > 0 ? System.currentTimeMillis() - JConn.JOURNAL_RETENTION : Long.MIN_VALUE;
+        while (segments.size() > 1 && (segments.size() > JConn.JOURNAL_SEGMENTS || segments.get(0).closed < expired)) {
+            final Segment old = segments.remove(0);
+            try {
+                Files.deleteIfExists(old.path); //Cursors map a segment before they use it, so they can carry on reading it.
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not delete " + old.path, ex);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Get the sequence number the next message will get.
+     *
+     * @return the sequence number.
+     */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * Creates a cursor which reads from a sequence number. If the messages
+     * from there have already been deleted, it starts at the oldest message
+     * which is kept.
+     *
+     * @param from the sequence number of the first message to read.
+     * @return the cursor.
+     * @throws IOException if the segment could not be mapped.
+     */
+    Cursor cursor(long from) throws IOException {
+        final long stamp = lock.readLock();
+        try {
+            int i = segments.size() - 1;
+            while (i > 0 && segments.get(i).base > from) {
+                i--;
+            }
+            final Segment segment = segments.get(i);
+            if (segment.base > from) {
+                LOG.log(Level.WARNING, "Messages " + from + " to " + (segment.base - 1) + " are no longer in the journal");
+            }
+            segment.map(); //While the lock is held, so it is not deleted before it is mapped.
+            return new Cursor(segment, Math.min(Math.max(from, segment.base), end)); //The journal may have been started again since the client saw it.
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Gets the segment after one, for a cursor which has read to its end.
+     *
+     * @param segment the segment.
+     * @return the next segment, or null if it is the current one.
+     * @throws IOException if the segment could not be mapped.
+     */
+    private Segment next(Segment segment) throws IOException {
+        final long stamp = lock.readLock();
+        try {
+            final int i = segments.indexOf(segment);
+            Segment s = null;
+            if (i >= 0) {
+                s = i + 1 < segments.size() ? segments.get(i + 1) : null;
+            } else { //It has been deleted, or replaced by a larger one with the same base.
+                for (Segment t : segments) {
+                    if (t.base >= segment.base) {
+                        s = t;
+                        break;
+                    }
+                }
+            }
+            if (s != null) {
+                s.map(); //While the lock is held, so it is not deleted before it is mapped.
+            }
+            return s;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Reads the messages in the journal in order. A cursor is only used by one
+     * thread at a time.
+     */
+    final class Cursor {
+
+        private Segment segment;
+        private int position; //Where the next entry to read starts.
+        private long next; //The sequence number of the next message wanted.
+
+        private Cursor(Segment segment, long next) {
+            this.segment = segment;
+            this.next = next;
+        }
+
+        /**
+         * Reads the next message.
+         *
+         * @param entry where to put the message.
+         * @return false if there are no more messages yet.
+         * @throws IOException if the journal could not be read.
+         */
+        boolean read(Entry entry) throws IOException {
+            while (next < end) {
+                final MappedByteBuffer buffer = segment.map();
+                final int length = position + 4 <= buffer.capacity() ? buffer.getInt(position) : 0;
+                if (length == 0) { //The end of the segment, the next message is in the next one.
+                    final Segment s = next(segment);
+                    if (s == null) {
+                        throw new StreamCorruptedException("Message " + next + " is missing from the journal");
+                    }
+                    if (s.base > next) { //The cursor fell so far behind that the segments in between were deleted.
+                        LOG.log(Level.WARNING, "Messages " + next + " to " + (s.base - 1) + " are no longer in the journal");
+                    }
+                    segment = s;
+                    position = 0;
+                    continue;
+                }
+                final long sequence = buffer.getLong(position + 4);
+                final int at = position;
+                position += length;
+                if (sequence < next) { //Skip to where the cursor started.
+                    continue;
+                }
+                final int nameLength = buffer.getInt(at + 12);
+                final byte[] name = new byte[nameLength];
+                for (int i = 0; i < nameLength; i++) {
+                    name[i] = buffer.get(at + ENTRY_HEADER + i);
+                }
+                final byte[] bytes = new byte[length - ENTRY_HEADER - nameLength];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = buffer.get(at + ENTRY_HEADER + nameLength + i);
+                }
+                entry.sequence = sequence;
+                entry.topic = new String(name, StandardCharsets.UTF_8);
+                entry.bytes = bytes;
+                next = sequence + 1;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A message read from the journal.
+     */
+    static final class Entry {
+
+        long sequence;
+        String topic;
+        byte[] bytes; //The message encoded with the binary codec.
+    }
+
+    /**
+     * A file holding the messages from one sequence number.
+     */
+    private static final class Segment {
+
+        private final Path path;
+        private final long base; //The sequence number of the first message.
+        private MappedByteBuffer buffer; //Mapped when it is first used.
+        private int position; //Where the next entry is written. Only used for the current segment.
+        private long closed; //The time it was full, Long.MAX_VALUE for the current segment.
+
+        private Segment(Path path, long base, long closed) {
+            this.path = path;
+            this.base = base;
+            this.closed = closed;
+        }
+
+        /**
+         * Creates a new, empty segment.
+         *
+         * @param dir the directory.
+         * @param base the sequence number of the first message.
+         * @param size the size of the file.
+         * @return the segment.
+         * @throws IOException if the file could not be created.
+         */
+        private static Segment create(Path dir, long base, int size) throws IOException {
+            final Segment segment = new Segment(dir.resolve(String.format("%020d", base) + SUFFIX), base, Long.MAX_VALUE);
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); //The file is filled with zeros, so every entry after the last has length 0.
+            }
+            return segment;
+        }
+
+        /**
+         * Gets the mapped file.
+         *
+         * @return the buffer.
+         * @throws IOException if the file could not be mapped.
+         */
+        private synchronized MappedByteBuffer map() throws IOException {
+            if (buffer == null) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                }
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * One end of a connection, which creates the JConnStream the messages go
+ * through. A link is either a TCP socket, a Unix domain socket, which skips
+ * the TCP loopback stack for a client and server on the same machine, or a
+ * pair of queues, for a client and server in the same JVM.
+ *
+ * Unix domain sockets need Java 16 or later. As the library is built for Java
+ * 8 they are opened by reflection, and opening one on an older Java throws an
+ * IOException.
+ *
+ * @author David
+ */
+abstract class JConnLink {
+
+    private static final ProtocolFamily UNIX; //The Unix protocol family, null if it is not supported.
+    private static final Method OPEN; //SocketChannel.open(ProtocolFamily).
+    private static final Method OPEN_SERVER; //ServerSocketChannel.open(ProtocolFamily).
+    private static final Method ADDRESS; //UnixDomainSocketAddress.of(String).
+
+    /**
+     * The servers in this JVM which accept local links, by name.
+     */
+    private static final ConcurrentHashMap<String, LocalAcceptor> LOCAL = new ConcurrentHashMap<>();
+
+    /**
+     * Put on the queue of a LocalAcceptor when it is closed.
+     */
+    private static final JConnLink CLOSED = new Local(null, null);
+
+    static {
+        ProtocolFamily unix = null;
+        Method open = null;
+        Method openServer = null;
+        Method address = null;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            openServer = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+        } catch (IllegalArgumentException | ReflectiveOperationException ex) {
+            unix = null; //Older than Java 16.
+        }
+        UNIX = unix;
+        OPEN = open;
+        OPEN_SERVER = openServer;
+        ADDRESS = address;
+    }
+
+    /**
+     * Opens links to the server. Kept by the client so it can reconnect the
+     * same way.
+     */
+    interface Dialer {
+
+        /**
+         * Opens a new link to the server.
+         *
+         * @return the link.
+         * @throws IOException if the server could not be reached.
+         */
+        JConnLink dial() throws IOException;
+    }
+
+    /**
+     * Accepts links from clients on the server.
+     */
+    abstract static class Acceptor {
+
+        /**
+         * Waits for the next client to connect.
+         *
+         * @return the link to the client.
+         * @throws IOException if the acceptor was closed or failed.
+         */
+        abstract JConnLink accept() throws IOException;
+
+        /**
+         * Get the address the server is listening on.
+         *
+         * @return the address.
+         */
+        abstract String getAddress();
+
+        /**
+         * Stops accepting clients.
+         *
+         * @throws IOException if there was an error closing.
+         */
+        abstract void close() throws IOException;
+    }
+
+    /**
+     * Creates the stream for the messages on this link. This is only called
+     * once.
+     *
+     * @param stats where to count the effect of compression.
+     * @return the JConnStream.
+     * @throws IOException if the link is closed.
+     */
+    abstract JConnStream open(JConnCompressionStats stats) throws IOException;
+
+    /**
+     * Get the address of the other end of the link.
+     *
+     * @return the address.
+     */
+    abstract String getAddress();
+
+    /**
+     * Get the IP address of the other end of the link. Links which do not go
+     * over the network are to the same machine, so this is the loopback
+     * address.
+     *
+     * @return the IP address.
+     */
+    InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    /**
+     * Closes the link. A thread blocked reading from it gets an IOException.
+     *
+     * @throws IOException if there was an error closing.
+     */
+    abstract void close() throws IOException;
+
+    /**
+     * Opens a TCP link to a server.
+     *
+     * @param ip the address of the server.
+     * @param port the port of the server.
+     * @return the link.
+     * @throws IOException if the server could not be reached.
+     */
+    static JConnLink tcp(String ip, int port) throws IOException {
+        return new Tcp(new Socket(ip, port));
+    }
+
+    /**
+     * Listens for TCP links.
+     *
+     * @param port the port to listen on.
+     * @return the Acceptor.
+     * @throws IOException if the port could not be used.
+     */
+    static Acceptor listenTcp(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port);
+        return new Acceptor() {
+            @Override
+            JConnLink accept() throws IOException {
+                return new Tcp(server.accept());
+            }
+
+            @Override
+            String getAddress() {
+                return server.getInetAddress().getHostAddress();
+            }
+
+            @Override
+            void close() throws IOException {
+                server.close();
+            }
+        };
+    }
+
+    /**
+     * Opens a Unix domain socket link to a server on this machine.
+     *
+     * @param path the path of the socket file the server is listening on.
+     * @return the link.
+     * @throws IOException if the server could not be reached, or Unix domain
+     * sockets are not supported.
+     */
+    static JConnLink unix(String path) throws IOException {
+        final SocketChannel channel = (SocketChannel) invoke(OPEN, UNIX);
+        try {
+            channel.connect(unixAddress(path));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new Unix(channel, path);
+    }
+
+    /**
+     * Listens for Unix domain socket links. Any file already at the path is
+     * replaced, so a socket file left by a server which was killed does not
+     * stop a new one starting. The file is deleted when the Acceptor is
+     * closed.
+     *
+     * @param path the path of the socket file.
+     * @return the Acceptor.
+     * @throws IOException if the path could not be used, or Unix domain
+     * sockets are not supported.
+     */
+    static Acceptor listenUnix(String path) throws IOException {
+        final ServerSocketChannel server = (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+        try {
+            Files.deleteIfExists(Paths.get(path));
+            server.bind(unixAddress(path));
+        } catch (IOException | RuntimeException ex) {
+            server.close();
+            throw ex;
+        }
+        return new Acceptor() {
+            @Override
+            JConnLink accept() throws IOException {
+                return new Unix(server.accept(), path);
+            }
+
+            @Override
+            String getAddress() {
+                return path;
+            }
+
+            @Override
+            void close() throws IOException {
+                try {
+                    server.close();
+                } finally {
+                    Files.deleteIfExists(Paths.get(path));
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a link to a server in this JVM.
+     *
+     * @param name the name the server was started with.
+     * @param copy true if messages should be encoded and decoded, false if
+     * their values should be shared.
+     * @return the link.
+     * @throws IOException if there is no server with the name.
+     */
+    static JConnLink local(String name, boolean copy) throws IOException {
+        final LocalAcceptor server = LOCAL.get(name);
+        if (server == null) {
+            throw new ConnectException("There is no local server called " + name);
+        }
+        final JConnLocalStream[] ends = JConnLocalStream.pair(copy);
+        server.pending.add(new Local(ends[1], name));
+        return new Local(ends[0], name);
+    }
+
+    /**
+     * Listens for links from clients in this JVM.
+     *
+     * @param name the name clients connect to.
+     * @return the Acceptor.
+     * @throws IOException if there is already a server with the name.
+     */
+    static Acceptor listenLocal(String name) throws IOException {
+        final LocalAcceptor server = new LocalAcceptor(name);
+        if (LOCAL.putIfAbsent(name, server) != null) {
+            throw new BindException("There is already a local server called " + name);
+        }
+        return server;
+    }
+
+    /**
+     * Creates the address of a Unix domain socket.
+     *
+     * @param path the path of the socket file.
+     * @return the address.
+     * @throws IOException if Unix domain sockets are not supported.
+     */
+    private static SocketAddress unixAddress(String path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS, path);
+    }
+
+    /**
+     * Calls a static method found by reflection.
+     *
+     * @param method the method, null if it is not supported.
+     * @param arg the argument.
+     * @return the result.
+     * @throws IOException if the method is not supported, or it threw an
+     * IOException.
+     */
+    private static Object invoke(Method method, Object arg) throws IOException {
+        if (method == null || UNIX == null) {
+            throw new IOException("Unix domain sockets need Java 16 or later");
+        }
+        try {
+            return method.invoke(null, arg);
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not open a Unix domain socket", ex.getCause());
+        } catch (IllegalAccessException ex) {
+            throw new IOException("Could not open a Unix domain socket", ex);
+        }
+    }
+
+    /**
+     * A link over a TCP socket.
+     */
+    private static final class Tcp extends JConnLink {
+
+        private final Socket socket;
+
+        private Tcp(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true); //Messages are small and are waited on, so do not hold them back.
+        }
+
+        @Override
+        JConnStream open(JConnCompressionStats stats) throws IOException {
+            return new JConnStream(socket.getInputStream(), socket.getOutputStream(), socket.getChannel(), stats);
+        }
+
+        @Override
+        String getAddress() {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        @Override
+        InetAddress getInetAddress() {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public String toString() {
+            return socket.toString();
+        }
+    }
+
+    /**
+     * A link over a Unix domain socket. The streams read and write the
+     * channel directly, as the streams from Channels lock the channel for
+     * each call, which would stop a write while a read is waiting.
+     */
+    private static final class Unix extends JConnLink {
+
+        private final SocketChannel channel;
+        private final String path;
+
+        private Unix(SocketChannel channel, String path) {
+            this.channel = channel;
+            this.path = path;
+        }
+
+        @Override
+        JConnStream open(JConnCompressionStats stats) {
+            return new JConnStream(new ChannelInputStream(channel), new ChannelOutputStream(channel), channel, stats);
+        }
+
+        @Override
+        String getAddress() {
+            return path;
+        }
+
+        @Override
+        void close() throws IOException {
+            channel.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Unix[" + path + "]";
+        }
+    }
+
+    /**
+     * A link to a client or server in the same JVM.
+     */
+    private static final class Local extends JConnLink {
+
+        private final JConnLocalStream stream;
+        private final String name;
+
+        private Local(JConnLocalStream stream, String name) {
+            this.stream = stream;
+            this.name = name;
+        }
+
+        @Override
+        JConnStream open(JConnCompressionStats stats) {
+            return stream;
+        }
+
+        @Override
+        String getAddress() {
+            return "local:" + name;
+        }
+
+        @Override
+        void close() {
+            stream.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Local[" + name + "]";
+        }
+    }
+
+    /**
+     * Accepts links from clients in the same JVM.
+     */
+    private static final class LocalAcceptor extends Acceptor {
+
+        private final String name;
+        private final LinkedBlockingQueue<JConnLink> pending; //The links which have not been accepted.
+
+        private LocalAcceptor(String name) {
+            this.name = name;
+            this.pending = new LinkedBlockingQueue<>();
+        }
+
+        @Override
+        JConnLink accept() throws IOException {
+            final JConnLink link;
+            try {
+                link = pending.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a client", ex);
+            }
+            if (link == CLOSED) {
+                pending.add(CLOSED);
+                throw new IOException("The local server " + name + " is closed");
+            }
+            return link;
+        }
+
+        @Override
+        String getAddress() {
+            return "local:" + name;
+        }
+
+        @Override
+        void close() {
+            LOCAL.remove(name, this);
+            pending.add(CLOSED);
+        }
+    }
+
+    /**
+     * Reads from a blocking channel.
+     */
+    private static final class ChannelInputStream extends InputStream {
+
+        private final ByteChannel channel;
+        private final byte[] one = new byte[1];
+
+        private ChannelInputStream(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes to a blocking channel.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+
+        private final ByteChannel channel;
+
+        private ChannelOutputStream(ByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
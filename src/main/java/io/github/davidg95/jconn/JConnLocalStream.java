@@ -0,0 +1,267 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * One end of a connection between a client and a server in the same JVM.
+ * Messages are put straight on the queue of the other end, so nothing goes
+ * through a socket. By default a message is passed as a copy of the JConnData
+ * which shares its parameter and return values, so they are not encoded at
+ * all. If the connection copies, each message is encoded and decoded with the
+ * codec for its flag instead, so the two sides never share an object, as over
+ * a socket.
+ *
+ * @author David
+ */
+class JConnLocalStream extends JConnStream {
+
+    /**
+     * Put on the queue when the connection is closed.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * The number of chunks of bulk transfers which can be waiting to be read,
+     * so a large transfer does not fill the memory.
+     */
+    private static final int BULK_WINDOW = 4;
+
+    private final LinkedBlockingQueue<Object> incoming; //The messages and chunks for this end.
+    private final Semaphore chunks; //A permit for each chunk this end can be sent before it reads one.
+    private JConnLocalStream peer; //The other end.
+    private volatile boolean closed;
+
+    private final boolean copy; //Indicates that messages are encoded and decoded rather than shared.
+    private final HashMap<String, Copier> copiers; //Copies the messages written by this end, by codec.
+    private final StampedLock copyLock; //Lock for the copiers, as the codecs keep state between messages.
+
+    private JConnLocalStream(boolean copy) {
+        super(null, null, null, new JConnCompressionStats());
+        incoming = new LinkedBlockingQueue<>();
+        chunks = new Semaphore(BULK_WINDOW);
+        this.copy = copy;
+        copiers = new HashMap<>();
+        copyLock = new StampedLock();
+    }
+
+    /**
+     * Creates the two ends of a connection.
+     *
+     * @param copy true if messages should be encoded and decoded, false if
+     * their values should be shared.
+     * @return the client end, then the server end.
+     */
+    static JConnLocalStream[] pair(boolean copy) {
+        final JConnLocalStream client = new JConnLocalStream(copy);
+        final JConnLocalStream server = new JConnLocalStream(copy);
+        client.peer = server;
+        server.peer = client;
+        return new JConnLocalStream[]{client, server};
+    }
+
+    @Override
+    void offer() {
+        //Both ends have the same codecs.
+    }
+
+    @Override
+    void accept() {
+        //Both ends have the same codecs.
+    }
+
+    @Override
+    boolean writeEncoded(String codec, byte[] bytes, int priority) {
+        return false; //Messages are passed as objects.
+    }
+
+    @Override
+    void write(JConnData data) throws IOException {
+        if (closed) {
+            throw new EOFException("The connection is closed");
+        }
+        peer.incoming.add(copy ? encoded(data) : data.copy());
+    }
+
+    @Override
+    JConnData readFrame() throws IOException {
+        final Object item;
+        try {
+            item = incoming.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a message");
+        }
+        if (item == END) {
+            incoming.add(END); //So any later read ends as well.
+            throw new EOFException("The connection is closed");
+        }
+        if (item instanceof Chunk) {
+            final Chunk chunk = (Chunk) item;
+            chunks.release();
+            deliver(chunk.id, ByteBuffer.wrap(chunk.bytes));
+            return null;
+        }
+        return (JConnData) item;
+    }
+
+    @Override
+    void sendBulk(long id, FileChannel source, long position, long count) throws IOException {
+        if (source.size() < position + count) {
+            throw new EOFException("The file is shorter than the transfer");
+        }
+        long sent = 0;
+        while (sent < count) {
+            final ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(count - sent, JConn.BULK_CHUNK_SIZE));
+            while (chunk.hasRemaining()) {
+                if (source.read(chunk, position + sent + chunk.position()) < 0) {
+                    throw new EOFException("The file is shorter than the transfer");
+                }
+            }
+            sendChunk(id, chunk.array());
+            sent += chunk.capacity();
+        }
+    }
+
+    @Override
+    void sendBulk(long id, ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            final byte[] chunk = new byte[Math.min(source.remaining(), JConn.BULK_CHUNK_SIZE)];
+            source.get(chunk); //Copied, as the caller may change the buffer once this returns.
+            sendChunk(id, chunk);
+        }
+    }
+
+    /**
+     * Puts a chunk of a bulk transfer on the queue of the other end, waiting
+     * if it has too many chunks it has not read.
+     *
+     * @param id the id of the transfer.
+     * @param bytes the bytes.
+     * @throws IOException if the connection is closed.
+     */
+    private void sendChunk(long id, byte[] bytes) throws IOException {
+        try {
+            peer.chunks.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending a bulk transfer");
+        }
+        if (closed) {
+            throw new EOFException("The connection is closed");
+        }
+        peer.incoming.add(new Chunk(id, bytes));
+    }
+
+    /**
+     * Closes both ends of the connection. Reads which are waiting on either
+     * end get an EOFException.
+     */
+    @Override
+    void close() {
+        end();
+        peer.end();
+    }
+
+    /**
+     * Closes this end.
+     */
+    private void end() {
+        closed = true;
+        incoming.add(END);
+        chunks.release(BULK_WINDOW * 1024); //Let any thread waiting to send a chunk see the connection is closed.
+    }
+
+    /**
+     * Encodes and decodes a message with the codec for its flag.
+     *
+     * @param data the message.
+     * @return the copy.
+     * @throws IOException if the message could not be encoded or decoded.
+     */
+    private JConnData encoded(JConnData data) throws IOException {
+        String name = JConnCodecs.getCodec(data.getFlag());
+        JConnCodec codec = JConnCodecs.get(name);
+        if (codec == null) {
+            name = JConnCodecs.JAVA;
+            codec = JConnCodecs.get(name);
+        }
+        final long stamp = copyLock.writeLock();
+        try {
+            Copier copier = copiers.get(name);
+            if (copier == null) {
+                copier = new Copier(codec);
+                copiers.put(name, copier);
+            }
+            copier.buffer.reset();
+            copier.encoder.encode(data, copier.buffer);
+            final JConnData result = copier.decoder.decode(new ByteArrayInputStream(copier.buffer.toByteArray()));
+            result.setPriority(data.getPriority());
+            return result;
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Could not copy " + data.getFlag(), ex);
+        } finally {
+            copyLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * A chunk of a bulk transfer.
+     */
+    private static class Chunk {
+
+        private final long id; //The id of the transfer.
+        private final byte[] bytes;
+
+        private Chunk(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * An encoder and decoder for one codec, used together so any state they
+     * keep between messages matches.
+     */
+    private static class Copier {
+
+        private final JConnCodec.Encoder encoder;
+        private final JConnCodec.Decoder decoder;
+        private final ByteArrayOutputStream buffer;
+
+        private Copier(JConnCodec codec) {
+            encoder = codec.newEncoder();
+            decoder = codec.newDecoder();
+            buffer = new ByteArrayOutputStream();
+        }
+    }
+}
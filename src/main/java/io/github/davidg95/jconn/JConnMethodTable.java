@@ -0,0 +1,201 @@
+/*
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The table of @JConnMethod flags on a server. Each flag is given a small
+ * integer id, which is its index in the table. The server sends the flags and
+ * the @JConnParameter names for each one to the client in the handshake, so
+ * requests can carry the id and their parameters in order, and the server can
+ * find the method by index rather than comparing flags.
+ *
+ * @author David
+ */
+class JConnMethodTable {
+
+    /**
+     * The flag for the handshake sent by the server when a client connects.
+     */
+    static final String HANDSHAKE = "HANDSHAKE";
+
+    private final Method[] methods; //The methods, by id. Null on the client.
+    private final String[] flags; //The flags, by id.
+    private final String[][] params; //The parameter names for each method, in order, by id.
+    private final HashMap<String, Integer> flagIds; //The id for each flag.
+
+    private JConnMethodTable(Method[] methods, String[] flags, String[][] params) {
+        this.methods = methods;
+        this.flags = flags;
+        this.params = params;
+        flagIds = new HashMap<>();
+        for (int i = 0; i < flags.length; i++) {
+            flagIds.putIfAbsent(flags[i], i); //If two methods have the same flag, the first one handles it.
+        }
+    }
+
+    /**
+     * Scans a class and builds the table from the methods with the
+     * JConnMethod annotation.
+     *
+     * @param classToScan the class to scan.
+     * @return the table.
+     */
+    static JConnMethodTable scan(Class<?> classToScan) {
+        final List<Method> found = new ArrayList<>();
+        for (Method m : classToScan.getDeclaredMethods()) { //Loop through each method
+            if (m.isAnnotationPresent(JConnMethod.class)) { //Check if the annotation is a JConnMethod annotation
+                m.setAccessible(true); //Set the access to public
+                found.add(m);
+            }
+        }
+        final Method[] methods = found.toArray(new Method[found.size()]);
+        final String[] flags = new String[methods.length];
+        final String[][] params = new String[methods.length][];
+        for (int i = 0; i < methods.length; i++) {
+            flags[i] = methods[i].getAnnotation(JConnMethod.class).value();
+            final Parameter[] ps = methods[i].getParameters();
+            params[i] = new String[ps.length];
+            for (int j = 0; j < ps.length; j++) {
+                final JConnParameter jp = ps[j].getAnnotation(JConnParameter.class);
+                params[i][j] = (jp == null ? null : jp.value());
+            }
+        }
+        return new JConnMethodTable(methods, flags, params);
+    }
+
+    /**
+     * Builds the table on the client from the handshake sent by the server.
+     *
+     * @param handshake the handshake.
+     * @return the table.
+     */
+    static JConnMethodTable fromHandshake(JConnData handshake) {
+        return new JConnMethodTable(null, (String[]) handshake.getParam("FLAGS"), (String[][]) handshake.getParam("PARAMS"));
+    }
+
+    /**
+     * Creates the handshake which is sent to the client when it connects.
+     *
+     * @return the handshake.
+     */
+    JConnData handshake() {
+        return JConnData.create(HANDSHAKE).addParam("FLAGS", flags).addParam("PARAMS", params).setType(JConnData.HANDSHAKE);
+    }
+
+    /**
+     * Get the id for a flag.
+     *
+     * @param flag the flag.
+     * @return the id, or -1 if there is no method for the flag.
+     */
+    int getFlagId(String flag) {
+        final Integer id = flagIds.get(flag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the method for an id.
+     *
+     * @param id the id.
+     * @return the method.
+     */
+    Method getMethod(int id) {
+        return methods[id];
+    }
+
+    /**
+     * Called on the client before a request is written. If the flag is in the
+     * table and the request has exactly the parameters the method takes, its
+     * parameters are put in the order the method takes them and it is given
+     * the id for the flag, so it is sent with the id and without the names.
+     *
+     * @param data the request.
+     */
+    void bind(JConnData data) {
+        data.setFlagId(-1, null); //The data may have been bound to another server's table before.
+        final int id = getFlagId(data.getFlag());
+        if (id < 0) {
+            return;
+        }
+        final String[] names = params[id];
+        if (data.getParamCount() != names.length) {
+            return; //Send it by name, so the server replies with ILLEGAL_PARAM_LENGTH.
+        }
+        for (int i = 0; i < names.length; i++) { //Put the parameters in the order the method takes them.
+            final int at = names[i] == null ? -1 : data.indexOf(names[i]);
+            if (at < i) {
+                return;
+            }
+            data.moveParam(at, i);
+        }
+        data.setFlagId(id, null);
+    }
+
+    /**
+     * Called when data is received. If it was sent with an id, the flag and
+     * the parameter names are filled in from the table. If it was sent with a
+     * flag, the id is looked up.
+     *
+     * @param data the data.
+     */
+    void resolve(JConnData data) {
+        int id = data.getFlagId();
+        if (id >= flags.length) {
+            id = -1;
+        }
+        if (id < 0) {
+            id = getFlagId(data.getFlag());
+            if (id < 0) {
+                return;
+            }
+        } else {
+            data.setFlag(flags[id]);
+        }
+        data.setFlagId(id, params[id]);
+    }
+
+    /**
+     * Gets the arguments to invoke the method for an id with.
+     *
+     * @param id the id.
+     * @param data the request.
+     * @return the arguments in order, or null if the request does not have
+     * the same number of parameters as the method.
+     */
+    Object[] arguments(int id, JConnData data) {
+        final String[] names = params[id];
+        if (data.getParamCount() != names.length) { //Check the amount of paramters passed in matches the amount on the method.
+            return null;
+        }
+        final Object[] result = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            final int at = (names[i] != null && names[i].equals(data.getParamName(i))) ? i : (names[i] == null ? -1 : data.indexOf(names[i])); //Requests sent by id are already in order.
+            result[i] = at < 0 ? null : data.getParam(at);
+        }
+        return result;
+    }
+}
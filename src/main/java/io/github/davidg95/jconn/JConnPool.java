@@ -0,0 +1,714 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A pool of connections to one or more servers. Requests are spread over the
+ * connections which are up, either in turn or to the one with the fewest
+ * requests waiting for a reply, so one client can use more than one TCP
+ * connection and reader thread. Connections which drop are not retried by
+ * the JConn itself, a background thread replaces them with new ones instead,
+ * and requests go to the others in the meantime.
+ *
+ * Requests marked as idempotent can be hedged across the servers, see
+ * setHedging(double, double).
+ *
+ * @author David
+ */
+public class JConnPool {
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    /**
+     * Send each request to the next connection in turn.
+     */
+    public static final int ROUND_ROBIN = 0;
+
+    /**
+     * Send each request to the connection with the fewest requests waiting
+     * for a reply.
+     */
+    public static final int LEAST_IN_FLIGHT = 1;
+
+    /**
+     * The number of recent reply times the hedge delay is worked out from.
+     */
+    private static final int HEDGE_SAMPLES = 256;
+
+    /**
+     * The most hedges which can be saved up by the budget, so a burst of
+     * slow replies can not send a burst of hedges.
+     */
+    private static final double HEDGE_BURST = 10;
+
+    private final int size; //The number of connections to each server.
+    private final int strategy; //ROUND_ROBIN or LEAST_IN_FLIGHT.
+    private volatile Slot[] slots; //The connections. The array is replaced when servers are added.
+    private final StampedLock slotsLock; //The StampedLock for adding servers.
+    private final AtomicInteger next; //Where the search for a connection starts.
+    private final List<JConnListener> listeners; //Registered on every connection.
+    private final Thread maintainer; //Replaces connections which have dropped.
+    private volatile boolean run;
+
+    private volatile double hedgePercentile; //The percentile of the reply times to wait for before hedging, 0 if hedging is off.
+    private volatile double hedgeBudget; //The fraction of requests which may be hedged.
+    private volatile long hedgeDelay; //The time in nanoseconds to wait before hedging, 0 until there are enough samples.
+    private final long[] samples; //The recent reply times in nanoseconds, in a ring. Guarded by hedgeLock.
+    private int samplePos; //Where the next reply time goes in the ring. Guarded by hedgeLock.
+    private int sampleCount; //The number of reply times in the ring, up to HEDGE_SAMPLES. Guarded by hedgeLock.
+    private int sinceUpdate; //The reply times recorded since the delay was worked out. Guarded by hedgeLock.
+    private double hedgeTokens; //The hedges the budget allows now. Guarded by hedgeLock.
+    private final StampedLock hedgeLock; //The StampedLock for the reply times and the budget.
+    private final AtomicLong hedges; //The number of hedges sent.
+
+    /**
+     * Creates a new, empty JConnPool. Servers are added with connect(String,
+     * int).
+     *
+     * @param size the number of connections to open to each server.
+     * @param strategy ROUND_ROBIN or LEAST_IN_FLIGHT.
+     */
+    public JConnPool(int size, int strategy) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The pool must have at least one connection to each server");
+        }
+        if (strategy != ROUND_ROBIN && strategy != LEAST_IN_FLIGHT) {
+            throw new IllegalArgumentException("Invalid strategy " + strategy);
+        }
+        this.size = size;
+        this.strategy = strategy;
+        this.slots = new Slot[0];
+        this.slotsLock = new StampedLock();
+        this.next = new AtomicInteger();
+        this.listeners = new LinkedList<>();
+        this.run = true;
+        this.samples = new long[HEDGE_SAMPLES];
+        this.hedgeLock = new StampedLock();
+        this.hedges = new AtomicLong();
+        maintainer = new Thread(this::maintain, "JCONN-POOL");
+        maintainer.setDaemon(true);
+        maintainer.start();
+    }
+
+    /**
+     * Opens the connections to a server. If some of them can not be opened
+     * they are retried in the background, but if none of them can be an
+     * IOException is thrown and the server is not added.
+     *
+     * @param ip the IP address of the server.
+     * @param port the port number of the server.
+     * @throws IOException if no connection to the server could be opened.
+     */
+    public void connect(String ip, int port) throws IOException {
+        final Slot[] added = new Slot[size];
+        IOException error = null;
+        int up = 0;
+        for (int i = 0; i < size; i++) {
+            added[i] = new Slot(ip, port);
+            try {
+                added[i].open();
+                up++;
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+        if (up == 0) {
+            throw error;
+        }
+        final long stamp = slotsLock.writeLock();
+        try {
+            final Slot[] current = slots;
+            final Slot[] grown = Arrays.copyOf(current, current.length + size);
+            System.arraycopy(added, 0, grown, current.length, size);
+            slots = grown;
+        } finally {
+            slotsLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Chooses the connection for a request.
+     *
+     * @return the connection.
+     * @throws IOException if there is no connection which is up.
+     */
+    private JConn choose() throws IOException {
+        final Slot[] all = slots;
+        final int start = Math.floorMod(next.getAndIncrement(), Math.max(1, all.length));
+        JConn best = null;
+        int bestInFlight = Integer.MAX_VALUE;
+        for (int i = 0; i < all.length; i++) {
+            final JConn conn = all[(start + i) % all.length].conn;
+            if (conn == null || !conn.isUp()) {
+                continue;
+            }
+            if (strategy == ROUND_ROBIN) {
+                return conn;
+            }
+            final int inFlight = conn.getInFlight();
+            if (inFlight < bestInFlight) {
+                best = conn;
+                bestInFlight = inFlight;
+                if (inFlight == 0) { //It can not do better than an idle connection.
+                    break;
+                }
+            }
+        }
+        if (best == null) {
+            throw new IOException("There is no connection to a server in the pool");
+        }
+        return best;
+    }
+
+    /**
+     * Chooses the connection for the second copy of a hedged request. It goes
+     * to a different server from the first if there is one which is up.
+     *
+     * @param first the connection the first copy went to.
+     * @return the connection, or null if there is no other connection which
+     * is up.
+     */
+    private JConn chooseOther(JConn first) {
+        final Slot[] all = slots;
+        Slot from = null;
+        for (Slot slot : all) {
+            if (slot.conn == first) {
+                from = slot;
+                break;
+            }
+        }
+        final int start = Math.floorMod(next.getAndIncrement(), Math.max(1, all.length));
+        JConn same = null; //Another connection to the same server, if there is no other server.
+        for (int i = 0; i < all.length; i++) {
+            final Slot slot = all[(start + i) % all.length];
+            final JConn conn = slot.conn;
+            if (conn == null || conn == first || !conn.isUp()) {
+                continue;
+            }
+            if (from == null || !slot.ip.equals(from.ip) || slot.port != from.port) {
+                return conn;
+            }
+            if (same == null) {
+                same = conn;
+            }
+        }
+        return same;
+    }
+
+    /**
+     * Turns on hedging for requests marked as idempotent, see
+     * JConnData.setIdempotent(boolean). If there is no reply to one after a
+     * percentile of the recent reply times, the same request is sent to
+     * another server as well. The first reply is used and the other request
+     * is cancelled. So that this does not add much load when the servers are
+     * slow, at most a fraction of the requests are hedged, given by the
+     * budget. Requests are not hedged until there have been enough replies to
+     * work out the delay. This applies to sendData and sendAsync, but not to
+     * sendData with a JConnRunnable, sendBatch or sendStream.
+     *
+     * @param percentile the percentile of the reply times to wait for, for
+     * example 0.95. 0 turns hedging off.
+     * @param budget the fraction of requests which may be hedged, for example
+     * 0.05.
+     */
+    public void setHedging(double percentile, double budget) {
+        if (percentile < 0 || percentile >= 1) {
+            throw new IllegalArgumentException("The percentile must be at least 0 and less than 1");
+        }
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("The budget must be between 0 and 1");
+        }
+        final long stamp = hedgeLock.writeLock();
+        try {
+            hedgePercentile = percentile;
+            hedgeBudget = budget;
+            hedgeDelay = 0; //Work it out again for the new percentile.
+            samplePos = 0;
+            sampleCount = 0;
+            sinceUpdate = 0;
+            hedgeTokens = 0;
+        } finally {
+            hedgeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the number of requests which have been hedged.
+     *
+     * @return the number of hedges sent.
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Get the time a hedged request waits for a reply before it is sent to a
+     * second server.
+     *
+     * @param unit the unit to return the time in.
+     * @return the time, or 0 if it is not known yet.
+     */
+    public long getHedgeDelay(TimeUnit unit) {
+        return unit.convert(hedgeDelay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records the time a hedged request took to get a reply. Every so often
+     * the delay is worked out again from the recent times.
+     *
+     * @param nanos the time in nanoseconds.
+     */
+    private void sample(long nanos) {
+        final long stamp = hedgeLock.writeLock();
+        try {
+            samples[samplePos] = nanos;
+            samplePos = (samplePos + 1) % HEDGE_SAMPLES;
+            sampleCount = Math.min(sampleCount + 1, HEDGE_SAMPLES);
+            if (++sinceUpdate == HEDGE_SAMPLES / 8) {
+                sinceUpdate = 0;
+                final long[] sorted = Arrays.copyOf(samples, sampleCount);
+                Arrays.sort(sorted);
+                hedgeDelay = Math.max(1, sorted[(int) (hedgePercentile * (sorted.length - 1))]);
+            }
+        } finally {
+            hedgeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds the share of the budget for a request which could be hedged.
+     */
+    private void earnHedge() {
+        final long stamp = hedgeLock.writeLock();
+        try {
+            hedgeTokens = Math.min(HEDGE_BURST, hedgeTokens + hedgeBudget);
+        } finally {
+            hedgeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Takes a hedge from the budget.
+     *
+     * @return false if the budget has been used up.
+     */
+    private boolean spendHedge() {
+        final long stamp = hedgeLock.writeLock();
+        try {
+            if (hedgeTokens < 1) {
+                return false;
+            }
+            hedgeTokens -= 1;
+            return true;
+        } finally {
+            hedgeLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sends a request, and sends it to a second server if there is no reply
+     * after the hedge delay and the budget allows it.
+     *
+     * @param data the request.
+     * @return the CompletableFuture for the first reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    private CompletableFuture<Object> sendHedged(JConnData data) throws IOException {
+        final JConnData copy = data.copy(); //Copied before it is sent, as each connection gives it its own id.
+        final long start = System.nanoTime();
+        final JConn first = choose();
+        final Hedge hedge = new Hedge();
+        hedge.attach(first.sendAsync(data));
+        earnHedge();
+        hedge.result.whenComplete((value, ex) -> {
+            if (ex == null) {
+                sample(System.nanoTime() - start);
+            }
+        });
+        final long delay = hedgeDelay;
+        if (delay > 0 && !hedge.result.isDone()) {
+            final ScheduledFuture<?> timer = JConn.TIMEOUTS.schedule(() -> {
+                if (hedge.result.isDone() || !spendHedge()) {
+                    return;
+                }
+                final JConn second = chooseOther(first);
+                if (second == null) {
+                    return;
+                }
+                try {
+                    hedge.attach(second.sendAsync(copy));
+                    hedges.incrementAndGet();
+                } catch (IOException ex) {
+                    //Carry on waiting for the first.
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+            hedge.result.whenComplete((value, ex) -> timer.cancel(false));
+        }
+        return hedge.result;
+    }
+
+    /**
+     * Checks if a request is hedged.
+     *
+     * @param data the request.
+     * @return true if hedging is on and the request is idempotent.
+     */
+    private boolean hedged(JConnData data) {
+        return hedgePercentile > 0 && data.isIdempotent();
+    }
+
+    /**
+     * Waits for a CompletableFuture and returns its value, or throws the
+     * exception it failed with. If the thread is interrupted while waiting
+     * the request is cancelled.
+     *
+     * @param future the CompletableFuture.
+     * @return the reply from the server.
+     * @throws Throwable the exception from the server, or a TimeoutException.
+     */
+    private static Object await(CompletableFuture<Object> future) throws Throwable {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        }
+    }
+
+    /**
+     * Send data to a server and wait for the reply. See
+     * JConn.sendData(JConnData).
+     *
+     * @param data the data to send.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     */
+    public Object sendData(JConnData data) throws IOException, Throwable {
+        if (hedged(data)) {
+            return await(sendHedged(data));
+        }
+        return choose().sendData(data);
+    }
+
+    /**
+     * Send data to a server and wait for the reply, or until the timeout has
+     * passed. See JConn.sendData(JConnData, long, TimeUnit).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the reply from the server as an Object.
+     * @throws IOException if there was an error sending the data.
+     * @throws TimeoutException if there was no reply in time.
+     */
+    public Object sendData(JConnData data, long timeout, TimeUnit unit) throws IOException, TimeoutException, Throwable {
+        if (hedged(data)) {
+            return await(sendHedged(data.setTimeout(timeout, unit)));
+        }
+        return choose().sendData(data, timeout, unit);
+    }
+
+    /**
+     * Send data to a server and run the runnable with the reply. See
+     * JConn.sendData(JConnData, JConnRunnable).
+     *
+     * @param data the data to send.
+     * @param run the runnable to execute on a successful response.
+     * @return JConnStatus so the status of the request can be checked.
+     * @throws IOException if there was an error sending the data.
+     */
+    public JConnStatus sendData(JConnData data, JConnRunnable run) throws IOException {
+        return choose().sendData(data, run);
+    }
+
+    /**
+     * Send data to a server without waiting for the reply. See
+     * JConn.sendAsync(JConnData).
+     *
+     * @param data the data to send.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data) throws IOException {
+        if (hedged(data)) {
+            return sendHedged(data);
+        }
+        return choose().sendAsync(data);
+    }
+
+    /**
+     * Send data to a server without waiting for the reply, with a timeout.
+     * See JConn.sendAsync(JConnData, long, TimeUnit).
+     *
+     * @param data the data to send.
+     * @param timeout the time to wait for the reply.
+     * @param unit the unit of the timeout.
+     * @return the CompletableFuture for the reply.
+     * @throws IOException if there was an error sending the data.
+     */
+    public CompletableFuture<Object> sendAsync(JConnData data, long timeout, TimeUnit unit) throws IOException {
+        if (hedged(data)) {
+            return sendHedged(data.setTimeout(timeout, unit));
+        }
+        return choose().sendAsync(data, timeout, unit);
+    }
+
+    /**
+     * Send several requests to a server in one message. They all go on the
+     * same connection. See JConn.sendBatch(List).
+     *
+     * @param requests the requests.
+     * @return the CompletableFutures for the replies, in the same order as
+     * the requests.
+     * @throws IOException if there was an error sending the requests.
+     */
+    public List<CompletableFuture<Object>> sendBatch(List<JConnData> requests) throws IOException {
+        return choose().sendBatch(requests);
+    }
+
+    /**
+     * Send a request to a server method which returns a Stream or an
+     * Iterator. See JConn.sendStream(JConnData).
+     *
+     * @param data the data to send.
+     * @return a Stream of the items.
+     * @throws IOException if there was an error sending the data.
+     */
+    public Stream<Object> sendStream(JConnData data) throws IOException {
+        return choose().sendStream(data);
+    }
+
+    /**
+     * Register a JConnListener on every connection in the pool, including the
+     * ones opened later.
+     *
+     * @param listener the JConnListener.
+     */
+    public void registerListener(JConnListener listener) {
+        final long stamp = slotsLock.writeLock();
+        try {
+            listeners.add(listener);
+            for (Slot slot : slots) {
+                final JConn conn = slot.conn;
+                if (conn != null) {
+                    conn.registerListener(listener);
+                }
+            }
+        } finally {
+            slotsLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Get the number of connections in the pool which are up.
+     *
+     * @return the number of connections.
+     */
+    public int getUpCount() {
+        int up = 0;
+        for (Slot slot : slots) {
+            final JConn conn = slot.conn;
+            if (conn != null && conn.isUp()) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    /**
+     * Get the connections in the pool which are up.
+     *
+     * @return a List of the connections.
+     */
+    public List<JConn> getConnections() {
+        final List<JConn> list = new ArrayList<>();
+        for (Slot slot : slots) {
+            final JConn conn = slot.conn;
+            if (conn != null && conn.isUp()) {
+                list.add(conn);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Closes every connection in the pool and stops replacing them.
+     */
+    public void close() {
+        run = false;
+        maintainer.interrupt();
+        for (Slot slot : slots) {
+            final JConn conn = slot.conn;
+            if (conn != null && conn.isUp()) {
+                try {
+                    conn.endConnection();
+                } catch (IOException ex) {
+                    LOG.log(Level.FINE, "Error closing pooled connection", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run by the maintainer thread. Every JConn.RECONNECT_INTERVAL, any
+     * connection which is not up is replaced with a new one.
+     */
+    private void maintain() {
+        while (run) {
+            try {
+                Thread.sleep(JConn.RECONNECT_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            for (Slot slot : slots) {
+                final JConn conn = slot.conn;
+                if (run && (conn == null || !conn.isUp())) {
+                    try {
+                        slot.open();
+                    } catch (IOException ex) {
+                        //Try again next time.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The copies of a hedged request which have been sent. The first reply
+     * completes the result, and the other copy is then cancelled, which tells
+     * its server to stop. A copy which fails only fails the result if the
+     * other is not still waiting.
+     */
+    private static class Hedge {
+
+        private final CompletableFuture<Object> result;
+        private final List<CompletableFuture<Object>> sent; //Guarded by lock.
+        private int waiting; //The copies which have not finished. Guarded by lock.
+        private final StampedLock lock;
+
+        private Hedge() {
+            result = new CompletableFuture<>();
+            sent = new ArrayList<>(2);
+            lock = new StampedLock();
+            result.whenComplete((value, ex) -> cancel());
+        }
+
+        /**
+         * Adds a copy which has been sent.
+         *
+         * @param future the CompletableFuture for its reply.
+         */
+        private void attach(CompletableFuture<Object> future) {
+            final long stamp = lock.writeLock();
+            try {
+                sent.add(future);
+                waiting++;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            future.whenComplete((value, ex) -> {
+                if (ex == null) {
+                    result.complete(value);
+                    return;
+                }
+                final boolean last;
+                final long stamp2 = lock.writeLock();
+                try {
+                    last = --waiting == 0;
+                } finally {
+                    lock.unlockWrite(stamp2);
+                }
+                if (last) {
+                    result.completeExceptionally(ex);
+                }
+            });
+            if (result.isDone()) { //The first copy finished while this one was being sent.
+                future.cancel(true);
+            }
+        }
+
+        /**
+         * Cancels the copies which are still waiting.
+         */
+        private void cancel() {
+            final List<CompletableFuture<Object>> copies;
+            final long stamp = lock.readLock();
+            try {
+                copies = new ArrayList<>(sent);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            copies.forEach((f) -> f.cancel(true));
+        }
+    }
+
+    /**
+     * A place in the pool for one connection.
+     */
+    private class Slot {
+
+        private final String ip;
+        private final int port;
+        private volatile JConn conn; //The connection, null until one has been opened.
+
+        private Slot(String ip, int port) {
+            this.ip = ip;
+            this.port = port;
+        }
+
+        /**
+         * Opens a new connection for this slot.
+         *
+         * @throws IOException if there was an error connecting.
+         */
+        private void open() throws IOException {
+            final JConn c = new JConn();
+            c.connect(ip, port);
+            c.cancelRetry(); //The pool replaces it if it drops.
+            final long stamp = slotsLock.readLock();
+            try {
+                listeners.forEach(c::registerListener);
+            } finally {
+                slotsLock.unlockRead(stamp);
+            }
+            conn = c;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads values of one type for the binary codec. Serializers are
+ * registered with JConnCodecs.registerSerializer(int, Class, JConnSerializer)
+ * on both the client and the server, and are used for values of exactly that
+ * class instead of Java serialization.
+ *
+ * @author David
+ * @param <T> the type of the values.
+ */
+public interface JConnSerializer<T> {
+
+    /**
+     * Writes a value.
+     *
+     * @param value the value, never null.
+     * @param out the stream to write it to.
+     * @throws IOException if there was an error writing the value.
+     */
+    public void write(T value, DataOutput out) throws IOException;
+
+    /**
+     * Reads a value written by write(T, DataOutput).
+     *
+     * @param in the stream to read it from.
+     * @return the value.
+     * @throws IOException if there was an error reading the value.
+     */
+    public T read(DataInput in) throws IOException;
+}
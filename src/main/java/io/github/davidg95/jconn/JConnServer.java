@@ -21,8 +21,11 @@
 package io.github.davidg95.jconn;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,6 +56,16 @@ public class JConnServer {
      */
     private final StampedLock listenersLock;
 
+    /**
+     * Sends the pushes which go over UDP.
+     */
+    private final JConnDatagrams.Sender datagrams;
+    /**
+     * The sequence of datagrams sent to each multicast group, by group and
+     * port.
+     */
+    private final ConcurrentHashMap<String, JConnDatagrams.Target> groups;
+
     /**
      * Constructor which creates a new server instance.
      *
@@ -65,10 +78,30 @@ public class JConnServer {
         listeners = new LinkedList<>();
         listenersLock = new StampedLock();
         this.debug = debug;
+        datagrams = new JConnDatagrams.Sender();
+        groups = new ConcurrentHashMap<>();
         acceptThread = new JConnConnectionAccept(port, classToScan, debug, listeners, listenersLock);
         init();
     }
 
+    /**
+     * Constructor which creates a new server instance accepting connections
+     * from an Acceptor.
+     *
+     * @param socket accepts the connections.
+     * @param classToScan the class with the JConnMethod annotated methods.
+     * @param debug if debug output should be shown.
+     */
+    private JConnServer(JConnLink.Acceptor socket, Class<?> classToScan, boolean debug) {
+        listeners = new LinkedList<>();
+        listenersLock = new StampedLock();
+        this.debug = debug;
+        datagrams = new JConnDatagrams.Sender();
+        groups = new ConcurrentHashMap<>();
+        acceptThread = new JConnConnectionAccept(socket, classToScan, debug, listeners, listenersLock);
+        init();
+    }
+
     /**
      * Starts the thread.
      */
@@ -102,6 +135,93 @@ public class JConnServer {
         return server;
     }
 
+    /**
+     * Start a new instance of JConnServer listening on a Unix domain socket,
+     * for clients on the same machine. Clients connect with
+     * JConn.connectUnix. Any file already at the path is replaced, and the
+     * file is deleted when the server is stopped. Needs Java 16 or later.
+     *
+     * @param path the path of the socket file.
+     * @param classToScan the class to scan for annotations on methods.
+     * @return the JConnServer instance.
+     * @throws IOException if there was an error starting the server, or Unix
+     * domain sockets are not supported.
+     */
+    public static JConnServer startUnix(String path, Class<?> classToScan) throws IOException {
+        return startUnix(path, classToScan, false);
+    }
+
+    /**
+     * Start a new instance of JConnServer listening on a Unix domain socket.
+     *
+     * @param path the path of the socket file.
+     * @param classToScan the class to scan for annotations on methods.
+     * @param debug indicates if log output should be included.
+     * @return the JConnServer instance.
+     * @throws IOException if there was an error starting the server, or Unix
+     * domain sockets are not supported.
+     */
+    public static JConnServer startUnix(String path, Class<?> classToScan, boolean debug) throws IOException {
+        return new JConnServer(JConnLink.listenUnix(path), classToScan, debug);
+    }
+
+    /**
+     * Start a new instance of JConnServer for clients on the same machine
+     * which connect through shared memory with JConn.connectShared. The
+     * server watches a directory for the files the clients create. The
+     * directory should only be used by this server, as any connection files
+     * already in it are deleted.
+     *
+     * @param dir the directory.
+     * @param classToScan the class to scan for annotations on methods.
+     * @return the JConnServer instance.
+     * @throws IOException if the directory could not be watched.
+     */
+    public static JConnServer startShared(String dir, Class<?> classToScan) throws IOException {
+        return startShared(dir, classToScan, false);
+    }
+
+    /**
+     * Start a new instance of JConnServer for clients which connect through
+     * shared memory.
+     *
+     * @param dir the directory.
+     * @param classToScan the class to scan for annotations on methods.
+     * @param debug indicates if log output should be included.
+     * @return the JConnServer instance.
+     * @throws IOException if the directory could not be watched.
+     */
+    public static JConnServer startShared(String dir, Class<?> classToScan, boolean debug) throws IOException {
+        return new JConnServer(JConnSharedMemory.listen(dir), classToScan, debug);
+    }
+
+    /**
+     * Start a new instance of JConnServer for clients in the same JVM. Clients
+     * connect with JConn.connectLocal, and their requests are passed to the
+     * methods without going through a socket.
+     *
+     * @param name the name clients connect to, unique within the JVM.
+     * @param classToScan the class to scan for annotations on methods.
+     * @return the JConnServer instance.
+     * @throws IOException if there is already a local server with the name.
+     */
+    public static JConnServer startLocal(String name, Class<?> classToScan) throws IOException {
+        return startLocal(name, classToScan, false);
+    }
+
+    /**
+     * Start a new instance of JConnServer for clients in the same JVM.
+     *
+     * @param name the name clients connect to, unique within the JVM.
+     * @param classToScan the class to scan for annotations on methods.
+     * @param debug indicates if log output should be included.
+     * @return the JConnServer instance.
+     * @throws IOException if there is already a local server with the name.
+     */
+    public static JConnServer startLocal(String name, Class<?> classToScan, boolean debug) throws IOException {
+        return new JConnServer(JConnLink.listenLocal(name), classToScan, debug);
+    }
+
     /**
      * Sends data to all the current connected clients.
      *
@@ -142,6 +262,172 @@ public class JConnServer {
         }
     }
 
+    /**
+     * Sends an update which only matters until there is a newer one for the
+     * same key, such as the latest price of a stock. It is queued for each
+     * client, and replaces any update for the same key which has not been
+     * sent to the client yet, so a slow client always receives the newest
+     * state and its queue holds at most one update for each key. See
+     * JConnThread.sendConflated(Object, JConnData).
+     *
+     * @param ip the address of the client to send data to, null for all
+     * clients.
+     * @param key the key, which must have equals and hashCode.
+     * @param data the update.
+     */
+    public void sendConflated(String ip, Object key, JConnData data) {
+        final long stamp = acceptThread.readLock();
+        try {
+            for (JConnThread thread : acceptThread.getAllThreads()) {
+                if (ip == null || thread.getAddress().equals(ip)) {
+                    thread.sendConflated(key, data);
+                }
+            }
+        } finally {
+            acceptThread.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sends the new version of a large object which is sent repeatedly and
+     * changes a little each time. The data is encoded once with the binary
+     * codec, and each client is sent only the bytes which changed since the
+     * last version it was sent for the key, or the whole of it if that is
+     * smaller. The client puts the data back together before passing it to
+     * onReceive, so it looks the same as data sent with sendData. See
+     * JConnThread.sendState(String, JConnData).
+     *
+     * @param ip the address of the client to send data to, null for all
+     * clients.
+     * @param key the key, which identifies the object.
+     * @param data the new version.
+     * @throws IOException if the data could not be encoded.
+     */
+    public void sendState(String ip, String key, JConnData data) throws IOException {
+        final byte[] bytes = JConnBinaryCodec.encode(data);
+        final long stamp = acceptThread.readLock();
+        try {
+            for (JConnThread thread : acceptThread.getAllThreads()) {
+                if (ip == null || thread.getAddress().equals(ip)) {
+                    try {
+                        thread.sendState(key, data, bytes);
+                    } catch (IOException ex) {
+                        Logger.getLogger(JConnServer.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            }
+        } finally {
+            acceptThread.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Publishes data to a topic. It is only sent to the clients which have
+     * subscribed to a pattern matching the topic with JConn.subscribe, and
+     * it is encoded once with the binary codec however many there are. The
+     * clients receive it in onReceive, and JConnData.getTopic() has the
+     * topic. A topic is made of segments separated by dots, such as
+     * "prices.uk.ftse".
+     *
+     * @param topic the topic.
+     * @param data the data to publish.
+     * @return the number of clients it was sent to.
+     * @throws IOException if the data could not be encoded.
+     * @throws IllegalArgumentException if the topic is not valid.
+     */
+    public int publish(String topic, JConnData data) throws IOException {
+        final Set<JConnThread> subscribers = acceptThread.getTopics().match(topic);
+        final JConnJournal journal = acceptThread.getJournal();
+        if (journal != null) { //Each client is sent the messages from the journal, in order.
+            final long sequence = journal.append(topic, data.setTopic(topic));
+            subscribers.forEach((thread) -> thread.journalAppended(sequence));
+            return subscribers.size();
+        }
+        if (subscribers.isEmpty()) {
+            return 0;
+        }
+        data.setTopic(topic);
+        final byte[] bytes = JConnBinaryCodec.encode(data);
+        int sent = 0;
+        for (JConnThread thread : subscribers) {
+            try {
+                thread.sendEncoded(data, bytes);
+                sent++;
+            } catch (IOException ex) {
+                Logger.getLogger(JConnServer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Opens a journal in a directory, and writes every message published to
+     * a topic from now on to it before it is sent. Each message is given a
+     * sequence number, and a client which loses its connection resumes from
+     * the last one it received when it reconnects, so it gets the messages
+     * published while it was away, at least once. The journal is kept in
+     * memory mapped segments, see JConn.JOURNAL_SEGMENT_SIZE,
+     * JConn.JOURNAL_SEGMENTS and JConn.JOURNAL_RETENTION. If the server is
+     * started again on the same directory, it carries on from the end of the
+     * journal, so clients can resume across a restart too.
+     *
+     * @param dir the directory.
+     * @throws IOException if the journal could not be opened.
+     */
+    public void openJournal(String dir) throws IOException {
+        acceptThread.setJournal(JConnJournal.open(dir));
+    }
+
+    /**
+     * Sends data over UDP to the clients which have called
+     * JConn.openDatagrams. This is for high rate pushes where losing some is
+     * better than waiting, as nothing is resent and a slow client does not
+     * hold up the others. The data is encoded once with the binary codec and
+     * must fit in one datagram. Each client numbers the datagrams it receives,
+     * drops any which arrive after a later one, and reports the ones which
+     * were lost in JConnReceiveEvent.getMissed().
+     *
+     * @param ip the address of the client to send data to, null for all
+     * clients.
+     * @param data the data to send.
+     * @throws IOException if the data could not be encoded, or is too large
+     * for a datagram.
+     */
+    public void sendDatagram(String ip, JConnData data) throws IOException {
+        final byte[] datagram = JConnDatagrams.encode(data);
+        final long stamp = acceptThread.readLock();
+        try {
+            for (JConnThread thread : acceptThread.getAllThreads()) {
+                final JConnDatagrams.Target target = thread.getDatagramTarget();
+                if (target == null || (ip != null && !thread.getAddress().equals(ip))) {
+                    continue;
+                }
+                try {
+                    datagrams.send(datagram, target);
+                } catch (IOException ex) {
+                    Logger.getLogger(JConnServer.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        } finally {
+            acceptThread.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Sends data over UDP to a multicast group, so it is sent once however
+     * many clients have joined the group with JConn.joinMulticast. See
+     * sendDatagram(String, JConnData).
+     *
+     * @param group the address of the group.
+     * @param port the port the clients joined the group on.
+     * @param data the data to send.
+     * @throws IOException if the data could not be encoded or sent.
+     */
+    public void sendMulticast(String group, int port, JConnData data) throws IOException {
+        final JConnDatagrams.Target target = groups.computeIfAbsent(group + ":" + port, (k) -> new JConnDatagrams.Target(new InetSocketAddress(group, port)));
+        datagrams.send(JConnDatagrams.encode(data), target);
+    }
+
     /**
      * Register a listener.
      *
@@ -156,6 +442,15 @@ public class JConnServer {
         }
     }
 
+    /**
+     * Sets the receiver for bulk transfers sent by clients.
+     *
+     * @param receiver the receiver, or null to discard them.
+     */
+    public void setBulkReceiver(JConnBulkReceiver receiver) {
+        acceptThread.setBulkReceiver(receiver);
+    }
+
     /**
      * Return a list of all the client connections.
      *
@@ -176,6 +471,7 @@ public class JConnServer {
                 Logger.getLogger(JConnServer.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        datagrams.close();
         try {
             acceptThread.shutdown();
         } catch (IOException ex) {
@@ -0,0 +1,629 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A link between two processes on the same machine through a memory mapped
+ * file, so messages are passed without any calls into the kernel. The file
+ * holds two single producer, single consumer ring buffers, one for each
+ * direction. JConnStream only writes from one thread at a time and reads from
+ * one thread, so each ring has one producer and one consumer.
+ *
+ * The server watches a directory. A client creates a file in it, sets up the
+ * header and the rings, and renames it to end in .ring. The server maps the
+ * file, marks it accepted and deletes its name, so nothing is left behind
+ * once both sides have it mapped.
+ *
+ * Each side holds a lock on one byte of the file while it has the
+ * connection open. The operating system drops the lock if the process dies,
+ * so a side which has been waiting a while checks the lock of the other, and
+ * ends the connection if it is gone.
+ *
+ * A thread which finds nothing to read, or no space to write, spins for a
+ * while, then parks for longer and longer, up to a millisecond. If
+ * JConn.SHARED_MEMORY_SPIN is set it spins the whole time instead, which
+ * gives the lowest latency, but uses a whole core.
+ *
+ * The positions and the state are read and written with sun.misc.Unsafe,
+ * which is found by reflection, as a plain read of a buffer in a loop may
+ * never see a change made by the other side. Without it, connecting throws
+ * an IOException.
+ *
+ * @author David
+ */
+class JConnSharedMemory extends JConnLink {
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private static final int MAGIC = 0x4A436F6E;
+
+    private static final int CLIENT_LOCK = 0; //The byte the client holds a lock on.
+    private static final int SERVER_LOCK = 1; //The byte the server holds a lock on.
+    private static final int MAGIC_AT = 8;
+    private static final int STATE_AT = 12; //OFFERED, ACCEPTED or CLOSED.
+    private static final int CAPACITY_AT = 16; //The size of each ring.
+    private static final int HEADER = 128;
+
+    private static final int OFFERED = 1;
+    private static final int ACCEPTED = 2;
+    private static final int CLOSED = 3;
+
+    /**
+     * Each ring has its write position and read position on their own cache
+     * lines, then its bytes.
+     */
+    private static final int RING_HEADER = 128;
+
+    /**
+     * The time a client waits for the server to accept it, in milliseconds.
+     */
+    private static final long ACCEPT_TIMEOUT = 10000;
+
+    /**
+     * The time in nanoseconds a waiting thread goes between checking that the
+     * other side is still alive.
+     */
+    private static final long ALIVE_CHECK = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final MethodHandle GET_LONG; //Unsafe.getLongVolatile(Object, long), null if Unsafe is not available.
+    private static final MethodHandle PUT_LONG; //Unsafe.putOrderedLong(Object, long, long).
+    private static final MethodHandle GET_INT; //Unsafe.getIntVolatile(Object, long).
+    private static final MethodHandle PUT_INT; //Unsafe.putIntVolatile(Object, long, int).
+    private static final MethodHandle ADDRESS; //Gets the address of a direct buffer.
+
+    static {
+        MethodHandle getLong = null;
+        MethodHandle putLong = null;
+        MethodHandle getInt = null;
+        MethodHandle putInt = null;
+        MethodHandle address = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getLong = lookup.unreflect(unsafeClass.getMethod("getLongVolatile", Object.class, long.class)).bindTo(unsafe);
+            putLong = lookup.unreflect(unsafeClass.getMethod("putOrderedLong", Object.class, long.class, long.class)).bindTo(unsafe);
+            getInt = lookup.unreflect(unsafeClass.getMethod("getIntVolatile", Object.class, long.class)).bindTo(unsafe);
+            putInt = lookup.unreflect(unsafeClass.getMethod("putIntVolatile", Object.class, long.class, int.class)).bindTo(unsafe);
+            final long offset = (long) unsafeClass.getMethod("objectFieldOffset", Field.class).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+            address = MethodHandles.insertArguments(lookup.unreflect(unsafeClass.getMethod("getLong", Object.class, long.class)).bindTo(unsafe), 1, offset);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            getLong = null;
+        }
+        GET_LONG = getLong;
+        PUT_LONG = putLong;
+        GET_INT = getInt;
+        PUT_INT = putInt;
+        ADDRESS = address;
+    }
+
+    private final Path path; //The name the file had when the connection was made.
+    private final FileChannel file;
+    private final MappedByteBuffer map; //Kept so the file stays mapped.
+    private final long address; //The address of the mapping.
+    private final FileLock lock; //The lock this side holds while the connection is open.
+    private final int peerLock; //The byte the other side holds a lock on.
+    private final Ring in; //The ring this side reads.
+    private final Ring out; //The ring this side writes.
+
+    private JConnSharedMemory(Path path, FileChannel file, MappedByteBuffer map, FileLock lock, boolean client) {
+        this.path = path;
+        this.file = file;
+        this.map = map;
+        this.address = address(map);
+        this.lock = lock;
+        this.peerLock = client ? SERVER_LOCK : CLIENT_LOCK;
+        final int capacity = map.getInt(CAPACITY_AT);
+        final Ring toServer = new Ring(HEADER, capacity);
+        final Ring toClient = new Ring(HEADER + RING_HEADER + capacity, capacity);
+        this.in = client ? toClient : toServer;
+        this.out = client ? toServer : toClient;
+    }
+
+    /**
+     * Opens a link to a server watching a directory.
+     *
+     * @param dir the directory.
+     * @return the link.
+     * @throws IOException if the server did not accept the connection.
+     */
+    static JConnLink connect(String dir) throws IOException {
+        if (GET_LONG == null) {
+            throw new IOException("Shared memory connections need sun.misc.Unsafe");
+        }
+        final int capacity = Integer.highestOneBit(Math.max(JConn.SHARED_MEMORY_SIZE - 1, 4095)) << 1; //A power of two, so positions can be masked.
+        final Path tmp = Files.createTempFile(Paths.get(dir), "jconn", ".tmp");
+        final FileChannel file = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        JConnSharedMemory link = null;
+        Path ring = null;
+        try {
+            final MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 2L * (RING_HEADER + capacity));
+            map.order(ByteOrder.nativeOrder());
+            map.putInt(MAGIC_AT, MAGIC);
+            map.putInt(CAPACITY_AT, capacity);
+            putInt(address(map) + STATE_AT, OFFERED);
+            link = new JConnSharedMemory(tmp, file, map, file.lock(CLIENT_LOCK, 1, false), true);
+            ring = tmp.resolveSibling(tmp.getFileName().toString().replace(".tmp", ".ring"));
+            Files.move(tmp, ring, StandardCopyOption.ATOMIC_MOVE); //The server only sees it once it is ready.
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_TIMEOUT);
+            int idle = 0;
+            while (true) {
+                final int state = getInt(link.address + STATE_AT);
+                if (state == ACCEPTED) {
+                    return link;
+                }
+                if (state == CLOSED || System.nanoTime() > end) {
+                    throw new ConnectException("No server accepted the connection in " + dir);
+                }
+                idle = pause(idle);
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (link != null) {
+                link.close();
+            } else {
+                file.close();
+            }
+            Files.deleteIfExists(tmp);
+            if (ring != null) {
+                Files.deleteIfExists(ring);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Watches a directory for clients. Any connection files already in it
+     * are deleted, as they were left by clients which have gone.
+     *
+     * @param dir the directory.
+     * @return the Acceptor.
+     * @throws IOException if the directory could not be watched.
+     */
+    static Acceptor listen(String dir) throws IOException {
+        if (GET_LONG == null) {
+            throw new IOException("Shared memory connections need sun.misc.Unsafe");
+        }
+        final Path directory = Paths.get(dir);
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "jconn*.{ring,tmp}")) {
+            for (Path p : stale) {
+                Files.deleteIfExists(p);
+            }
+        }
+        return new Acceptor() {
+
+            private final ArrayDeque<Path> found = new ArrayDeque<>(); //Files which have been seen but not accepted.
+
+            @Override
+            JConnLink accept() throws IOException {
+                while (true) {
+                    while (!found.isEmpty()) {
+                        final JConnLink link = claim(found.poll());
+                        if (link != null) {
+                            return link;
+                        }
+                    }
+                    final WatchKey key;
+                    try {
+                        key = watcher.take();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for a client");
+                    } catch (ClosedWatchServiceException ex) {
+                        throw new IOException("The server has been stopped", ex);
+                    }
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) { //Some were missed, so look at all of them.
+                            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "jconn*.ring")) {
+                                files.forEach(found::add);
+                            }
+                        } else {
+                            final Path name = (Path) event.context();
+                            if (name.toString().startsWith("jconn") && name.toString().endsWith(".ring")) {
+                                found.add(directory.resolve(name));
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+            }
+
+            @Override
+            String getAddress() {
+                return "shm:" + dir;
+            }
+
+            @Override
+            void close() throws IOException {
+                watcher.close();
+            }
+        };
+    }
+
+    /**
+     * Accepts a connection file created by a client.
+     *
+     * @param ring the file.
+     * @return the link, or null if the file is not a connection which is
+     * waiting to be accepted.
+     */
+    private static JConnLink claim(Path ring) {
+        FileChannel file = null;
+        try {
+            file = FileChannel.open(ring, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (file.size() < HEADER) {
+                file.close();
+                return null;
+            }
+            final MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, file.size());
+            map.order(ByteOrder.nativeOrder());
+            final int capacity = map.getInt(CAPACITY_AT);
+            if (map.getInt(MAGIC_AT) != MAGIC || getInt(address(map) + STATE_AT) != OFFERED || capacity <= 0 || file.size() != HEADER + 2L * (RING_HEADER + capacity)) {
+                file.close();
+                return null;
+            }
+            final JConnSharedMemory link = new JConnSharedMemory(ring, file, map, file.lock(SERVER_LOCK, 1, false), false);
+            putInt(link.address + STATE_AT, ACCEPTED);
+            try {
+                Files.deleteIfExists(ring); //Both sides have it mapped, so the name is no longer needed.
+            } catch (IOException ex) {
+                //It may still be mapped by the client on some systems, it is deleted when the connection closes.
+            }
+            return link;
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Could not accept shared memory connection " + ring, ex);
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ex1) {
+                    LOG.log(Level.WARNING, null, ex1);
+                }
+            }
+            return null;
+        }
+    }
+
+    @Override
+    JConnStream open(JConnCompressionStats stats) {
+        return new JConnStream(new RingInputStream(), new RingOutputStream(), null, stats);
+    }
+
+    @Override
+    String getAddress() {
+        return "shm:" + path;
+    }
+
+    /**
+     * Marks the connection closed, so the other side stops once it has read
+     * what was written, and releases the lock and the file.
+     *
+     * @throws IOException if there was an error closing the file.
+     */
+    @Override
+    void close() throws IOException {
+        putInt(address + STATE_AT, CLOSED);
+        try {
+            if (lock.isValid()) {
+                lock.release();
+            }
+        } finally {
+            file.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SharedMemory[" + path + "]";
+    }
+
+    /**
+     * Waits a little, for a thread which has nothing to do, and checks the
+     * connection is still open.
+     *
+     * @param idle the number of times the thread has waited without anything
+     * happening.
+     * @param since the System.nanoTime() the thread started waiting.
+     * @return the new number of times.
+     * @throws EOFException if the connection has been closed.
+     */
+    private int idle(int idle, long since) throws EOFException {
+        if (getInt(address + STATE_AT) == CLOSED) {
+            throw new EOFException("The connection is closed");
+        }
+        if ((idle & 0x3FF) == 0x3FF && System.nanoTime() - since > ALIVE_CHECK && !peerAlive()) {
+            putInt(address + STATE_AT, CLOSED);
+            throw new EOFException("The other side of the connection has gone");
+        }
+        return pause(idle);
+    }
+
+    /**
+     * Checks that the other side still holds its lock.
+     *
+     * @return false if the lock is free, so the other side has gone.
+     */
+    private boolean peerAlive() {
+        try {
+            final FileLock l = file.tryLock(peerLock, 1, false);
+            if (l == null) {
+                return true; //Held by another process.
+            }
+            l.release();
+            return false;
+        } catch (OverlappingFileLockException ex) {
+            return true; //Held by this JVM.
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Spins, yields or parks, depending on how long the thread has been
+     * waiting.
+     *
+     * @param idle the number of times the thread has waited.
+     * @return the new number of times.
+     */
+    private static int pause(int idle) {
+        if (!JConn.SHARED_MEMORY_SPIN && idle >= 200) {
+            LockSupport.parkNanos(Math.min(1000000L, 1000L << Math.min(idle - 200, 10)));
+        } else if (!JConn.SHARED_MEMORY_SPIN && idle >= 100) {
+            Thread.yield();
+        }
+        return idle == Integer.MAX_VALUE ? idle : idle + 1;
+    }
+
+    /**
+     * Gets the address of a mapping.
+     *
+     * @param map the mapping.
+     * @return the address.
+     */
+    private static long address(MappedByteBuffer map) {
+        try {
+            return (long) ADDRESS.invokeExact((Object) map);
+        } catch (Throwable ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Reads a long, seeing the last value written by either side.
+     *
+     * @param at the address.
+     * @return the value.
+     */
+    private static long getLong(long at) {
+        try {
+            return (long) GET_LONG.invokeExact((Object) null, at);
+        } catch (Throwable ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Writes a long, after everything written before it.
+     *
+     * @param at the address.
+     * @param value the value.
+     */
+    private static void putLong(long at, long value) {
+        try {
+            PUT_LONG.invokeExact((Object) null, at, value);
+        } catch (Throwable ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Reads an int, seeing the last value written by either side.
+     *
+     * @param at the address.
+     * @return the value.
+     */
+    private static int getInt(long at) {
+        try {
+            return (int) GET_INT.invokeExact((Object) null, at);
+        } catch (Throwable ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Writes an int, after everything written before it.
+     *
+     * @param at the address.
+     * @param value the value.
+     */
+    private static void putInt(long at, int value) {
+        try {
+            PUT_INT.invokeExact((Object) null, at, value);
+        } catch (Throwable ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * One direction of the connection. The positions only increase, and are
+     * masked to find where they are in the bytes.
+     */
+    private class Ring {
+
+        private final long writeAt; //The address of the write position.
+        private final long readAt; //The address of the read position.
+        private final int capacity;
+        private final ByteBuffer bytes; //The bytes, used by one thread on each side.
+
+        private Ring(int base, int capacity) {
+            this.writeAt = address + base;
+            this.readAt = address + base + 64;
+            this.capacity = capacity;
+            final ByteBuffer b = map.duplicate();
+            b.position(base + RING_HEADER);
+            b.limit(base + RING_HEADER + capacity);
+            this.bytes = b.slice();
+        }
+    }
+
+    /**
+     * Reads from the ring for this side.
+     */
+    private class RingInputStream extends InputStream {
+
+        private long position = getLong(in.readAt); //Only this stream moves the read position.
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            long available = 0;
+            int idle = 0;
+            long since = 0;
+            while (available == 0) {
+                available = getLong(in.writeAt) - position;
+                if (available == 0) {
+                    if (idle == 0) {
+                        since = System.nanoTime();
+                    }
+                    try {
+                        idle = idle(idle, since);
+                    } catch (EOFException ex) {
+                        return -1;
+                    }
+                }
+            }
+            final int n = (int) Math.min(len, available);
+            final int at = (int) (position & (in.capacity - 1));
+            final int first = Math.min(n, in.capacity - at);
+            in.bytes.position(at);
+            in.bytes.get(b, off, first);
+            if (first < n) {
+                in.bytes.position(0);
+                in.bytes.get(b, off + first, n - first);
+            }
+            position += n;
+            putLong(in.readAt, position); //The bytes are read before the space is given back.
+            return n;
+        }
+
+        @Override
+        public void close() {
+            //The link is closed by close().
+        }
+    }
+
+    /**
+     * Writes to the ring for the other side.
+     */
+    private class RingOutputStream extends OutputStream {
+
+        private long position = getLong(out.writeAt); //Only this stream moves the write position.
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (getInt(address + STATE_AT) == CLOSED) {
+                throw new EOFException("The connection is closed");
+            }
+            while (len > 0) {
+                long free = 0;
+                int idle = 0;
+                long since = 0;
+                while (free == 0) {
+                    free = out.capacity - (position - getLong(out.readAt));
+                    if (free == 0) {
+                        if (idle == 0) {
+                            since = System.nanoTime();
+                        }
+                        idle = idle(idle, since);
+                    }
+                }
+                final int n = (int) Math.min(len, free);
+                final int at = (int) (position & (out.capacity - 1));
+                final int first = Math.min(n, out.capacity - at);
+                out.bytes.position(at);
+                out.bytes.put(b, off, first);
+                if (first < n) {
+                    out.bytes.position(0);
+                    out.bytes.put(b, off + first, n - first);
+                }
+                position += n;
+                putLong(out.writeAt, position); //The bytes are written before they are made visible.
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            //The link is closed by close().
+        }
+    }
+}
@@ -0,0 +1,872 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The messages going each way on a connection. When the connection opens,
+ * the client offers the names of its codecs and the features it supports, and
+ * the server answers with the ones it also has. Each message is then sent as
+ * one or more frames, which are the length of the bytes in the frame, the
+ * index of the codec the message was encoded with in the agreed list, the
+ * lane, and the bytes. If the top bit of the index is set, the message is
+ * compressed and starts with its uncompressed length.
+ *
+ * There is a lane for each priority, each with its own encoders and decoders.
+ * A message larger than JConn.FRAGMENT_SIZE is split into fragments, and the
+ * MORE bit of the lane is set on all but the last. Between fragments the
+ * frame with the highest priority waiting is sent, so small urgent messages
+ * are not held up by large ones. Messages in the same lane are sent in order.
+ *
+ * A bulk transfer is sent as a BULK_START message, then chunk frames which
+ * have the BULK index, the id of the transfer and the bytes, then a BULK_END
+ * message. Other messages can be sent between the chunks.
+ *
+ * Writes can be made by any number of threads, but reads must be made by one
+ * thread at a time.
+ *
+ * @author David
+ */
+class JConnStream {
+
+    /**
+     * Sent by both sides before the codecs, so a connection to something
+     * which is not JConn fails straight away.
+     */
+    private static final int MAGIC = 0x4A436F6E;
+
+    /**
+     * Feature bit for deflate compression of large frames.
+     */
+    private static final int DEFLATE = 1;
+
+    /**
+     * Set in the codec index of a frame which is compressed.
+     */
+    private static final int COMPRESSED = 0x80;
+
+    /**
+     * The codec index of a frame which is a chunk of a bulk transfer.
+     */
+    private static final int BULK = 0x7F;
+
+    /**
+     * Set in the lane of a frame which is not the last fragment of its
+     * message.
+     */
+    private static final int MORE = 0x80;
+
+    /**
+     * The number of lanes, one for each priority.
+     */
+    private static final int LANES = JConnData.PRIORITY_HIGH + 1;
+
+    private static final Logger LOG = Logger.getGlobal();
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final WritableByteChannel channel; //The channel under out if there is one, so files can be sent without copying.
+
+    private final HashMap<String, Integer> indexes; //The index of each agreed codec.
+    private int codecs; //The number of agreed codecs.
+    private final Lane[] lanes; //The lanes, by priority.
+
+    private final StampedLock outLock; //Held while a frame is written.
+    private IOException failed; //The error which broke the output stream, null if it is working. Guarded by outLock.
+
+    private final FrameInput frameIn; //The message being read.
+    private byte[] readBuffer; //Holds the message being read.
+
+    private boolean deflate; //Indicates that both sides can compress frames.
+    private final JConnCompressionStats stats;
+    private Inflater inflater; //Created when it is first needed, and kept for the connection.
+    private byte[] inflateBuffer; //Holds the message being read once it is decompressed.
+
+    private volatile JConnBulkReceiver receiver; //Receives bulk transfers, null to discard them.
+    private final JConnIdMap<JConnBulkSink> transfers; //The sinks for the bulk transfers being received, by id. Only used by the reading thread.
+    private ByteBuffer chunkBuffer; //Holds a chunk of a file being sent when there is no channel.
+
+    /**
+     * Creates the stream for a connection. The codecs must be agreed with
+     * offer() or accept() before it is used.
+     *
+     * @param in the stream to read from, null for a subclass which does not
+     * use streams.
+     * @param out the stream to write to, null for a subclass which does not
+     * use streams.
+     * @param channel the channel under the output stream, or null if there is
+     * not one.
+     * @param stats where to count the effect of compression.
+     */
+    JConnStream(InputStream in, OutputStream out, WritableByteChannel channel, JConnCompressionStats stats) {
+        this.in = in == null ? null : new DataInputStream(new BufferedInputStream(in));
+        this.out = out == null ? null : new DataOutputStream(new BufferedOutputStream(out)); //Buffered, so each frame goes out in one write.
+        this.channel = channel;
+        transfers = new JConnIdMap<>();
+        indexes = new HashMap<>();
+        lanes = new Lane[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new Lane();
+        }
+        outLock = new StampedLock();
+        frameIn = new FrameInput();
+        readBuffer = new byte[1024];
+        this.stats = stats;
+    }
+
+    /**
+     * Called on the client to offer its codecs to the server and read the
+     * ones which were agreed.
+     *
+     * @throws IOException if there was an error, or the server is not a JConn
+     * server.
+     */
+    void offer() throws IOException {
+        final List<String> names = JConnCodecs.getNames();
+        out.writeInt(MAGIC);
+        out.writeByte(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+        out.writeByte(DEFLATE); //The features the client supports.
+        out.flush();
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("The server is not a JConn server");
+        }
+        final List<String> agreed = new ArrayList<>();
+        for (int i = in.readUnsignedByte(); i > 0; i--) {
+            agreed.add(in.readUTF());
+        }
+        deflate = (in.readUnsignedByte() & DEFLATE) != 0;
+        use(agreed);
+    }
+
+    /**
+     * Called on the server to read the codecs offered by the client and
+     * answer with the ones it also has.
+     *
+     * @throws IOException if there was an error, or the client is not a JConn
+     * client.
+     */
+    void accept() throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("The client is not a JConn client");
+        }
+        final List<String> agreed = new ArrayList<>();
+        for (int i = in.readUnsignedByte(); i > 0; i--) {
+            final String name = in.readUTF();
+            if (JConnCodecs.get(name) != null) {
+                agreed.add(name);
+            }
+        }
+        deflate = (in.readUnsignedByte() & DEFLATE) != 0;
+        out.writeInt(MAGIC);
+        out.writeByte(agreed.size());
+        for (String name : agreed) {
+            out.writeUTF(name);
+        }
+        out.writeByte(deflate ? DEFLATE : 0); //The features both sides support.
+        out.flush();
+        use(agreed);
+    }
+
+    /**
+     * Creates the encoders and decoders for the agreed codecs.
+     *
+     * @param agreed the names of the codecs.
+     * @throws IOException if a codec is missing.
+     */
+    private void use(List<String> agreed) throws IOException {
+        if (agreed.size() > BULK) {
+            throw new IOException("Too many codecs");
+        }
+        codecs = agreed.size();
+        for (Lane lane : lanes) {
+            lane.encoders = new JConnCodec.Encoder[codecs];
+            lane.decoders = new JConnCodec.Decoder[codecs];
+        }
+        for (int i = 0; i < codecs; i++) {
+            final JConnCodec codec = JConnCodecs.get(agreed.get(i));
+            if (codec == null) {
+                throw new IOException("There is no codec called " + agreed.get(i));
+            }
+            indexes.put(codec.getName(), i);
+            for (Lane lane : lanes) { //Each lane has its own, as the messages in different lanes can arrive in a different order.
+                lane.encoders[i] = codec.newEncoder();
+                lane.decoders[i] = codec.newDecoder();
+            }
+        }
+        if (!indexes.containsKey(JConnCodecs.JAVA)) {
+            throw new IOException("The java codec was not agreed");
+        }
+    }
+
+    /**
+     * Writes a message with the codec for its flag, in the lane for its
+     * priority. If the other side does not have that codec, the java codec is
+     * used. If the encoded message is at least JConnCodecs.COMPRESSION_THRESHOLD
+     * bytes it is compressed, unless compression is off for its flag or it
+     * does not get smaller. A message which fits in one frame and has nothing
+     * ahead of it in its lane is written straight away, anything else is
+     * queued in its lane and sent a fragment at a time. This returns once the
+     * whole message has been written.
+     *
+     * @param data the message.
+     * @throws IOException if there was an error writing the message.
+     */
+    void write(JConnData data) throws IOException {
+        Integer index = indexes.get(JConnCodecs.getCodec(data.getFlag()));
+        if (index == null) {
+            index = indexes.get(JConnCodecs.JAVA);
+        }
+        final int priority = data.getPriority();
+        final Lane lane = lanes[priority];
+        final Fragments message;
+        final long laneStamp = lane.lock.writeLock(); //Messages must be queued in the order they were encoded.
+        try {
+            lane.frame.reset();
+            lane.encoders[index].encode(data, lane.frame);
+            Buffer body = lane.frame;
+            int flags = index;
+            if (deflate && JConnCodecs.COMPRESSION_THRESHOLD > 0 && body.size() >= JConnCodecs.COMPRESSION_THRESHOLD && JConnCodecs.isCompressed(data.getFlag()) && lane.compress(stats)) {
+                body = lane.compressed;
+                flags |= COMPRESSED;
+            }
+            message = queue(flags, priority, body.bytes(), body.size(), true);
+        } finally {
+            lane.lock.unlockWrite(laneStamp);
+        }
+        if (message != null) {
+            sendFragments(message);
+        }
+    }
+
+    /**
+     * Writes a message which has already been encoded, so a message sent on
+     * many connections only has to be encoded once. The codec must not keep
+     * anything between messages, as the bytes are not encoded with this
+     * connection's encoder. The message is not compressed.
+     *
+     * @param codec the name of the codec the message was encoded with.
+     * @param bytes the encoded message, which must not be changed.
+     * @param priority the priority of the message.
+     * @return true if the message was written, false if the other side does
+     * not have the codec, when it should be written with write(JConnData).
+     * @throws IOException if there was an error writing the message.
+     */
+    boolean writeEncoded(String codec, byte[] bytes, int priority) throws IOException {
+        final Integer index = indexes.get(codec);
+        if (index == null) {
+            return false;
+        }
+        final Lane lane = lanes[priority];
+        final Fragments message;
+        final long laneStamp = lane.lock.writeLock();
+        try {
+            message = queue(index, priority, bytes, bytes.length, false);
+        } finally {
+            lane.lock.unlockWrite(laneStamp);
+        }
+        if (message != null) {
+            sendFragments(message);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a message straight away if it fits in one frame and has nothing
+     * ahead of it in its lane, otherwise queues it in its lane. The lock for
+     * the lane must be held.
+     *
+     * @param flags the index of the codec, with the COMPRESSED bit.
+     * @param priority the priority of the message.
+     * @param bytes the array holding the message.
+     * @param length the length of the message.
+     * @param copy true if the array is reused, so must be copied if the
+     * message is queued.
+     * @return the queued message, or null if it was written.
+     * @throws IOException if there was an error writing the message.
+     */
+    private Fragments queue(int flags, int priority, byte[] bytes, int length, boolean copy) throws IOException {
+        final Lane lane = lanes[priority];
+        final long stamp = outLock.writeLock();
+        try {
+            if (failed != null) {
+                throw new IOException("The connection has failed", failed);
+            }
+            if (lane.queue.isEmpty() && length <= JConn.FRAGMENT_SIZE) { //It can go out in one frame.
+                try {
+                    writeFrame(flags, priority, bytes, 0, length);
+                    out.flush();
+                } catch (IOException ex) {
+                    failed = ex;
+                    throw ex;
+                }
+                return null;
+            }
+            final Fragments message = new Fragments(flags, copy || length != bytes.length ? Arrays.copyOf(bytes, length) : bytes);
+            lane.queue.add(message);
+            return message;
+        } finally {
+            outLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes fragments until a queued message has been sent. Each time, the
+     * next fragment of the message at the front of the highest priority lane
+     * which has one is written, so this may send fragments of other messages
+     * first. The lock is only held for one fragment at a time.
+     *
+     * @param message the message.
+     * @throws IOException if there was an error writing a fragment.
+     */
+    private void sendFragments(Fragments message) throws IOException {
+        while (true) {
+            final long stamp = outLock.writeLock();
+            try {
+                if (message.sent == message.bytes.length) { //Another thread sent the rest of it.
+                    return;
+                }
+                if (failed != null) {
+                    throw new IOException("The connection has failed", failed);
+                }
+                int priority = LANES - 1;
+                while (lanes[priority].queue.isEmpty()) {
+                    priority--;
+                }
+                final Lane lane = lanes[priority];
+                final Fragments next = lane.queue.peek();
+                final int n = Math.min(next.bytes.length - next.sent, JConn.FRAGMENT_SIZE);
+                try {
+                    writeFrame(next.flags, priority | (next.sent + n < next.bytes.length ? MORE : 0), next.bytes, next.sent, n);
+                    out.flush();
+                } catch (IOException ex) {
+                    failed = ex;
+                    throw ex;
+                }
+                next.sent += n;
+                if (next.sent == next.bytes.length) {
+                    lane.queue.poll();
+                }
+            } finally {
+                outLock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Writes a frame.
+     *
+     * @param index the index of the codec, with the COMPRESSED bit.
+     * @param lane the lane, with the MORE bit.
+     * @param bytes the array holding the bytes.
+     * @param offset where the bytes start.
+     * @param length the number of bytes.
+     * @throws IOException if there was an error writing.
+     */
+    private void writeFrame(int index, int lane, byte[] bytes, int offset, int length) throws IOException {
+        out.writeInt(length);
+        out.writeByte(index);
+        out.writeByte(lane);
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Reads a message, blocking until one arrives. Bulk transfers which arrive
+     * while waiting are passed to the receiver.
+     *
+     * @return the message.
+     * @throws IOException if there was an error reading the message.
+     * @throws ClassNotFoundException if the class of a value is not found.
+     */
+    JConnData read() throws IOException, ClassNotFoundException {
+        try {
+            while (true) {
+                final JConnData data = readFrame();
+                if (data == null) { //It was a chunk of a bulk transfer, or part of a message.
+                    continue;
+                }
+                if (data.getType() == JConnData.BULK_START) {
+                    startTransfer(data);
+                } else if (data.getType() == JConnData.BULK_END) {
+                    final JConnBulkSink sink = transfers.remove(data.getId());
+                    if (sink != null) {
+                        sink.end(Boolean.TRUE.equals(data.getReturnValue()));
+                    }
+                    data.recycle();
+                } else {
+                    return data;
+                }
+            }
+        } catch (IOException ex) {
+            for (JConnBulkSink sink : transfers.values()) { //Nothing more will arrive.
+                sink.end(false);
+            }
+            transfers.clear();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @return the message, or null if the frame was a chunk of a bulk
+     * transfer or a fragment which is not the last of its message.
+     * @throws IOException if there was an error reading the frame.
+     * @throws ClassNotFoundException if the class of a value is not found.
+     */
+    JConnData readFrame() throws IOException, ClassNotFoundException {
+        final int length = in.readInt();
+        int index = in.readUnsignedByte();
+        if (index == BULK) {
+            readChunk(length);
+            return null;
+        }
+        final int laneByte = in.readUnsignedByte();
+        final int priority = laneByte & ~MORE;
+        final boolean isCompressed = (index & COMPRESSED) != 0;
+        index &= ~COMPRESSED;
+        if (length < 0 || index >= codecs || priority >= LANES) {
+            throw new StreamCorruptedException("Invalid frame");
+        }
+        final Lane lane = lanes[priority];
+        byte[] bytes;
+        int size;
+        if ((laneByte & MORE) == 0 && lane.assembly.size() == 0) { //The whole message is in this frame.
+            if (readBuffer.length < length) {
+                readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+            }
+            in.readFully(readBuffer, 0, length);
+            bytes = readBuffer;
+            size = length;
+        } else {
+            lane.assembly.ensure(length);
+            in.readFully(lane.assembly.bytes(), lane.assembly.size(), length);
+            lane.assembly.skip(length);
+            if ((laneByte & MORE) != 0) { //Wait for the rest of the message.
+                return null;
+            }
+            bytes = lane.assembly.bytes();
+            size = lane.assembly.size();
+            lane.assembly.reset(); //The bytes stay in the array until the next fragment is read.
+        }
+        if (isCompressed) {
+            if (size < 4) {
+                throw new StreamCorruptedException("Invalid frame");
+            }
+            final int uncompressed = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+            if (uncompressed < 0) {
+                throw new StreamCorruptedException("Invalid frame");
+            }
+            decompress(bytes, 4, size - 4, uncompressed);
+            frameIn.set(inflateBuffer, uncompressed);
+        } else {
+            frameIn.set(bytes, size);
+        }
+        final JConnData data = lane.decoders[index].decode(frameIn);
+        data.setPriority(priority); //Replies go back in the same lane.
+        return data;
+    }
+
+    /**
+     * Sets the receiver for bulk transfers.
+     *
+     * @param receiver the receiver, or null to discard bulk transfers.
+     */
+    void setBulkReceiver(JConnBulkReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Gets the sink for a bulk transfer from the receiver.
+     *
+     * @param header the BULK_START message.
+     */
+    private void startTransfer(JConnData header) {
+        final JConnBulkReceiver r = receiver;
+        if (r == null) {
+            return;
+        }
+        try {
+            final JConnBulkSink sink = r.start(header);
+            if (sink != null) {
+                transfers.put(header.getId(), sink);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Error starting bulk transfer " + header.getFlag(), ex);
+        }
+    }
+
+    /**
+     * Reads a chunk of a bulk transfer and passes it to the transfer's sink.
+     *
+     * @param length the number of bytes in the chunk.
+     * @throws IOException if there was an error reading the chunk.
+     */
+    private void readChunk(int length) throws IOException {
+        final long id = in.readLong();
+        if (length < 0) {
+            throw new StreamCorruptedException("Invalid frame");
+        }
+        if (readBuffer.length < length) {
+            readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+        }
+        in.readFully(readBuffer, 0, length);
+        deliver(id, ByteBuffer.wrap(readBuffer, 0, length));
+    }
+
+    /**
+     * Passes a chunk of a bulk transfer to the transfer's sink.
+     *
+     * @param id the id of the transfer.
+     * @param chunk the bytes.
+     */
+    void deliver(long id, ByteBuffer chunk) {
+        final JConnBulkSink sink = transfers.get(id);
+        if (sink == null) { //The transfer is not wanted.
+            return;
+        }
+        try {
+            sink.write(chunk);
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.SEVERE, "Error receiving bulk transfer", ex);
+            transfers.remove(id);
+            sink.end(false);
+        }
+    }
+
+    /**
+     * Sends the bytes of a bulk transfer from a file, in chunks of at most
+     * JConn.BULK_CHUNK_SIZE bytes. If the stream has a channel the chunks are
+     * transferred straight from the file to it, otherwise they are read into a
+     * buffer. The output lock is taken for each chunk, so other messages can
+     * be sent in between. The BULK_START message must already have been sent.
+     *
+     * @param id the id of the transfer.
+     * @param source the file.
+     * @param position where in the file to start.
+     * @param count the number of bytes to send.
+     * @throws IOException if there was an error sending the bytes, or the
+     * file is too short.
+     */
+    void sendBulk(long id, FileChannel source, long position, long count) throws IOException {
+        if (source.size() < position + count) {
+            throw new IOException("The file is shorter than the transfer");
+        }
+        while (count > 0) {
+            final int n = (int) Math.min(count, JConn.BULK_CHUNK_SIZE);
+            final long stamp = outLock.writeLock();
+            try {
+                writeChunkHeader(id, n);
+                if (channel != null) {
+                    out.flush();
+                    long sent = 0;
+                    while (sent < n) {
+                        final long t = source.transferTo(position + sent, n - sent, channel);
+                        if (t <= 0) {
+                            throw new IOException("The file ended during the transfer"); //The frame can not be finished, so the connection can not be used.
+                        }
+                        sent += t;
+                    }
+                } else {
+                    if (chunkBuffer == null || chunkBuffer.capacity() < n) {
+                        chunkBuffer = ByteBuffer.allocate(n);
+                    }
+                    chunkBuffer.clear().limit(n);
+                    while (chunkBuffer.hasRemaining()) {
+                        if (source.read(chunkBuffer, position + chunkBuffer.position()) < 0) {
+                            throw new IOException("The file ended during the transfer");
+                        }
+                    }
+                    out.write(chunkBuffer.array(), 0, n);
+                }
+                out.flush();
+            } finally {
+                outLock.unlockWrite(stamp);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer as the bytes of a bulk transfer,
+     * in chunks of at most JConn.BULK_CHUNK_SIZE bytes. The output lock is
+     * taken for each chunk, so other messages can be sent in between. The
+     * BULK_START message must already have been sent.
+     *
+     * @param id the id of the transfer.
+     * @param source the bytes. Its position is moved to its limit.
+     * @throws IOException if there was an error sending the bytes.
+     */
+    void sendBulk(long id, ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            final int n = Math.min(source.remaining(), JConn.BULK_CHUNK_SIZE);
+            final ByteBuffer chunk = source.duplicate();
+            chunk.limit(chunk.position() + n);
+            final long stamp = outLock.writeLock();
+            try {
+                writeChunkHeader(id, n);
+                if (channel != null) {
+                    out.flush();
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                } else if (chunk.hasArray()) {
+                    out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), n);
+                } else {
+                    if (chunkBuffer == null || chunkBuffer.capacity() < n) {
+                        chunkBuffer = ByteBuffer.allocate(n);
+                    }
+                    chunk.get(chunkBuffer.array(), 0, n);
+                    out.write(chunkBuffer.array(), 0, n);
+                }
+                out.flush();
+            } finally {
+                outLock.unlockWrite(stamp);
+            }
+            source.position(source.position() + n);
+        }
+    }
+
+    /**
+     * Writes the start of a chunk frame.
+     *
+     * @param id the id of the transfer.
+     * @param length the number of bytes in the chunk.
+     * @throws IOException if there was an error writing.
+     */
+    private void writeChunkHeader(long id, int length) throws IOException {
+        out.writeInt(length);
+        out.writeByte(BULK);
+        out.writeLong(id);
+    }
+
+    /**
+     * Decompresses a message into the inflate buffer.
+     *
+     * @param bytes the array holding the compressed message.
+     * @param offset where the compressed message starts.
+     * @param length the length of the compressed message.
+     * @param size the length of the message once it is decompressed.
+     * @throws IOException if the message could not be decompressed.
+     */
+    private void decompress(byte[] bytes, int offset, int length, int size) throws IOException {
+        final long start = System.nanoTime();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        if (inflateBuffer == null || inflateBuffer.length < size) {
+            inflateBuffer = new byte[Math.max(size, inflateBuffer == null ? 1024 : inflateBuffer.length * 2)];
+        }
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+        try {
+            int done = 0;
+            while (done < size) {
+                final int n = inflater.inflate(inflateBuffer, done, size - done);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new StreamCorruptedException("Compressed frame is shorter than its length");
+                }
+                done += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new StreamCorruptedException("Compressed frame is corrupt: " + ex.getMessage());
+        }
+        stats.decompressed(System.nanoTime() - start);
+    }
+
+    /**
+     * Closes both directions of the stream, and frees the memory used for
+     * compression.
+     *
+     * @throws IOException if there was an error closing the stream.
+     */
+    void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+            for (Lane lane : lanes) {
+                final long stamp = lane.lock.writeLock();
+                try {
+                    if (lane.deflater != null) {
+                        lane.deflater.end();
+                        lane.deflater = null;
+                    }
+                } finally {
+                    lane.lock.unlockWrite(stamp);
+                }
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * The state for the messages of one priority.
+     */
+    private static class Lane {
+
+        private final StampedLock lock; //Held while a message is encoded and queued.
+        private JConnCodec.Encoder[] encoders; //The encoders, by index.
+        private JConnCodec.Decoder[] decoders; //The decoders, by index. Only used by the reading thread.
+        private final Buffer frame; //The message being written.
+        private final ArrayDeque<Fragments> queue; //The messages waiting to be sent. Guarded by the output lock.
+        private final Buffer assembly; //The fragments of the message being read. Only used by the reading thread.
+        private Deflater deflater; //Created when it is first needed, and kept for the connection.
+        private Buffer compressed; //Holds the message being written once it is compressed, after its uncompressed length.
+
+        private Lane() {
+            lock = new StampedLock();
+            frame = new Buffer();
+            queue = new ArrayDeque<>();
+            assembly = new Buffer();
+        }
+
+        /**
+         * Compresses the message in the frame buffer into the compressed
+         * buffer.
+         *
+         * @param stats where to count the effect of compression.
+         * @return true if it got smaller, false if it should be sent as it is.
+         */
+        private boolean compress(JConnCompressionStats stats) {
+            final long start = System.nanoTime();
+            if (deflater == null) {
+                deflater = new Deflater(JConnCodecs.COMPRESSION_LEVEL);
+                compressed = new Buffer();
+            }
+            deflater.reset();
+            deflater.setInput(frame.bytes(), 0, frame.size());
+            deflater.finish();
+            compressed.reset();
+            final int size = frame.size();
+            compressed.write(size >>> 24);
+            compressed.write(size >>> 16);
+            compressed.write(size >>> 8);
+            compressed.write(size);
+            while (!deflater.finished()) {
+                compressed.ensure(1024);
+                final int n = deflater.deflate(compressed.bytes(), compressed.size(), compressed.bytes().length - compressed.size());
+                compressed.skip(n);
+                if (compressed.size() >= size) { //It is not getting any smaller, so stop.
+                    break;
+                }
+            }
+            stats.compressed(size, compressed.size(), System.nanoTime() - start);
+            return compressed.size() < size;
+        }
+    }
+
+    /**
+     * A message which is too large for one frame, or was queued behind one,
+     * and how much of it has been sent.
+     */
+    private static class Fragments {
+
+        private final int flags; //The index of the codec, with the COMPRESSED bit.
+        private final byte[] bytes; //The encoded message.
+        private int sent; //The number of bytes which have been sent. Guarded by the output lock.
+
+        private Fragments(int flags, byte[] bytes) {
+            this.flags = flags;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream which can be written into directly.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(1024);
+        }
+
+        private byte[] bytes() {
+            return buf;
+        }
+
+        /**
+         * Makes sure there is space for at least this many more bytes.
+         *
+         * @param space the number of bytes.
+         */
+        private void ensure(int space) {
+            if (buf.length - count < space) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + space));
+            }
+        }
+
+        /**
+         * Counts bytes which were written straight into the array.
+         *
+         * @param n the number of bytes.
+         */
+        private void skip(int n) {
+            count += n;
+        }
+    }
+
+    /**
+     * Reads the message in the read buffer.
+     */
+    private static class FrameInput extends ByteArrayInputStream {
+
+        private FrameInput() {
+            super(new byte[0]);
+        }
+
+        private void set(byte[] bytes, int length) {
+            buf = bytes;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+    }
+}
@@ -22,23 +22,29 @@ package io.github.davidg95.jconn;
 
 import io.github.davidg95.jconn.events.*;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 /**
  * Thread for handling incoming connections.
@@ -49,19 +55,35 @@ public class JConnThread extends Thread {
 
     private static final Logger LOG = Logger.getGlobal();
 
-    private final ObjectInputStream obIn; //InputStream for receiving data.
-    private final ObjectOutputStream obOut; //OutputStream for sending data
+    private final JConnStream stream; //The messages to and from the client.
+    private final JConnCompressionStats compressionStats;
+    private final AtomicLong bulkIds; //The source of ids for bulk transfers.
+    private final JConnIdMap<StreamCredit> streams; //The streamed results being sent, by the id of the request.
+    private final StampedLock streamsLock; //The StampedLock for protecting the streams map.
+    private final JConnIdMap<JConnContext> running; //The requests which have not been replied to, by id.
+    private final StampedLock runningLock; //The StampedLock for protecting the running map.
+    private final JConnIdMap<ChannelExecutor> channels; //Runs the requests on each logical channel in order, by channel.
+    private final StampedLock channelsLock; //The StampedLock for protecting the channels map.
+    private final LinkedHashMap<Object, JConnData> conflated; //The newest update for each key which has not been sent, in the order the keys were queued.
+    private final StampedLock conflatedLock; //The StampedLock for protecting the conflated map.
+    private boolean draining; //Indicates that a handler thread is sending the conflated updates. Guarded by conflatedLock.
+    private final AtomicLong replaced; //The number of conflated updates which were replaced before they were sent.
+    private final HashMap<String, State> states; //The last version of each object sent with sendState, by key.
+    private final StampedLock statesLock; //The StampedLock for protecting the states map, held while a version is sent so they go in order.
+    private JConnJournal.Cursor cursor; //Where the client is up to in the server's journal, null until it subscribes. Guarded by journalLock.
+    private boolean journalDraining; //Indicates that a handler thread is sending from the journal. Guarded by journalLock.
+    private boolean journalMore; //Indicates that messages have been added to the journal since the handler thread last looked. Guarded by journalLock.
+    private final StampedLock journalLock; //The StampedLock for protecting the cursor.
 
-    private final StampedLock outLock; //The StampedLock for protecting the output stream.
-
-    private final Socket socket; //The main socket
+    private final JConnLink link; //The socket to the client.
+    private volatile JConnDatagrams.Target datagrams; //Where pushes sent over UDP go, null if the client is not listening for them.
 
     private boolean conn_term = false;
 
     /**
      * All the detected method which have the @JConnMethod annotation.
      */
-    private final LinkedList<Method> JCONNMETHODS;
+    private final JConnMethodTable JCONNMETHODS;
 
     private final Object methodClass;
 
@@ -72,43 +94,59 @@ public class JConnThread extends Thread {
     private final List<JConnListener> listeners;
     private final StampedLock listenersLock;
     private final JConnConnectionAccept th;
+    private final ExecutorService handlers; //The threads which run the @JConnMethod methods.
 
     /**
      * Constructor for Connection thread.
      *
      * @param name the name of the thread.
-     * @param s the socket used for this connection
-     * @param methods the JConn annotated method.
+     * @param link the socket used for this connection
+     * @param methods the table of JConn annotated methods.
      * @param methodClass the methodClass object.
      * @param debug indicates if debug output should be shown.
      * @param listeners the JConnListeners.
      * @param listenersLock the lock to protect the listeners list.
      * @param th the connection accept thread object.
+     * @param handlers the executor to run the JConn annotated methods on.
      * @throws java.lang.InstantiationException if there was an error creating
      * an instance of the method class.
      * @throws java.lang.IllegalAccessException if the method class is not
      * accessible.
      * @throws java.io.IOException if there is a network error.
      */
-    public JConnThread(String name, Socket s, LinkedList<Method> methods, Object methodClass, boolean debug, List<JConnListener> listeners, StampedLock listenersLock, JConnConnectionAccept th) throws InstantiationException, IllegalAccessException, IOException {
+    JConnThread(String name, JConnLink link, JConnMethodTable methods, Object methodClass, boolean debug, List<JConnListener> listeners, StampedLock listenersLock, JConnConnectionAccept th, ExecutorService handlers) throws InstantiationException, IllegalAccessException, IOException {
         super(name);
-        this.socket = s;
-        this.address = s.getInetAddress().getHostAddress();
+        this.link = link;
+        this.address = link.getAddress();
         this.debug = debug;
         this.listeners = listeners;
         this.JCONNMETHODS = methods;
-        outLock = new StampedLock();
         this.methodClass = methodClass;
         this.listenersLock = listenersLock;
         this.th = th;
-        obIn = new ObjectInputStream(socket.getInputStream());
-        obOut = new ObjectOutputStream(socket.getOutputStream());
-        obOut.flush();
+        this.handlers = handlers;
+        compressionStats = new JConnCompressionStats();
+        bulkIds = new AtomicLong();
+        streams = new JConnIdMap<>();
+        streamsLock = new StampedLock();
+        running = new JConnIdMap<>();
+        runningLock = new StampedLock();
+        channels = new JConnIdMap<>();
+        channelsLock = new StampedLock();
+        conflated = new LinkedHashMap<>();
+        conflatedLock = new StampedLock();
+        replaced = new AtomicLong();
+        states = new HashMap<>();
+        statesLock = new StampedLock();
+        journalLock = new StampedLock();
+        stream = link.open(compressionStats);
+        stream.accept(); //Agree the codecs with the client.
     }
 
     /**
-     * Calling this method will send the JConnData to the client. This method
-     * will aquire a writeLock on the outLock StampedLock.
+     * Calling this method will send the JConnData to the client. Large
+     * messages are sent in fragments, with messages of a higher priority sent
+     * in between.
      *
      * @param data the data to send.
      * @throws IOException if there was a network error.
@@ -117,21 +155,393 @@ public class JConnThread extends Thread {
         if (conn_term) {
             return;
         }
-        final long stamp = outLock.writeLock();
+        stream.write(data);
+    }
+
+    /**
+     * Sends an update which only matters until there is a newer one for the
+     * same key, such as the latest price of a stock. The update is queued and
+     * sent by a handler thread, so this does not block. If an update for the
+     * same key is still waiting to be sent, it is replaced by this one and
+     * keeps its place in the queue. A client which cannot keep up then gets
+     * the newest state for each key rather than falling further behind, and
+     * the queue never holds more than one update for each key.
+     *
+     * @param key the key, which must have equals and hashCode.
+     * @param data the update.
+     */
+    public void sendConflated(Object key, JConnData data) {
+        if (conn_term) {
+            return;
+        }
+        final long stamp = conflatedLock.writeLock();
+        try {
+            if (conflated.put(key, data) != null) {
+                replaced.incrementAndGet();
+            }
+            if (draining) { //The thread sending the queue will send it.
+                return;
+            }
+            draining = true;
+        } finally {
+            conflatedLock.unlockWrite(stamp);
+        }
+        try {
+            handlers.execute(this::drainConflated);
+        } catch (RejectedExecutionException ex) { //The server is stopping.
+            clearConflated();
+        }
+    }
+
+    /**
+     * Sends the queued conflated updates until the queue is empty. Updates
+     * which are queued while one is being written wait in the queue, where
+     * newer ones can replace them.
+     */
+    private void drainConflated() {
+        while (true) {
+            final JConnData data;
+            final long stamp = conflatedLock.writeLock();
+            try {
+                final Iterator<JConnData> it = conflated.values().iterator();
+                if (!it.hasNext()) {
+                    draining = false;
+                    return;
+                }
+                data = it.next();
+                it.remove();
+            } finally {
+                conflatedLock.unlockWrite(stamp);
+            }
+            try {
+                sendData(data);
+            } catch (IOException ex) {
+                if (debug) {
+                    LOG.log(Level.SEVERE, "Error sending a conflated update", ex);
+                }
+                clearConflated(); //The connection has failed, so nothing more can be sent.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the conflated updates which have not been sent.
+     */
+    private void clearConflated() {
+        final long stamp = conflatedLock.writeLock();
+        try {
+            conflated.clear();
+            draining = false;
+        } finally {
+            conflatedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Called when a message which matches one of the client's subscriptions
+     * has been added to the journal. The messages are sent from the journal
+     * by a handler thread, in order, so a client which is resuming gets the
+     * ones it missed before the new ones.
+     *
+     * @param sequence the sequence number of the message.
+     */
+    void journalAppended(long sequence) {
+        if (conn_term) {
+            return;
+        }
+        final long stamp = journalLock.writeLock();
+        try {
+            if (cursor == null) { //The journal was opened after the client subscribed.
+                try {
+                    cursor = th.getJournal().cursor(sequence);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Error reading the journal for " + address, ex);
+                    return;
+                }
+            }
+            journalMore = true;
+            if (journalDraining) { //The thread sending from the journal will send it.
+                return;
+            }
+            journalDraining = true;
+        } finally {
+            journalLock.unlockWrite(stamp);
+        }
+        try {
+            handlers.execute(this::drainJournal);
+        } catch (RejectedExecutionException ex) { //The server is stopping.
+            final long stamp2 = journalLock.writeLock();
+            journalDraining = false;
+            journalLock.unlockWrite(stamp2);
+        }
+    }
+
+    /**
+     * Sends the messages in the journal which match the client's
+     * subscriptions, until it has caught up.
+     */
+    private void drainJournal() {
+        final JConnJournal.Entry entry = new JConnJournal.Entry();
+        while (true) {
+            final JConnJournal.Cursor c;
+            final long stamp = journalLock.writeLock();
+            try {
+                if (!journalMore || conn_term) {
+                    journalDraining = false;
+                    return;
+                }
+                journalMore = false;
+                c = cursor;
+            } finally {
+                journalLock.unlockWrite(stamp);
+            }
+            try {
+                while (c.read(entry)) {
+                    if (th.getTopics().matches(this, entry.topic) && !stream.writeEncoded(JConnCodecs.BINARY, entry.bytes, JConnData.PRIORITY_NORMAL)) {
+                        stream.write(JConnBinaryCodec.decode(entry.bytes)); //The client does not have the binary codec.
+                    }
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                if (debug) {
+                    LOG.log(Level.SEVERE, "Error sending from the journal", ex);
+                }
+                final long stamp2 = journalLock.writeLock();
+                journalDraining = false; //The connection has failed, so nothing more can be sent.
+                journalLock.unlockWrite(stamp2);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of updates sent with sendConflated which were replaced
+     * by a newer one before they were sent.
+     *
+     * @return the number of updates.
+     */
+    public long getReplacedCount() {
+        return replaced.get();
+    }
+
+    /**
+     * Sends the new version of a large object which is sent repeatedly and
+     * changes a little each time. Only the bytes which changed since the last
+     * version sent for the key are sent, unless sending the whole of it is
+     * not much larger. The client puts the data back together before passing
+     * it to onReceive. If it does not have the version the changes are from,
+     * it asks for the whole of it again. One version of each key is kept for
+     * as long as the connection is open.
+     *
+     * @param key the key, which identifies the object.
+     * @param data the new version.
+     * @throws IOException if there was a network error.
+     */
+    public void sendState(String key, JConnData data) throws IOException {
+        sendState(key, data, JConnBinaryCodec.encode(data));
+    }
+
+    /**
+     * Sends the new version of an object which has already been encoded.
+     *
+     * @param key the key, which identifies the object.
+     * @param data the new version.
+     * @param bytes the new version encoded with the binary codec.
+     * @throws IOException if there was a network error.
+     */
+    void sendState(String key, JConnData data, byte[] bytes) throws IOException {
+        if (conn_term) {
+            return;
+        }
+        final long stamp = statesLock.writeLock();
+        try {
+            State state = states.get(key);
+            if (state == null) {
+                state = new State();
+                states.put(key, state);
+            }
+            final byte[] delta = state.bytes == null ? null : JConnDelta.diff(state.bytes, bytes);
+            final long version = state.version + 1;
+            reply(state(key, version, delta == null ? 0 : state.version, delta == null ? bytes : delta, data.getPriority()));
+            state.version = version;
+            state.bytes = bytes;
+        } catch (IOException ex) {
+            states.remove(key); //The client may not have received it.
+            throw ex;
+        } finally {
+            statesLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sends the whole of the last version of an object sent with sendState,
+     * when the client could not apply the changes.
+     *
+     * @param key the key.
+     */
+    private void resendState(String key) {
+        final long stamp = statesLock.writeLock();
+        try {
+            final State state = states.get(key);
+            if (state != null) {
+                reply(state(key, state.version, 0, state.bytes, JConnData.PRIORITY_NORMAL));
+            }
+        } catch (IOException ex) {
+            if (debug) {
+                LOG.log(Level.SEVERE, "Error sending the state of " + key, ex);
+            }
+        } finally {
+            statesLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Creates the message which carries a version of an object.
+     *
+     * @param key the key.
+     * @param version the version.
+     * @param base the version the changes are from, or 0 if the bytes are the
+     * whole object.
+     * @param bytes the whole object, or the changes.
+     * @param priority the priority.
+     * @return the message.
+     */
+    private static JConnData state(String key, long version, long base, byte[] bytes, int priority) {
+        return JConnData.obtain("STATE").addParam("KEY", key).addLongParam("VERSION", version).addLongParam("BASE", base).addParam("BYTES", bytes).setType(JConnData.STATE).setPriority(priority);
+    }
+
+    /**
+     * Sends a message which has already been encoded with the binary codec,
+     * or encodes it again if the client does not have that codec.
+     *
+     * @param data the message.
+     * @param bytes the message encoded with the binary codec.
+     * @throws IOException if there was a network error.
+     */
+    void sendEncoded(JConnData data, byte[] bytes) throws IOException {
+        if (conn_term) {
+            return;
+        }
+        if (!stream.writeEncoded(JConnCodecs.BINARY, bytes, data.getPriority())) {
+            stream.write(data);
+        }
+    }
+
+    /**
+     * Sends part of a file to the client as a bulk transfer. The file is sent
+     * in chunks straight from the file, so it does not have to fit in memory,
+     * and other messages can be sent while it is going. The client passes the
+     * chunks to its JConnBulkReceiver as they arrive. This method blocks until
+     * the whole transfer has been sent.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @param source the file.
+     * @param position where in the file to start.
+     * @param count the number of bytes to send.
+     * @throws IOException if there was an error sending the transfer.
+     */
+    public void sendBulk(JConnData header, FileChannel source, long position, long count) throws IOException {
+        final long id = bulkIds.incrementAndGet();
+        sendData(header.setId(id).setType(JConnData.BULK_START));
+        boolean complete = false;
         try {
-            obOut.writeObject(data);
+            stream.sendBulk(id, source, position, count);
+            complete = true;
         } finally {
-            outLock.unlockWrite(stamp);
+            endBulk(header, id, complete);
+        }
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer to the client as a bulk transfer.
+     * The client passes the chunks to its JConnBulkReceiver as they arrive.
+     * This method blocks until the whole transfer has been sent.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @param source the bytes. Its position is moved to its limit.
+     * @throws IOException if there was an error sending the transfer.
+     */
+    public void sendBulk(JConnData header, ByteBuffer source) throws IOException {
+        final long id = bulkIds.incrementAndGet();
+        sendData(header.setId(id).setType(JConnData.BULK_START));
+        boolean complete = false;
+        try {
+            stream.sendBulk(id, source);
+            complete = true;
+        } finally {
+            endBulk(header, id, complete);
+        }
+    }
+
+    /**
+     * Sends the BULK_END message for a bulk transfer. If the transfer did not
+     * complete the connection may have gone, so errors are ignored.
+     *
+     * @param header the flag and parameters which describe the transfer.
+     * @param id the id of the transfer.
+     * @param complete true if all the bytes were sent.
+     * @throws IOException if there was an error sending the message for a
+     * complete transfer.
+     */
+    private void endBulk(JConnData header, long id, boolean complete) throws IOException {
+        try {
+            reply(JConnData.obtain(header.getFlag()).setId(id).setReturnValue(complete).setType(JConnData.BULK_END));
+        } catch (IOException ex) {
+            if (complete) {
+                throw ex;
+            }
         }
     }
 
+    /**
+     * Sets the receiver for bulk transfers sent by the client.
+     *
+     * @param receiver the receiver, or null to discard them.
+     */
+    public void setBulkReceiver(JConnBulkReceiver receiver) {
+        stream.setBulkReceiver(receiver);
+    }
+
+    /**
+     * Sends a reply to the client, then recycles it as nothing else has a
+     * reference to it.
+     *
+     * @param reply the reply.
+     * @throws IOException if there was a network error.
+     */
+    private void reply(JConnData reply) throws IOException {
+        try {
+            sendData(reply);
+        } finally {
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Get where pushes sent over UDP go.
+     *
+     * @return the target, or null if the client is not listening for them.
+     */
+    JConnDatagrams.Target getDatagramTarget() {
+        return datagrams;
+    }
+
     /**
      * Gets the IP address of the client.
      *
      * @return the IP address.
      */
     public String getAddress() {
-        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        return link.getAddress();
+    }
+
+    /**
+     * Get the compression counts for this connection.
+     *
+     * @return the JConnCompressionStats.
+     */
+    public JConnCompressionStats getCompressionStats() {
+        return compressionStats;
     }
 
     /**
@@ -145,107 +555,52 @@ public class JConnThread extends Thread {
     @Override
     public void run() {
         try {
+            sendData(JCONNMETHODS.handshake()); //Tell the client the flags and parameters of the methods.
             while (!conn_term) {
-                final JConnData currentData = (JConnData) obIn.readObject();
-
-                final JConnData data = currentData.clone(); //Take a clone of the ConnectionData object
+                final JConnData data = stream.read();
+                JCONNMETHODS.resolve(data); //Fill in the flag or its id from the method table.
 
                 if (data.getType() == JConnData.KEEP_ALIVE) {
                     continue;
                 }
-
-                if (debug) {
-                    LOG.log(Level.INFO, "Received " + data.getFlag() + " from client", data.getFlag());
+                if (data.getType() == JConnData.STREAM_CREDIT || data.getType() == JConnData.STREAM_CANCEL) {
+                    streamControl(data);
+                    continue;
                 }
-                final JConnReceiveEvent event = new JConnReceiveEvent(data);
-                final long stamp2 = listenersLock.readLock();
-                try {
-                    listeners.forEach((l) -> {
-                        try {
-                            l.onReceive(event);
-                        } catch (Exception e) {
-                            LOG.log(Level.SEVERE, "Error passing data receive to listener", e);
-                        }
-                    });
-                } finally {
-                    listenersLock.unlockRead(stamp2);
+                if (data.getType() == JConnData.DATAGRAM_OPEN) { //Start a new sequence, as the client has a new socket.
+                    datagrams = new JConnDatagrams.Target(new InetSocketAddress(link.getInetAddress(), data.getIntParam("PORT")));
+                    data.recycle();
+                    continue;
                 }
-                if (event.isCancelled()) {
-                    LOG.log(Level.INFO, "Data receive cancelled");
+                if (data.getType() == JConnData.SUBSCRIBE || data.getType() == JConnData.UNSUBSCRIBE) {
+                    subscription(data);
                     continue;
                 }
-                for (Method m : JCONNMETHODS) { //Loop through every method in this class
-                    final Annotation a = m.getAnnotation(JConnMethod.class); //Get the JConnMethod annotation
-                    final JConnMethod ja = (JConnMethod) a; //Get the JConnMethod annotation object to find out the flag name
-                    final String flag = data.getFlag(); //Get the flag from the connection object
-                    final UUID uuid = data.getUuid();
-                    if (ja.value().equals(flag)) { //Check if the current flag matches the flag definted on the annotation
-                        try {
-                            final JConnData clone = data.clone(); //Take a clone of the connection data object
-                            m.setAccessible(true); //Set the access to public
-                            final Runnable run = () -> {
-                                try {
-                                    final HashMap<String, Object> map = clone.getData(); //Get the parameters
-                                    if (m.getParameterCount() != map.size()) { //Check the amount of paramters passed in matches the amount on the method.
-                                        final long stamp = outLock.writeLock();
-                                        try {
-                                            obOut.writeObject(JConnData.create(flag, uuid).setType(JConnData.ILLEGAL_PARAM_LENGTH));
-                                        } finally {
-                                            outLock.unlockWrite(stamp);
-                                        }
-                                    } else {
-                                        Iterator it = map.entrySet().iterator();
-                                        Object[] params = new Object[clone.getData().size()];
-                                        while (it.hasNext()) { //Iterate through the map of parameters
-                                            Map.Entry pair = (Map.Entry) it.next();
-                                            int currentPos = 0;
-                                            for (Parameter p : m.getParameters()) {
-                                                final Annotation ap = p.getAnnotation(JConnParameter.class); //Get the JConnParameter annotation.
-                                                if (ap.annotationType() == JConnParameter.class) {
-                                                    JConnParameter jp = (JConnParameter) ap;
-                                                    if (jp.value().equals(pair.getKey())) { //Check if the annotation value matches the parameter.
-                                                        params[currentPos] = pair.getValue(); //Add the parameter to the array.
-                                                    }
-                                                    currentPos++;
-                                                }
-                                            }
-                                            it.remove();
-                                        }
-                                        try {
-                                            final Object ret = m.invoke(methodClass, params); //Invoke the method
-                                            final long stamp = outLock.writeLock();
-                                            try {
-                                                obOut.writeObject(JConnData.create(flag, uuid).setReturnValue(ret)); //Return the result
-                                            } finally {
-                                                outLock.unlockWrite(stamp);
-                                            }
-                                        } catch (InvocationTargetException ex) {
-                                            final long stamp = outLock.writeLock();
-                                            try {
-                                                obOut.writeObject(JConnData.create(flag, uuid).setException(ex.getCause()).setType(JConnData.EXCEPTION)); //Return the result
-                                            } finally {
-                                                outLock.unlockWrite(stamp);
-                                            }
-                                        }
-                                    }
-                                } catch (IllegalAccessException | IllegalArgumentException | IOException ex) {
-                                    final long stamp = outLock.writeLock();
-                                    try {
-                                        obOut.writeObject(JConnData.create(flag, uuid).addParam("RETURN", ex));
-                                    } catch (IOException ex1) {
-                                        Logger.getLogger(JConnThread.class.getName()).log(Level.SEVERE, null, ex1);
-                                    } finally {
-                                        outLock.unlockWrite(stamp);
-                                    }
-                                }
-                            };
-                            new Thread(run, flag).start(); //Run the thread which will invoke the method
-                            break;
-                        } catch (IllegalArgumentException ex) {
-                            Logger.getLogger(JConnThread.class.getName()).log(Level.SEVERE, null, ex);
-                        }
+                if (data.getType() == JConnData.STATE_RESYNC) {
+                    final String key = (String) data.getParam("KEY");
+                    data.recycle();
+                    handlers.execute(() -> resendState(key)); //Do not hold up reading while it is sent.
+                    continue;
+                }
+                if (data.getType() == JConnData.REQUEST_CANCEL) {
+                    final JConnContext context = untrack(data.getId());
+                    if (context != null) {
+                        context.cancel();
                     }
+                    data.recycle();
+                    continue;
+                }
+                if (data.getType() == JConnData.BATCH) { //Handle each request, and send the replies together.
+                    final JConnData[] requests = data.getBatch();
+                    final Batch batch = new Batch(data.getPriority(), requests.length);
+                    for (JConnData request : requests) {
+                        JCONNMETHODS.resolve(request);
+                        handle(request, batch);
+                    }
+                    data.recycle();
+                    continue;
                 }
+                handle(data, null);
             }
             if (debug) {
                 LOG.log(Level.INFO, "Connection closing to client");
@@ -270,7 +625,7 @@ public class JConnThread extends Thread {
             } finally {
                 listenersLock.unlockRead(stamp);
             }
-        } catch (IOException | ClassNotFoundException | CloneNotSupportedException | SecurityException ex) {
+        } catch (IOException | ClassNotFoundException | SecurityException ex) {
             if (debug) {
                 LOG.log(Level.SEVERE, null, ex);
             }
@@ -285,8 +640,25 @@ public class JConnThread extends Thread {
         } finally {
             conn_term = false;
             th.removeThread(this); //Remove the connection from the list.
+            th.getTopics().unsubscribeAll(this);
+            clearConflated();
+            final long streamsStamp = streamsLock.writeLock();
             try {
-                socket.close(); //Close the socket
+                streams.values().forEach(StreamCredit::cancel); //Nothing more can be sent, so do not leave handlers waiting.
+                streams.clear();
+            } finally {
+                streamsLock.unlockWrite(streamsStamp);
+            }
+            final long runningStamp = runningLock.writeLock();
+            try {
+                running.values().forEach(JConnContext::cancel); //Nobody is waiting for the replies any more.
+                running.clear();
+            } finally {
+                runningLock.unlockWrite(runningStamp);
+            }
+            try {
+                stream.close(); //Close the socket
+                link.close();
                 if (debug) {
                     LOG.log(Level.INFO, "Connection terminated");
                 }
@@ -298,13 +670,513 @@ public class JConnThread extends Thread {
         }
     }
 
+    /**
+     * Subscribes the client to a topic pattern, or unsubscribes it.
+     *
+     * @param data the SUBSCRIBE or UNSUBSCRIBE message.
+     */
+    private void subscription(JConnData data) {
+        try {
+            for (String pattern : (String[]) data.getParam("PATTERNS")) {
+                if (data.getType() == JConnData.SUBSCRIBE) {
+                    th.getTopics().subscribe(this, pattern);
+                } else {
+                    th.getTopics().unsubscribe(this, pattern);
+                }
+            }
+            final JConnJournal journal = th.getJournal();
+            if (journal != null && data.getType() == JConnData.SUBSCRIBE) {
+                final boolean resume = data.hasParam("RESUME");
+                final long start;
+                final long stamp = journalLock.writeLock();
+                try {
+                    if (cursor != null) { //It is already reading the journal.
+                        return;
+                    }
+                    start = resume ? data.getLongParam("RESUME") + 1 : journal.getEnd();
+                    cursor = journal.cursor(start);
+                } finally {
+                    journalLock.unlockWrite(stamp);
+                }
+                if (resume) {
+                    journalAppended(start); //Send what it missed.
+                } else {
+                    reply(JConnData.obtain("JOURNAL_START").addLongParam("SEQUENCE", start - 1).setType(JConnData.JOURNAL_START).setPriority(JConnData.PRIORITY_HIGH));
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Error subscribing " + address, ex);
+        } catch (IllegalArgumentException | ClassCastException ex) {
+            LOG.log(Level.WARNING, "Invalid subscription from " + address, ex);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * Passes a request to the listeners, then runs the method for its flag on
+     * a handler thread.
+     *
+     * @param data the request.
+     * @param batch the batch the request came in, or null if it came on its
+     * own.
+     */
+    private void handle(JConnData data, Batch batch) {
+        if (data.isExpired()) { //The client has already given up on it.
+            if (debug) {
+                LOG.log(Level.INFO, "Dropped " + data.getFlag() + " as its deadline has passed");
+            }
+            respond(null, batch);
+            return;
+        }
+
+        if (debug) {
+            LOG.log(Level.INFO, "Received " + data.getFlag() + " from client", data.getFlag());
+        }
+        final JConnReceiveEvent event = new JConnReceiveEvent(data);
+        final long stamp2 = listenersLock.readLock();
+        try {
+            listeners.forEach((l) -> {
+                try {
+                    l.onReceive(event);
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Error passing data receive to listener", e);
+                }
+            });
+        } finally {
+            listenersLock.unlockRead(stamp2);
+        }
+        if (event.isCancelled()) {
+            LOG.log(Level.INFO, "Data receive cancelled");
+            respond(null, batch);
+            return;
+        }
+        final int flagId = data.getFlagId(); //The id of the method, set when the data was resolved against the table.
+        if (flagId < 0) { //There is no method for the flag.
+            respond(null, batch);
+            return;
+        }
+        final Method m = JCONNMETHODS.getMethod(flagId);
+        final JConnContext context = track(data);
+        final Runnable run = () -> {
+            boolean later = false; //Set if the reply is sent when a CompletionStage completes.
+            JConnData reply = null; //The reply, null if none is sent.
+            try {
+                if (context.isCancelled() || context.isExpired()) { //The client gave up while it was waiting for a thread.
+                    return;
+                }
+                final Object[] params = JCONNMETHODS.arguments(flagId, data); //Get the parameters in the order the method takes them.
+                if (params == null) { //Check the amount of paramters passed in matches the amount on the method.
+                    reply = JConnData.replyTo(data).setType(JConnData.ILLEGAL_PARAM_LENGTH);
+                } else {
+                    context.start();
+                    try {
+                        final Object ret = m.invoke(methodClass, params); //Invoke the method
+                        if (ret instanceof CompletionStage) {
+                            later = true;
+                            replyLater(data, (CompletionStage<?>) ret, context, batch); //Do not hold the handler thread while it completes.
+                        } else if (!context.isCancelled()) {
+                            reply = result(data, ret, batch != null); //Return the result
+                        }
+                    } catch (InvocationTargetException ex) {
+                        if (!context.isCancelled()) {
+                            reply = JConnData.replyTo(data).setException(ex.getCause()).setType(JConnData.EXCEPTION); //Return the result
+                        }
+                    } catch (IllegalAccessException | IllegalArgumentException ex) {
+                        reply = JConnData.replyTo(data).setException(ex).setType(JConnData.EXCEPTION);
+                    } finally {
+                        context.finish();
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(JConnThread.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                if (!later) {
+                    untrack(data.getId());
+                    respond(reply, batch);
+                }
+            }
+        };
+        executor(data.getChannel()).execute(run); //Run the method on a handler thread.
+    }
+
+    /**
+     * Gets the executor for the requests on a logical channel. Requests which
+     * are not on a channel run in parallel on the handler threads, the
+     * requests on a channel run one at a time in the order they arrived.
+     *
+     * @param channel the channel.
+     * @return the executor.
+     */
+    private Executor executor(int channel) {
+        if (channel == 0) {
+            return handlers;
+        }
+        long stamp = channelsLock.readLock();
+        try {
+            final ChannelExecutor executor = channels.get(channel);
+            if (executor != null) {
+                return executor;
+            }
+        } finally {
+            channelsLock.unlockRead(stamp);
+        }
+        stamp = channelsLock.writeLock();
+        try {
+            ChannelExecutor executor = channels.get(channel);
+            if (executor == null) {
+                executor = new ChannelExecutor();
+                channels.put(channel, executor);
+            }
+            return executor;
+        } finally {
+            channelsLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Creates the reply for the result of a method. A Stream or Iterator is
+     * sent to the client one item at a time, unless the request came in a
+     * batch, when its items are put in a List.
+     *
+     * @param request the request.
+     * @param result the result.
+     * @param batched true if the request came in a batch.
+     * @return the reply, or null if the result was streamed.
+     * @throws IOException if there was an error sending the items.
+     */
+    private JConnData result(JConnData request, Object result, boolean batched) throws IOException {
+        if (result instanceof Stream || result instanceof Iterator) {
+            if (!batched) {
+                sendStream(request, result); //Send the items one at a time.
+                return null;
+            }
+            final ArrayList<Object> items = new ArrayList<>();
+            if (result instanceof Stream) {
+                try (Stream<?> stream = (Stream<?>) result) {
+                    stream.forEachOrdered(items::add);
+                }
+            } else {
+                ((Iterator<?>) result).forEachRemaining(items::add);
+            }
+            return JConnData.replyTo(request).setReturnValue(items);
+        }
+        return JConnData.replyTo(request).setReturnValue(result);
+    }
+
+    /**
+     * Sends a reply, or adds it to its batch.
+     *
+     * @param reply the reply, or null if there is none.
+     * @param batch the batch the request came in, or null if it came on its
+     * own.
+     */
+    private void respond(JConnData reply, Batch batch) {
+        if (batch != null) {
+            batch.add(reply);
+            return;
+        }
+        if (reply != null) {
+            try {
+                reply(reply);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Error sending reply to " + reply.getFlag(), ex);
+            }
+        }
+    }
+
+    /**
+     * Sends the result of a method which returned a CompletionStage once it
+     * completes. The reply is sent from the thread which completes it, so no
+     * thread is held while waiting.
+     *
+     * @param request the request.
+     * @param result the CompletionStage.
+     * @param context the context of the request.
+     * @param batch the batch the request came in, or null if it came on its
+     * own.
+     */
+    private void replyLater(JConnData request, CompletionStage<?> result, JConnContext context, Batch batch) {
+        if (result instanceof Future) {
+            context.setFuture((Future<?>) result); //Cancel it if the request is cancelled.
+        }
+        result.whenComplete((value, ex) -> {
+            untrack(request.getId());
+            JConnData reply = null;
+            try {
+                if (context.isCancelled()) { //The client does not want the reply.
+                    return;
+                }
+                if (ex == null) {
+                    reply = result(request, value, batch != null);
+                } else {
+                    final Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                    reply = JConnData.replyTo(request).setException(cause).setType(JConnData.EXCEPTION);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Error sending the result of " + request.getFlag(), e);
+            } finally {
+                respond(reply, batch);
+            }
+        });
+    }
+
+    /**
+     * Adds a request to the running map, so it can be cancelled.
+     *
+     * @param request the request.
+     * @return the context for the request.
+     */
+    private JConnContext track(JConnData request) {
+        final JConnContext context = new JConnContext(request.getDeadline());
+        final long stamp = runningLock.writeLock();
+        try {
+            running.put(request.getId(), context);
+        } finally {
+            runningLock.unlockWrite(stamp);
+        }
+        return context;
+    }
+
+    /**
+     * Removes a request from the running map.
+     *
+     * @param id the id of the request.
+     * @return the context for the request, or null if it was not running.
+     */
+    private JConnContext untrack(long id) {
+        final long stamp = runningLock.writeLock();
+        try {
+            return running.remove(id);
+        } finally {
+            runningLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sends the items of a Stream or Iterator returned by a method to the
+     * client, then a RETURN reply to end them, or an EXCEPTION reply if the
+     * items could not be produced. No more than JConn.STREAM_WINDOW items are
+     * sent ahead of the ones the client has taken, so this blocks the handler
+     * thread while the client is behind. The Stream is closed at the end.
+     *
+     * @param request the request.
+     * @param result the Stream or Iterator.
+     * @throws IOException if there was an error sending the items.
+     */
+    private void sendStream(JConnData request, Object result) throws IOException {
+        final Iterator<?> it = result instanceof Stream ? ((Stream<?>) result).iterator() : (Iterator<?>) result;
+        final StreamCredit credit = new StreamCredit(JConn.STREAM_WINDOW);
+        final long id = request.getId();
+        long stamp = streamsLock.writeLock();
+        try {
+            streams.put(id, credit);
+        } finally {
+            streamsLock.unlockWrite(stamp);
+        }
+        try {
+            while (it.hasNext() && credit.acquire()) {
+                reply(JConnData.replyTo(request).setReturnValue(it.next()).setType(JConnData.STREAM_ITEM));
+            }
+            reply(JConnData.replyTo(request).setReturnValue(null)); //The end of the items.
+        } catch (RuntimeException ex) {
+            reply(JConnData.replyTo(request).setException(ex).setType(JConnData.EXCEPTION));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stamp = streamsLock.writeLock();
+            try {
+                streams.remove(id);
+            } finally {
+                streamsLock.unlockWrite(stamp);
+            }
+            if (result instanceof Stream) {
+                ((Stream<?>) result).close();
+            }
+        }
+    }
+
+    /**
+     * Passes a STREAM_CREDIT or STREAM_CANCEL message from the client to the
+     * streamed result it is for.
+     *
+     * @param data the message.
+     */
+    private void streamControl(JConnData data) {
+        final StreamCredit credit;
+        final long stamp = streamsLock.readLock();
+        try {
+            credit = streams.get(data.getId());
+        } finally {
+            streamsLock.unlockRead(stamp);
+        }
+        if (credit != null) {
+            if (data.getType() == JConnData.STREAM_CANCEL) {
+                credit.cancel();
+            } else if (data.getReturnValue() instanceof Integer) {
+                credit.release((Integer) data.getReturnValue());
+            }
+        }
+        data.recycle();
+    }
+
+    /**
+     * Runs the requests on one logical channel on the handler threads, one at
+     * a time and in the order they arrived. A method which returns a
+     * CompletionStage lets the next request start once it has returned.
+     */
+    private class ChannelExecutor implements Executor {
+
+        private final ArrayDeque<Runnable> queue; //The requests waiting to run.
+        private boolean active; //Indicates that a handler thread is running the requests.
+
+        private ChannelExecutor() {
+            this.queue = new ArrayDeque<>();
+        }
+
+        @Override
+        public void execute(Runnable run) {
+            synchronized (this) {
+                queue.add(run);
+                if (active) {
+                    return;
+                }
+                active = true;
+            }
+            handlers.execute(this::drain);
+        }
+
+        /**
+         * Runs the requests until there are none waiting.
+         */
+        private void drain() {
+            while (true) {
+                final Runnable run;
+                synchronized (this) {
+                    run = queue.poll();
+                    if (run == null) {
+                        active = false;
+                        return;
+                    }
+                }
+                try {
+                    run.run();
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.SEVERE, "Error handling request", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * The replies to the requests in a batch. They are sent together in one
+     * BATCH message once every request has been handled.
+     */
+    private class Batch {
+
+        private final int priority; //The priority of the batch.
+        private final ArrayList<JConnData> replies; //The replies so far.
+        private int remaining; //The number of requests which have not been handled.
+
+        private Batch(int priority, int size) {
+            this.priority = priority;
+            this.replies = new ArrayList<>(size);
+            this.remaining = size;
+        }
+
+        /**
+         * Adds the reply to one of the requests. Once every request has been
+         * handled, the replies are sent.
+         *
+         * @param reply the reply, or null if there is none.
+         */
+        private void add(JConnData reply) {
+            synchronized (this) {
+                if (reply != null) {
+                    replies.add(reply);
+                }
+                if (--remaining > 0 || replies.isEmpty()) {
+                    return;
+                }
+            }
+            final JConnData frame = JConnData.obtain("BATCH").setBatch(replies.toArray(new JConnData[replies.size()])).setType(JConnData.BATCH).setPriority(priority);
+            try {
+                reply(frame);
+            } catch (IOException ex) {
+                LOG.log(Level.SEVERE, "Error sending batch reply", ex);
+            } finally {
+                replies.forEach(JConnData::recycle);
+            }
+        }
+    }
+
+    /**
+     * The number of items of a streamed result which can be sent before the
+     * client takes some more.
+     */
+    private static class StreamCredit {
+
+        private int available; //The number of items which can be sent.
+        private boolean cancelled;
+
+        private StreamCredit(int available) {
+            this.available = Math.max(1, available);
+        }
+
+        /**
+         * Waits until an item can be sent, and takes it from the credit.
+         *
+         * @return true if an item can be sent, false if the stream was
+         * cancelled.
+         * @throws InterruptedException if the thread was interrupted while
+         * waiting.
+         */
+        private synchronized boolean acquire() throws InterruptedException {
+            while (available == 0 && !cancelled) {
+                wait();
+            }
+            if (cancelled) {
+                return false;
+            }
+            available--;
+            return true;
+        }
+
+        /**
+         * Adds the items the client has taken to the credit.
+         *
+         * @param count the number of items.
+         */
+        private synchronized void release(int count) {
+            available += count;
+            notifyAll();
+        }
+
+        /**
+         * Stops the stream.
+         */
+        private synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The last version of an object sent with sendState.
+     */
+    private static class State {
+
+        private long version; //The version, which starts at 1.
+        private byte[] bytes; //The object encoded with the binary codec, null until it has been sent.
+    }
+
     /**
      * Sends a request to the client to end the connection gracefully.
      *
      * @throws IOException if there was an error sending the request.
      */
     public void endConnection() throws IOException {
-        this.sendData(JConnData.create("END").setType(JConnData.TERMINATE_CONNECTION));
+        this.sendData(JConnData.create("END").setType(JConnData.TERMINATE_CONNECTION).setPriority(JConnData.PRIORITY_HIGH));
         conn_term = true;
     }
 
@@ -0,0 +1,291 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The index of the topics the clients of a server have subscribed to. A topic
+ * is made of segments separated by dots, such as "prices.uk.ftse". A pattern
+ * can use * for any one segment and end with # for any number of segments,
+ * so "prices.*.ftse" and "prices.#" both match that topic. The patterns are
+ * kept in a tree by segment, so finding the subscribers of a topic only looks
+ * at the branches which can match it rather than at every pattern.
+ *
+ * @author David
+ */
+class JConnTopics {
+
+    /**
+     * Matches any one segment.
+     */
+    static final String ONE = "*";
+
+    /**
+     * Matches the rest of the topic, must be the last segment of a pattern.
+     */
+    static final String REST = "#";
+
+    private final Node root; //The node for the empty pattern.
+    private final HashMap<JConnThread, HashSet<String>> patterns; //The patterns each connection has subscribed to, so they can be removed when it closes.
+    private final StampedLock lock;
+
+    /**
+     * Creates an empty index.
+     */
+    JConnTopics() {
+        root = new Node();
+        patterns = new HashMap<>();
+        lock = new StampedLock();
+    }
+
+    /**
+     * Subscribes a connection to a pattern. Subscribing again to the same
+     * pattern has no effect.
+     *
+     * @param thread the connection.
+     * @param pattern the pattern.
+     * @throws IllegalArgumentException if the pattern is not valid.
+     */
+    void subscribe(JConnThread thread, String pattern) {
+        final String[] segments = split(pattern, true);
+        final long stamp = lock.writeLock();
+        try {
+            if (!patterns.computeIfAbsent(thread, (t) -> new HashSet<>()).add(pattern)) {
+                return;
+            }
+            Node node = root;
+            for (String segment : segments) {
+                if (segment.equals(REST)) {
+                    node.rest.add(thread);
+                    return;
+                }
+                node = node.children.computeIfAbsent(segment, (s) -> new Node());
+            }
+            node.subscribers.add(thread);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Unsubscribes a connection from a pattern it subscribed to.
+     *
+     * @param thread the connection.
+     * @param pattern the pattern.
+     */
+    void unsubscribe(JConnThread thread, String pattern) {
+        final long stamp = lock.writeLock();
+        try {
+            final HashSet<String> subscribed = patterns.get(thread);
+            if (subscribed == null || !subscribed.remove(pattern)) {
+                return;
+            }
+            if (subscribed.isEmpty()) {
+                patterns.remove(thread);
+            }
+            remove(root, split(pattern, true), 0, thread);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes all the subscriptions of a connection which has closed.
+     *
+     * @param thread the connection.
+     */
+    void unsubscribeAll(JConnThread thread) {
+        final long stamp = lock.writeLock();
+        try {
+            final HashSet<String> subscribed = patterns.remove(thread);
+            if (subscribed != null) {
+                for (String pattern : subscribed) {
+                    remove(root, split(pattern, true), 0, thread);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Finds the connections which have subscribed to a pattern which matches
+     * a topic. Each connection is only included once, however many of its
+     * patterns match.
+     *
+     * @param topic the topic.
+     * @return the connections.
+     * @throws IllegalArgumentException if the topic is not valid, or has a
+     * wildcard in it.
+     */
+    Set<JConnThread> match(String topic) {
+        final String[] segments = split(topic, false);
+        final HashSet<JConnThread> result = new HashSet<>();
+        final long stamp = lock.readLock();
+        try {
+            match(root, segments, 0, result);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if a connection has subscribed to a pattern which matches a
+     * topic.
+     *
+     * @param thread the connection.
+     * @param topic the topic.
+     * @return true if one of its patterns matches.
+     */
+    boolean matches(JConnThread thread, String topic) {
+        final String[] segments = topic.split("\\.", -1);
+        final long stamp = lock.readLock();
+        try {
+            final HashSet<String> subscribed = patterns.get(thread);
+            if (subscribed == null) {
+                return false;
+            }
+            for (String pattern : subscribed) {
+                if (matches(pattern.split("\\.", -1), segments)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Checks if a pattern matches a topic.
+     *
+     * @param pattern the segments of the pattern.
+     * @param topic the segments of the topic.
+     * @return true if it matches.
+     */
+    private static boolean matches(String[] pattern, String[] topic) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (pattern[i].equals(REST)) {
+                return true;
+            }
+            if (i == topic.length || !(pattern[i].equals(ONE) || pattern[i].equals(topic[i]))) {
+                return false;
+            }
+        }
+        return pattern.length == topic.length;
+    }
+
+    /**
+     * Adds the subscribers of the patterns under a node which match the rest
+     * of a topic.
+     *
+     * @param node the node.
+     * @param segments the segments of the topic.
+     * @param i the index of the first segment under the node.
+     * @param result where to add the subscribers.
+     */
+    private static void match(Node node, String[] segments, int i, Set<JConnThread> result) {
+        result.addAll(node.rest);
+        if (i == segments.length) {
+            result.addAll(node.subscribers);
+            return;
+        }
+        final Node exact = node.children.get(segments[i]);
+        if (exact != null) {
+            match(exact, segments, i + 1, result);
+        }
+        final Node one = node.children.get(ONE);
+        if (one != null) {
+            match(one, segments, i + 1, result);
+        }
+    }
+
+    /**
+     * Removes a connection from the node for a pattern, and removes the nodes
+     * on the way to it which are left empty.
+     *
+     * @param node the node.
+     * @param segments the segments of the pattern.
+     * @param i the index of the first segment under the node.
+     * @param thread the connection.
+     * @return true if the node is now empty.
+     */
+    private static boolean remove(Node node, String[] segments, int i, JConnThread thread) {
+        if (i == segments.length) {
+            node.subscribers.remove(thread);
+        } else if (segments[i].equals(REST)) {
+            node.rest.remove(thread);
+        } else {
+            final Node child = node.children.get(segments[i]);
+            if (child != null && remove(child, segments, i + 1, thread)) {
+                node.children.remove(segments[i]);
+            }
+        }
+        return node.subscribers.isEmpty() && node.rest.isEmpty() && node.children.isEmpty();
+    }
+
+    /**
+     * Splits a topic or pattern into its segments.
+     *
+     * @param topic the topic or pattern.
+     * @param pattern true if it is a pattern, so can have wildcards.
+     * @return the segments.
+     * @throws IllegalArgumentException if it is not valid.
+     */
+    static String[] split(String topic, boolean pattern) {
+        if (topic == null || topic.isEmpty()) {
+            throw new IllegalArgumentException("A topic must not be empty");
+        }
+        final String[] segments = topic.split("\\.", -1);
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            if (segment.isEmpty()) {
+                throw new IllegalArgumentException("Empty segment in " + topic);
+            }
+            if (segment.equals(ONE) || segment.equals(REST)) {
+                if (!pattern) {
+                    throw new IllegalArgumentException("Wildcards can only be used in a subscription, not in " + topic);
+                }
+                if (segment.equals(REST) && i != segments.length - 1) {
+                    throw new IllegalArgumentException(REST + " must be the last segment of " + topic);
+                }
+            } else if (segment.contains(ONE) || segment.contains(REST)) {
+                throw new IllegalArgumentException("A wildcard must be a whole segment in " + topic);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * A segment of the patterns in the tree.
+     */
+    private static final class Node {
+
+        private final HashMap<String, Node> children = new HashMap<>(); //The next segments, including * but not #.
+        private final HashSet<JConnThread> subscribers = new HashSet<>(); //The connections whose pattern ends here.
+        private final HashSet<JConnThread> rest = new HashSet<>(); //The connections whose pattern ends with # here.
+    }
+}
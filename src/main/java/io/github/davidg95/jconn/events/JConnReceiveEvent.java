@@ -30,6 +30,7 @@ public class JConnReceiveEvent {
 
     private JConnData data;
     private boolean cancelled;
+    private long missed; //The number of datagrams lost before this one.
 
     public JConnReceiveEvent(JConnData data) {
         this.data = data;
@@ -52,9 +53,24 @@ public class JConnReceiveEvent {
         this.cancelled = cancelled;
     }
 
+    /**
+     * Get the number of pushes which were lost before this one. This is only
+     * ever set for pushes sent over UDP with JConnServer.sendDatagram or
+     * JConnServer.sendMulticast.
+     *
+     * @return the number of datagrams.
+     */
+    public long getMissed() {
+        return missed;
+    }
+
+    public void setMissed(long missed) {
+        this.missed = missed;
+    }
+
     @Override
     public String toString() {
-        return "JConnReceiveEvent{" + "data=" + data + ", cancelled=" + cancelled + '}';
+        return "JConnReceiveEvent{" + "data=" + data + ", cancelled=" + cancelled + ", missed=" + missed + '}';
     }
 
 }
@@ -0,0 +1,123 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the journal of published messages.
+ *
+ * @author David
+ */
+public class JConnJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private int segmentSize;
+    private int segments;
+
+    @Before
+    public void setUp() {
+        segmentSize = JConn.JOURNAL_SEGMENT_SIZE;
+        segments = JConn.JOURNAL_SEGMENTS;
+        JConn.JOURNAL_SEGMENT_SIZE = 1024;
+        JConn.JOURNAL_SEGMENTS = 100;
+    }
+
+    @After
+    public void tearDown() {
+        JConn.JOURNAL_SEGMENT_SIZE = segmentSize;
+        JConn.JOURNAL_SEGMENTS = segments;
+    }
+
+    private static JConnData message(int i) {
+        return JConnData.create("X").addIntParam("I", i);
+    }
+
+    private static int read(JConnJournal.Entry entry) throws IOException, ClassNotFoundException {
+        return JConnBinaryCodec.decode(entry.bytes).getIntParam("I");
+    }
+
+    @Test
+    public void testReadsAcrossSegments() throws Exception {
+        final JConnJournal journal = JConnJournal.open(folder.getRoot().getPath());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i + 1, journal.append("t", message(i)));
+        }
+        assertTrue(folder.getRoot().list().length > 1);
+        final JConnJournal.Cursor cursor = journal.cursor(1);
+        final JConnJournal.Entry entry = new JConnJournal.Entry();
+        for (int i = 0; i < 200; i++) {
+            assertTrue(cursor.read(entry));
+            assertEquals(i + 1, entry.sequence);
+            assertEquals("t", entry.topic);
+            assertEquals(i, read(entry));
+        }
+        assertFalse(cursor.read(entry));
+    }
+
+    @Test
+    public void testCarriesOnAfterReopening() throws Exception {
+        JConnJournal journal = JConnJournal.open(folder.getRoot().getPath());
+        for (int i = 0; i < 50; i++) {
+            journal.append("t", message(i));
+        }
+        journal = JConnJournal.open(folder.getRoot().getPath());
+        assertEquals(51, journal.getEnd());
+        assertEquals(51, journal.append("t", message(50)));
+        final JConnJournal.Cursor cursor = journal.cursor(50);
+        final JConnJournal.Entry entry = new JConnJournal.Entry();
+        assertTrue(cursor.read(entry));
+        assertEquals(49, read(entry));
+        assertTrue(cursor.read(entry));
+        assertEquals(50, read(entry));
+        assertFalse(cursor.read(entry));
+    }
+
+    @Test
+    public void testMessageLargerThanSegmentWhileCursorWaits() throws Exception {
+        final JConnJournal journal = JConnJournal.open(folder.getRoot().getPath());
+        final JConnJournal.Cursor cursor = journal.cursor(journal.getEnd()); //Waiting at the end, before anything is published.
+        final JConnJournal.Entry entry = new JConnJournal.Entry();
+        assertFalse(cursor.read(entry));
+        final byte[] large = new byte[JConn.JOURNAL_SEGMENT_SIZE * 4];
+        large[large.length - 1] = 1;
+        journal.append("big", JConnData.create("X").addParam("B", large));
+        journal.append("t", message(1));
+        assertTrue(cursor.read(entry));
+        assertEquals(1, entry.sequence);
+        assertArrayEquals(large, (byte[]) JConnBinaryCodec.decode(entry.bytes).getParam("B"));
+        assertTrue(cursor.read(entry));
+        assertEquals(2, entry.sequence);
+        assertEquals(1, read(entry));
+        assertFalse(cursor.read(entry));
+    }
+}
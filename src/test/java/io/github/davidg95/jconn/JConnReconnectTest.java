@@ -0,0 +1,205 @@
+/* 
+ * JConn TCP networking framework.
+ *
+ * Copyright (C) 2017 David A. Grant
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * To get in touch with me, send an email to pirakaleader@googlemail.com.
+ */
+package io.github.davidg95.jconn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import io.github.davidg95.jconn.events.JConnEvent;
+import io.github.davidg95.jconn.events.JConnReceiveEvent;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a JConn reconnects every time its connection is dropped, not
+ * only the first time.
+ *
+ * @author David
+ */
+public class JConnReconnectTest {
+
+    private int interval;
+    private int maxInterval;
+    private JConnServer server;
+    private Proxy proxy;
+    private JConn conn;
+
+    /**
+     * The methods on the server.
+     */
+    public static class Methods {
+
+        @JConnMethod("ECHO")
+        public String echo(@JConnParameter("X") String x) {
+            return x;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        interval = JConn.RECONNECT_INTERVAL;
+        maxInterval = JConn.MAX_RECONNECT_INTERVAL;
+        JConn.RECONNECT_INTERVAL = 50;
+        JConn.MAX_RECONNECT_INTERVAL = 100;
+        final int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        server = JConnServer.start(port, Methods.class);
+        proxy = new Proxy(port);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (conn != null) {
+            conn.cancelRetry();
+            if (conn.isUp()) {
+                conn.endConnection();
+            }
+        }
+        proxy.close();
+        server.stopServer();
+        JConn.RECONNECT_INTERVAL = interval;
+        JConn.MAX_RECONNECT_INTERVAL = maxInterval;
+    }
+
+    @Test
+    public void testReconnectsAfterEachDrop() throws Throwable {
+        final Semaphore established = new Semaphore(0);
+        conn = new JConn();
+        conn.registerListener(new JConnListener() {
+            @Override
+            public void onReceive(JConnReceiveEvent event) {
+            }
+
+            @Override
+            public void onConnectionDrop(JConnEvent event) {
+            }
+
+            @Override
+            public void onConnectionEstablish(JConnEvent event) {
+                established.release();
+            }
+
+            @Override
+            public void onServerGracefulEnd() {
+            }
+        });
+        conn.connect("127.0.0.1", proxy.getPort());
+        assertEquals("start", conn.sendData(JConnData.create("ECHO").addParam("X", "start")));
+        for (int round = 0; round < 3; round++) {
+            proxy.drop();
+            assertTrue("No reconnect after drop " + round, established.tryAcquire(5, TimeUnit.SECONDS));
+            assertEquals("round " + round, conn.sendData(JConnData.create("ECHO").addParam("X", "round " + round), 5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A TCP proxy in front of the server, which can drop every connection
+     * through it at once while still accepting new ones.
+     */
+    private static class Proxy implements Runnable {
+
+        private final int target;
+        private final ServerSocket listener;
+        private final List<Socket> sockets;
+
+        private Proxy(int target) throws IOException {
+            this.target = target;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.sockets = new CopyOnWriteArrayList<>();
+            final Thread thread = new Thread(this, "PROXY");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return listener.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!listener.isClosed()) {
+                try {
+                    final Socket client = listener.accept();
+                    final Socket server = new Socket(InetAddress.getLoopbackAddress(), target);
+                    sockets.add(client);
+                    sockets.add(server);
+                    pipe(client, server);
+                    pipe(server, client);
+                } catch (IOException ex) {
+                    //The proxy has been closed, or the server is not there.
+                }
+            }
+        }
+
+        private void pipe(Socket from, Socket to) {
+            final Thread thread = new Thread(() -> {
+                final byte[] buffer = new byte[8192];
+                try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException ex) {
+                    //The connection was dropped.
+                }
+                close(from);
+                close(to);
+            }, "PROXY-PIPE");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Drops every connection through the proxy.
+         */
+        private void drop() {
+            for (Socket socket : sockets) {
+                close(socket);
+                sockets.remove(socket); //Not clear(), as the client may already be reconnecting.
+            }
+        }
+
+        private void close() throws IOException {
+            listener.close();
+            drop();
+        }
+
+        private static void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //Already closed.
+            }
+        }
+    }
+}